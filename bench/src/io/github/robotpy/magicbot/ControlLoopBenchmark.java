@@ -0,0 +1,126 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.github.robotpy.magicbot.sm.StateMachineBenchmark;
+
+/**
+ * Simulates one iteration of the MagicRobot control loop: executing N
+ * components, half of which are state machines (each with a component
+ * that engages it). Waiting for the next
+ * iteration isn't included, so this is the CPU cost of each iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ControlLoopBenchmark {
+	
+	public static class Busy implements MagicComponent {
+		final long m_tokens;
+		
+		Busy(long tokens) {
+			m_tokens = tokens;
+		}
+		
+		@Override
+		public void execute() {
+			Blackhole.consumeCPU(m_tokens);
+		}
+	}
+	
+	/** Keeps a state machine engaged, like a joystick button being held */
+	public static class Engager implements MagicComponent {
+		final StateMachineBenchmark.BenchSm m_sm;
+		
+		Engager(StateMachineBenchmark.BenchSm sm) {
+			m_sm = sm;
+		}
+		
+		@Override
+		public void execute() {
+			m_sm.engage("ping");
+		}
+	}
+	
+	/** Number of components */
+	@Param({"8", "32"})
+	int m_components;
+	
+	/**
+	 * Amount of work each plain component does, in JMH tokens. Executing
+	 * components on more than one thread only helps with heavy components
+	 * (50000 tokens is a few hundred microseconds), and only when there
+	 * are enough cores.
+	 */
+	@Param({"0", "1000", "50000"})
+	long m_work;
+	
+	/** Threads used to execute components */
+	@Param({"1", "4"})
+	int m_threads;
+	
+	ComponentScheduler m_scheduler;
+	
+	@Setup
+	public void setup() {
+		m_scheduler = new ComponentScheduler();
+		
+		for (int i = 0; i < m_components / 2; i++) {
+			m_scheduler.add(new Busy(m_work));
+		}
+		
+		for (int i = 0; i < m_components / 4; i++) {
+			StateMachineBenchmark.BenchSm sm = new StateMachineBenchmark.BenchSm();
+			Engager engager = new Engager(sm);
+			m_scheduler.add(engager);
+			m_scheduler.add(sm, engager);
+		}
+		
+		m_scheduler.start(m_threads, 0.020);
+		m_scheduler.enable();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		m_scheduler.disable();
+		m_scheduler.close();
+	}
+	
+	@Benchmark
+	public void iteration() {
+		m_scheduler.execute();
+	}
+}
@@ -0,0 +1,125 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the InjectionRegistry that MagicRobotCore uses: setting up a
+ * robot, which builds a registry and injects into every component, and
+ * injecting into more objects once the registry's plans are cached.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InjectorBenchmark {
+	
+	public static class Robot {
+		Object leftMotor = new Object();
+		Object rightMotor = new Object();
+		Object gyro = new Object();
+		Object encoder = new Object();
+		Object shooter_motor = new Object();
+		Object shooter_solenoid = new Object();
+		
+		Child a = new Child();
+		Child b = new Child();
+		Child c = new Child();
+		Child d = new Child();
+	}
+	
+	public static class Component {
+		@MagicInject Object leftMotor;
+		@MagicInject Object rightMotor;
+		@MagicInject Object gyro;
+		@MagicInject Object encoder;
+		@MagicInject Object motor;
+		@MagicInject Object solenoid;
+		
+		Object notInjected;
+	}
+	
+	public static class Child {
+		@MagicInject Object leftMotor;
+		@MagicInject Object rightMotor;
+		@MagicInject Object gyro;
+		@MagicInject Object encoder;
+	}
+	
+	/** Number of objects injected per invocation */
+	@Param({"10", "100", "1000"})
+	int m_count;
+	
+	Robot[] m_robots;
+	Component[] m_components;
+	InjectionRegistry m_registry;
+	
+	@Setup
+	public void setup() {
+		m_robots = new Robot[m_count];
+		m_components = new Component[m_count];
+		
+		for (int i = 0; i < m_count; i++) {
+			m_robots[i] = new Robot();
+			m_components[i] = new Component();
+		}
+		
+		m_registry = new InjectionRegistry(m_robots[0], Object.class);
+	}
+	
+	@Benchmark
+	public Object inject() {
+		for (Component c: m_components) {
+			m_registry.inject(c, "shooter_");
+		}
+		return m_components;
+	}
+	
+	@Benchmark
+	public Object robotInit() {
+		InjectionRegistry registry = null;
+		for (Robot robot: m_robots) {
+			registry = new InjectionRegistry(robot, Object.class);
+			registry.injectChildren();
+		}
+		return registry;
+	}
+	
+	@Benchmark
+	public Object registry() {
+		InjectionRegistry registry = new InjectionRegistry(m_robots[0], Object.class);
+		for (Component c: m_components) {
+			registry.inject(c, "shooter_");
+		}
+		return registry;
+	}
+}
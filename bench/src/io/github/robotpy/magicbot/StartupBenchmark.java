@@ -0,0 +1,112 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.robotpy.magicbot.sm.StateMachineBenchmark;
+
+/**
+ * Measures the time from creating a robot's objects to the first execute
+ * in a fresh JVM, with and without a class data sharing archive that was
+ * created by running main(). Run this with 'ant bench-startup'.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+public class StartupBenchmark {
+	
+	static final String ARCHIVE = "build/bench/startup.jsa";
+	
+	public static class Drive implements MagicComponent {
+		@MagicInject Object leftMotor;
+		@MagicInject Object rightMotor;
+		@MagicInject StateMachineBenchmark.BenchSm intake;
+		
+		@Override
+		public void execute() {
+			intake.engage();
+		}
+	}
+	
+	public static class Robot {
+		Object leftMotor = new Object();
+		Object rightMotor = new Object();
+		
+		StateMachineBenchmark.BenchSm intake = new StateMachineBenchmark.BenchSm();
+		StateMachineBenchmark.BenchSm shooter = new StateMachineBenchmark.BenchSm();
+		Drive drive = new Drive();
+	}
+	
+	/**
+	 * Does what robotInit does, then enables the robot and executes once
+	 */
+	static Object firstExecute() {
+		Robot robot = new Robot();
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.add(robot.drive);
+			scheduler.add(robot.intake);
+			scheduler.add(robot.shooter);
+			
+			InjectionRegistry registry = new InjectionRegistry(robot, Object.class);
+			for (MagicComponent component: scheduler.getComponents()) {
+				registry.inject(component, null);
+			}
+			registry.injectChildren();
+			
+			for (MagicComponent component: scheduler.getComponents()) {
+				component.setup();
+			}
+			
+			scheduler.start(1, 0.020);
+			scheduler.enable();
+			scheduler.execute();
+			scheduler.disable();
+		}
+		
+		return robot;
+	}
+	
+	@Benchmark
+	@Fork(20)
+	public Object withoutArchive() {
+		return firstExecute();
+	}
+	
+	@Benchmark
+	@Fork(value = 20, jvmArgsAppend = "-XX:SharedArchiveFile=" + ARCHIVE)
+	public Object withArchive() {
+		return firstExecute();
+	}
+	
+	/**
+	 * Training run used to create the archive
+	 */
+	public static void main(String[] args) {
+		firstExecute();
+	}
+}
@@ -0,0 +1,136 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of StateMachine.execute when staying in a state, when
+ * transitioning on every tick, and of constructing a state machine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateMachineBenchmark {
+	
+	public static class BenchSm extends StateMachine {
+		
+		int calls = 0;
+		boolean useHandle = false;
+		
+		final StateHandle m_ping = getStateHandle("ping");
+		final StateHandle m_pong = getStateHandle("pong");
+		
+		@io.github.robotpy.magicbot.sm.State(first=true)
+		void idle(double tm, boolean initialCall) {
+			calls += 1;
+		}
+		
+		@io.github.robotpy.magicbot.sm.State
+		void ping() {
+			calls += 1;
+			if (useHandle) {
+				nextState(m_pong);
+			} else {
+				nextState("pong");
+			}
+		}
+		
+		@io.github.robotpy.magicbot.sm.State
+		void pong() {
+			calls += 1;
+			if (useHandle) {
+				nextState(m_ping);
+			} else {
+				nextState("ping");
+			}
+		}
+		
+		@TimedState(duration=1000, nextState="idle")
+		void timed(double tm) {
+			calls += 1;
+		}
+	}
+	
+	BenchSm m_idle;
+	BenchSm m_timed;
+	BenchSm m_byName;
+	BenchSm m_byHandle;
+	
+	@Setup
+	public void setup() {
+		m_idle = new BenchSm();
+		m_timed = new BenchSm();
+		m_byName = new BenchSm();
+		m_byHandle = new BenchSm();
+		m_byHandle.useHandle = true;
+	}
+	
+	/** Staying in an untimed state */
+	@Benchmark
+	public int dispatch() {
+		m_idle.engage("idle");
+		m_idle.execute();
+		return m_idle.calls;
+	}
+	
+	/** Staying in a timed state, which also checks the clock */
+	@Benchmark
+	public int dispatchTimed() {
+		m_timed.engage("timed");
+		m_timed.execute();
+		return m_timed.calls;
+	}
+	
+	/** Transitioning on every tick, looking states up by name */
+	@Benchmark
+	public int transitionByName() {
+		m_byName.engage("ping");
+		m_byName.execute();
+		return m_byName.calls;
+	}
+	
+	/** Transitioning on every tick using StateHandles */
+	@Benchmark
+	public int transitionByHandle() {
+		m_byHandle.engage("ping");
+		m_byHandle.execute();
+		return m_byHandle.calls;
+	}
+	
+	/** Finding and linking all of the states */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public StateMachine construction() {
+		return new BenchSm();
+	}
+}
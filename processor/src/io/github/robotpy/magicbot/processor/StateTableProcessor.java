@@ -0,0 +1,651 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a StateTable for each StateMachine at compile time, so that
+ * the StateMachine constructor doesn't need to scan the class for states.
+ *
+ * Mistakes that the StateMachine constructor would only find at runtime
+ * (a bad nextState, multiple first states, no first state, etc) are
+ * reported as compile errors instead.
+ *
+ * For each state, the generated class also contains a String constant
+ * with the name of the state (``driveForward`` becomes ``DRIVE_FORWARD``)
+ * that can be passed to nextState and engage.
+ */
+public class StateTableProcessor extends AbstractProcessor {
+
+	static final String PACKAGE = "io.github.robotpy.magicbot.sm";
+	static final String STATE = PACKAGE + ".State";
+	static final String TIMED_STATE = PACKAGE + ".TimedState";
+	static final String DEFAULT_STATE = PACKAGE + ".DefaultState";
+	static final String COMPOSITE_STATE = PACKAGE + ".CompositeState";
+	static final String PARALLEL_STATE = PACKAGE + ".ParallelState";
+	static final String ON_EVENT = PACKAGE + ".OnEvent";
+	static final String ON_EVENTS = PACKAGE + ".OnEvents";
+	static final String STATE_MACHINE = PACKAGE + ".StateMachine";
+
+	/** Information about a single state method */
+	static class StateInfo {
+		ExecutableElement method;
+		String name;
+		List<String> parameterTypes = new ArrayList<>();
+
+		boolean isDefault;
+		Double duration;
+		String nextState;
+		AnnotationMirror annotation;
+
+		boolean first;
+		boolean mustFinish;
+		boolean composite;
+		List<String> regions;
+
+		// @OnEvent transitions
+		List<String> eventTypes = new ArrayList<>();
+		List<String> eventStates = new ArrayList<>();
+		List<AnnotationMirror> eventAnnotations = new ArrayList<>();
+	}
+
+	private final Set<String> m_generated = new HashSet<>();
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		Set<String> types = new HashSet<>();
+		types.add(STATE);
+		types.add(TIMED_STATE);
+		types.add(DEFAULT_STATE);
+		types.add(COMPOSITE_STATE);
+		types.add(PARALLEL_STATE);
+		types.add(ON_EVENT);
+		types.add(ON_EVENTS);
+		return types;
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+
+		TypeElement stateMachine = processingEnv.getElementUtils().getTypeElement(STATE_MACHINE);
+		if (stateMachine == null) {
+			return false;
+		}
+
+		// find each class that has states
+		Set<TypeElement> machines = new LinkedHashSet<>();
+		for (TypeElement annotation: annotations) {
+			for (Element e: roundEnv.getElementsAnnotatedWith(annotation)) {
+				Element owner = e.getEnclosingElement();
+				if (e.getKind() == ElementKind.METHOD && owner instanceof TypeElement) {
+					machines.add((TypeElement)owner);
+				}
+			}
+		}
+
+		for (TypeElement machine: machines) {
+
+			// states in classes that aren't a StateMachine don't do anything
+			if (!processingEnv.getTypeUtils().isSubtype(erasure(machine), erasure(stateMachine))) {
+				continue;
+			}
+
+			// states in local or anonymous classes can't be found by name
+			if (!isNamed(machine)) {
+				continue;
+			}
+
+			String tableName = tableName(machine);
+			if (m_generated.contains(tableName)) {
+				continue;
+			}
+
+			List<StateInfo> states = new ArrayList<>();
+			boolean ok = collectStates(machine, states);
+			ok = validate(machine, states) && ok;
+
+			if (ok) {
+				m_generated.add(tableName);
+				generate(machine, tableName, states);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Finds the states of a class in declaration order
+	 *
+	 * @return false if there were errors
+	 */
+	private boolean collectStates(TypeElement machine, List<StateInfo> states) {
+
+		boolean ok = true;
+
+		for (Element e: machine.getEnclosedElements()) {
+			if (e.getKind() != ElementKind.METHOD) {
+				continue;
+			}
+
+			ExecutableElement method = (ExecutableElement)e;
+			AnnotationMirror stateAnn = findAnnotation(method, STATE);
+			AnnotationMirror tsAnn = findAnnotation(method, TIMED_STATE);
+			AnnotationMirror dfAnn = findAnnotation(method, DEFAULT_STATE);
+			AnnotationMirror csAnn = findAnnotation(method, COMPOSITE_STATE);
+			AnnotationMirror psAnn = findAnnotation(method, PARALLEL_STATE);
+
+			StateInfo state = new StateInfo();
+			state.method = method;
+			state.name = method.getSimpleName().toString();
+			collectEvents(state);
+
+			if (stateAnn == null && tsAnn == null && dfAnn == null && csAnn == null && psAnn == null) {
+				if (!state.eventAnnotations.isEmpty()) {
+					error(method, "@OnEvent method '" + state.name + "' is not a state");
+					ok = false;
+				}
+				continue;
+			}
+
+			if (csAnn != null) {
+				if (stateAnn != null || tsAnn != null || dfAnn != null || psAnn != null) {
+					error(method, "Cannot mark a function with @CompositeState and another state annotation!");
+					ok = false;
+					continue;
+				}
+
+				state.annotation = csAnn;
+				state.composite = true;
+				state.nextState = (String)value(csAnn, "nextState");
+				state.first = (Boolean)value(csAnn, "first");
+				state.mustFinish = (Boolean)value(csAnn, "mustFinish");
+
+				if (state.nextState.isEmpty()) {
+					state.nextState = null;
+				}
+
+				if (!checkComposite(state)) {
+					ok = false;
+				}
+
+				states.add(state);
+				continue;
+			}
+
+			if (psAnn != null) {
+				if (stateAnn != null || tsAnn != null || dfAnn != null) {
+					error(method, "Cannot mark a function with @ParallelState and another state annotation!");
+					ok = false;
+					continue;
+				}
+
+				state.annotation = psAnn;
+				state.nextState = (String)value(psAnn, "nextState");
+				state.first = (Boolean)value(psAnn, "first");
+				state.mustFinish = (Boolean)value(psAnn, "mustFinish");
+
+				state.regions = new ArrayList<>();
+				for (Object region: (List<?>)value(psAnn, "regions")) {
+					state.regions.add((String)((AnnotationValue)region).getValue());
+				}
+
+				if (state.nextState.isEmpty()) {
+					state.nextState = null;
+				}
+
+			} else if (stateAnn != null && tsAnn != null) {
+				error(method, "Cannot mark a function with @State and @TimedState!");
+				ok = false;
+				continue;
+
+			} else if (stateAnn != null) {
+				state.annotation = stateAnn;
+				state.first = (Boolean)value(stateAnn, "first");
+				state.mustFinish = (Boolean)value(stateAnn, "mustFinish");
+
+			} else if (tsAnn != null) {
+				state.annotation = tsAnn;
+				state.duration = (Double)value(tsAnn, "duration");
+				state.nextState = (String)value(tsAnn, "nextState");
+				state.first = (Boolean)value(tsAnn, "first");
+				state.mustFinish = (Boolean)value(tsAnn, "mustFinish");
+
+				if (state.duration <= 0.0) {
+					error(method, tsAnn, "Must specify positive duration for @TimedState");
+					ok = false;
+				}
+
+				if (state.nextState.isEmpty()) {
+					state.nextState = null;
+				}
+
+			} else {
+				state.annotation = dfAnn;
+				state.isDefault = true;
+				state.mustFinish = true;
+			}
+
+			if (!checkParameters(state)) {
+				ok = false;
+			}
+
+			states.add(state);
+		}
+
+		return ok;
+	}
+
+	/**
+	 * Finds the @OnEvent annotations of a method, which are inside of an
+	 * @OnEvents if there is more than one
+	 */
+	private void collectEvents(StateInfo state) {
+
+		List<AnnotationMirror> events = new ArrayList<>();
+
+		AnnotationMirror single = findAnnotation(state.method, ON_EVENT);
+		if (single != null) {
+			events.add(single);
+		}
+
+		AnnotationMirror container = findAnnotation(state.method, ON_EVENTS);
+		if (container != null) {
+			for (Object event: (List<?>)value(container, "value")) {
+				events.add((AnnotationMirror)((AnnotationValue)event).getValue());
+			}
+		}
+
+		for (AnnotationMirror event: events) {
+			TypeMirror type = processingEnv.getTypeUtils().erasure((TypeMirror)value(event, "type"));
+			state.eventTypes.add(type.toString());
+			state.eventStates.add((String)value(event, "nextState"));
+			state.eventAnnotations.add(event);
+		}
+	}
+
+	private boolean checkComposite(StateInfo state) {
+
+		TypeElement stateMachine = processingEnv.getElementUtils().getTypeElement(STATE_MACHINE);
+		TypeMirror returnType = processingEnv.getTypeUtils().erasure(state.method.getReturnType());
+
+		if (!state.method.getParameters().isEmpty() ||
+			!processingEnv.getTypeUtils().isAssignable(returnType, erasure(stateMachine))) {
+			error(state.method, "@CompositeState method '" + state.name + "' must take no parameters and return a StateMachine");
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean checkParameters(StateInfo state) {
+
+		List<? extends VariableElement> params = state.method.getParameters();
+		if (params.size() > 2) {
+			error(state.method, "@State method '" + state.name + "' has invalid parameters");
+			return false;
+		}
+
+		for (int i = 0; i < params.size(); i++) {
+			TypeMirror type = params.get(i).asType();
+			boolean isTime = isType(type, TypeKind.DOUBLE, "java.lang.Double");
+			boolean isInitial = isType(type, TypeKind.BOOLEAN, "java.lang.Boolean");
+
+			if ((params.size() == 1 && !isTime && !isInitial) ||
+				(params.size() == 2 && i == 0 && !isTime) ||
+				(params.size() == 2 && i == 1 && !isInitial)) {
+				error(params.get(i), "@State method '" + state.name + "' has invalid parameter type " + type);
+				return false;
+			}
+
+			if (type.getKind().isPrimitive()) {
+				state.parameterTypes.add(type.toString());
+			} else {
+				state.parameterTypes.add(isTime ? "java.lang.Double" : "java.lang.Boolean");
+			}
+		}
+
+		return true;
+	}
+
+	private boolean validate(TypeElement machine, List<StateInfo> states) {
+
+		boolean ok = true;
+		StateInfo first = null;
+		StateInfo defaultState = null;
+
+		Map<String, StateInfo> names = new HashMap<>();
+		for (StateInfo state: states) {
+			names.put(state.name, state);
+		}
+
+		for (StateInfo state: states) {
+			if (state.first) {
+				if (first != null) {
+					error(state.method, state.annotation, "Multiple states were specified as the first state! (also '" + first.name + "')");
+					ok = false;
+				}
+				first = state;
+			}
+
+			if (state.isDefault) {
+				if (defaultState != null) {
+					error(state.method, state.annotation, "Multiple states were specified as the default state! (also '" + defaultState.name + "')");
+					ok = false;
+				}
+				defaultState = state;
+			}
+
+			if (state.nextState != null && !names.containsKey(state.nextState)) {
+				error(state.method, state.annotation, "Invalid state '" + state.nextState + "' specified as nextState");
+				ok = false;
+			}
+
+			for (int i = 0; i < state.eventStates.size(); i++) {
+				if (!names.containsKey(state.eventStates.get(i))) {
+					error(state.method, state.eventAnnotations.get(i), "Invalid state '" + state.eventStates.get(i) + "' specified as nextState");
+					ok = false;
+				}
+			}
+
+			if (state.regions != null) {
+				if (state.regions.isEmpty()) {
+					error(state.method, state.annotation, "@ParallelState '" + state.name + "' must have at least one region");
+					ok = false;
+				}
+
+				for (String region: state.regions) {
+					StateInfo regionState = names.get(region);
+					if (regionState == null) {
+						error(state.method, state.annotation, "Invalid state '" + region + "' specified as a region");
+						ok = false;
+					} else if (regionState.composite || regionState.isDefault || regionState.regions != null) {
+						error(state.method, state.annotation, "State '" + region + "' cannot be a region of @ParallelState '" + state.name + "'");
+						ok = false;
+					}
+				}
+			}
+		}
+
+		if (first == null) {
+			error(machine, "Starting state not defined! Set first=true on one of the states");
+			ok = false;
+		}
+
+		return ok;
+	}
+
+	private void generate(TypeElement machine, String tableName, List<StateInfo> states) {
+
+		String pkg = processingEnv.getElementUtils().getPackageOf(machine).getQualifiedName().toString();
+		String simpleName = tableName.substring(tableName.lastIndexOf('.') + 1);
+		String machineType = erasure(machine).toString();
+		boolean accessible = isAccessible(machine);
+
+		try (PrintWriter w = new PrintWriter(processingEnv.getFiler().createSourceFile(tableName, machine).openWriter())) {
+
+			if (!pkg.isEmpty()) {
+				w.println("package " + pkg + ";");
+				w.println();
+			}
+
+			w.println("/**");
+			w.println(" * State table for {@link " + machineType + "}");
+			w.println(" *");
+			w.println(" * Generated by the Magicbot annotation processor, do not edit");
+			w.println(" */");
+			w.println("@SuppressWarnings({\"rawtypes\", \"unchecked\"})");
+			w.println("public final class " + simpleName + " implements " + PACKAGE + ".StateTable {");
+			w.println();
+
+			// state name constants
+			Map<String, String> constants = new HashMap<>();
+			for (StateInfo state: states) {
+				String constant = constantName(state.name);
+				if (constants.containsKey(constant)) {
+					processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+						"States '" + state.name + "' and '" + constants.get(constant) +
+						"' have the same constant name " + constant + ", skipping it", state.method);
+					constants.put(constant, null);
+				} else {
+					constants.put(constant, state.name);
+				}
+			}
+
+			for (StateInfo state: states) {
+				String constant = constantName(state.name);
+				if (constants.get(constant) != null) {
+					w.println("\tpublic static final String " + constant + " = \"" + state.name + "\";");
+				}
+			}
+
+			w.println();
+			w.println("\tprivate static final Entry[] STATES = {");
+			for (StateInfo state: states) {
+				w.println("\t\tnew Entry(\"" + state.name + "\", " + classArray(state.parameterTypes) + ", " +
+						  state.isDefault + ", " +
+						  (state.duration == null ? "Double.MAX_VALUE" : String.valueOf(state.duration)) + ", " +
+						  (state.nextState == null ? "null" : "\"" + state.nextState + "\"") + ", " +
+						  state.first + ", " + state.mustFinish + ", " + state.composite + ", " +
+						  stringArray(state.regions) +
+						  (state.eventTypes.isEmpty() ? "" :
+						   ", " + classArray(state.eventTypes) + ", " + stringArray(state.eventStates)) + "),");
+			}
+			w.println("\t};");
+			w.println();
+
+			w.println("\t@Override");
+			w.println("\tpublic Entry[] states() {");
+			w.println("\t\treturn STATES;");
+			w.println("\t}");
+			w.println();
+
+			w.println("\t@Override");
+			w.println("\tpublic " + PACKAGE + ".StateMachine.StateMethod bind(" + PACKAGE + ".StateMachine machine, int index) {");
+			if (accessible) {
+				w.println("\t\tfinal " + machineType + " m = (" + machineType + ")machine;");
+				w.println("\t\tswitch (index) {");
+				for (int i = 0; i < states.size(); i++) {
+					StateInfo state = states.get(i);
+					if (!state.composite && !state.method.getModifiers().contains(Modifier.PRIVATE)) {
+						w.println("\t\tcase " + i + ": return (stateTime, initialCall) -> m." + state.name + "(" + arguments(state) + ");");
+					}
+				}
+				w.println("\t\tdefault: return null;");
+				w.println("\t\t}");
+			} else {
+				w.println("\t\treturn null;");
+			}
+			w.println("\t}");
+
+			// composite states get their child state machine from the method
+			boolean hasComposite = false;
+			for (StateInfo state: states) {
+				hasComposite |= state.composite;
+			}
+
+			if (accessible && hasComposite) {
+				w.println();
+				w.println("\t@Override");
+				w.println("\tpublic " + PACKAGE + ".StateMachine child(" + PACKAGE + ".StateMachine machine, int index) {");
+				w.println("\t\tfinal " + machineType + " m = (" + machineType + ")machine;");
+				w.println("\t\tswitch (index) {");
+				for (int i = 0; i < states.size(); i++) {
+					StateInfo state = states.get(i);
+					if (state.composite && !state.method.getModifiers().contains(Modifier.PRIVATE)) {
+						w.println("\t\tcase " + i + ": return m." + state.name + "();");
+					}
+				}
+				w.println("\t\tdefault: return null;");
+				w.println("\t\t}");
+				w.println("\t}");
+			}
+
+			w.println("}");
+
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + tableName + ": " + e, machine);
+		}
+	}
+
+	//
+	// Utility functions
+	//
+
+	/**
+	 * Must be kept in sync with StateTables.tableName
+	 */
+	private String tableName(TypeElement machine) {
+		String binaryName = processingEnv.getElementUtils().getBinaryName(machine).toString();
+		int dot = binaryName.lastIndexOf('.');
+		return binaryName.substring(0, dot + 1) + binaryName.substring(dot + 1).replace('$', '_') + "_StateTable";
+	}
+
+	static String constantName(String name) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(name.charAt(i - 1)) && name.charAt(i - 1) != '_') {
+				sb.append('_');
+			}
+			sb.append(Character.toUpperCase(c));
+		}
+		return sb.toString();
+	}
+
+	private static String classArray(List<String> types) {
+		StringBuilder sb = new StringBuilder("new Class<?>[] {");
+		for (int i = 0; i < types.size(); i++) {
+			sb.append(i == 0 ? "" : ", ").append(types.get(i)).append(".class");
+		}
+		return sb.append("}").toString();
+	}
+
+	private static String stringArray(List<String> values) {
+		if (values == null) {
+			return "null";
+		}
+
+		StringBuilder sb = new StringBuilder("new String[] {");
+		for (int i = 0; i < values.size(); i++) {
+			sb.append(i == 0 ? "" : ", ").append('"').append(values.get(i)).append('"');
+		}
+		return sb.append("}").toString();
+	}
+
+	private static String arguments(StateInfo state) {
+		List<? extends VariableElement> params = state.method.getParameters();
+		if (params.size() == 2) {
+			return "stateTime, initialCall";
+		} else if (params.size() == 1) {
+			TypeMirror type = params.get(0).asType();
+			return isType(type, TypeKind.DOUBLE, "java.lang.Double") ? "stateTime" : "initialCall";
+		}
+		return "";
+	}
+
+	private static boolean isType(TypeMirror type, TypeKind primitive, String boxed) {
+		return type.getKind() == primitive || type.toString().equals(boxed);
+	}
+
+	/**
+	 * @return true if the generated code (in the same package) can refer to the class
+	 */
+	private static boolean isAccessible(TypeElement type) {
+		Element e = type;
+		while (e instanceof TypeElement) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)) {
+				return false;
+			}
+			e = e.getEnclosingElement();
+		}
+		return e instanceof PackageElement;
+	}
+
+	private static boolean isNamed(TypeElement type) {
+		Element e = type;
+		while (e instanceof TypeElement) {
+			NestingKind kind = ((TypeElement)e).getNestingKind();
+			if (kind != NestingKind.TOP_LEVEL && kind != NestingKind.MEMBER) {
+				return false;
+			}
+			e = e.getEnclosingElement();
+		}
+		return true;
+	}
+
+	private TypeMirror erasure(TypeElement type) {
+		return processingEnv.getTypeUtils().erasure(type.asType());
+	}
+
+	private static AnnotationMirror findAnnotation(Element e, String name) {
+		for (AnnotationMirror mirror: e.getAnnotationMirrors()) {
+			if (((TypeElement)mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) {
+				return mirror;
+			}
+		}
+		return null;
+	}
+
+	private Object value(AnnotationMirror mirror, String name) {
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry:
+				processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+			if (entry.getKey().getSimpleName().contentEquals(name)) {
+				return entry.getValue().getValue();
+			}
+		}
+		throw new IllegalStateException("Annotation " + mirror + " has no value " + name);
+	}
+
+	private void error(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+	}
+
+	private void error(Element e, AnnotationMirror a, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e, a);
+	}
+}
@@ -0,0 +1,216 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Executes a component on its own thread while the robot is enabled, so
+ * that a component that blocks (for example, on a camera or a serial port)
+ * doesn't stall the control loop.
+ *
+ * A virtual thread is used when the JVM supports them, otherwise a daemon
+ * thread is used.
+ *
+ * TimingStats aren't threadsafe, so the component's thread doesn't record
+ * its timing directly. The samples are queued, and collectTimings records
+ * them on the control loop's thread.
+ */
+final class AsyncComponent {
+	
+	private final MagicComponent m_component;
+	private final long m_period;
+	
+	// used in timing keys and in the thread's name
+	String name;
+	
+	// the thread that executes the component, or null when stopped. A
+	// thread that is no longer m_thread stops as soon as execute returns
+	private volatile Thread m_thread = null;
+	
+	/** How long stop waits for execute to return, in milliseconds */
+	static final long STOP_TIMEOUT = 500;
+	
+	private final AtomicReference<Throwable> m_error = new AtomicReference<>();
+	
+	TimingStats timing = null;
+	
+	// samples that haven't been recorded in timing yet. Only the component's
+	// thread adds samples and only the control loop removes them.
+	private static final int SAMPLE_CAPACITY = 64;
+	private final long[] m_samples = new long[SAMPLE_CAPACITY];
+	private final AtomicLong m_sampleTail = new AtomicLong();
+	private final AtomicLong m_sampleHead = new AtomicLong();
+	
+	/**
+	 * @param component  Component to execute
+	 * @param period     How often to execute the component in seconds, or 0
+	 *                   to execute it again as soon as it returns
+	 */
+	AsyncComponent(MagicComponent component, double period) {
+		m_component = component;
+		m_period = Math.round(period * 1e9);
+		name = component.getClass().getSimpleName();
+	}
+	
+	MagicComponent getComponent() {
+		return m_component;
+	}
+	
+	/**
+	 * Starts executing the component. onEnabled must already have been called.
+	 */
+	void start() {
+		if (m_thread != null) {
+			throw new IllegalStateException(name + " is already running");
+		}
+		
+		Thread thread = newThread(this::run, "magicbot-async-" + name);
+		m_thread = thread;
+		thread.start();
+	}
+	
+	/**
+	 * Stops executing the component, and waits for the current call to
+	 * execute to return. The thread is interrupted, so execute should give
+	 * up on any blocking I/O when that happens. If execute doesn't return
+	 * within STOP_TIMEOUT, a warning is printed and the thread is left
+	 * behind; it exits when execute eventually returns.
+	 */
+	void stop() {
+		Thread thread = m_thread;
+		if (thread == null) {
+			return;
+		}
+		
+		m_thread = null;
+		thread.interrupt();
+		
+		boolean interrupted = false;
+		long deadline = System.nanoTime() + STOP_TIMEOUT * 1000000L;
+		while (thread.isAlive()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				System.err.println("Warning: " + name + ".execute() did not return within " +
+								   STOP_TIMEOUT + "ms of being disabled, leaving it running");
+				break;
+			}
+			
+			try {
+				thread.join(Math.max(1, remaining / 1000000L));
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Rethrows the exception that stopped the component, if any
+	 */
+	void checkError() {
+		Throwable error = m_error.getAndSet(null);
+		if (error == null) {
+			return;
+		} else if (error instanceof RuntimeException) {
+			throw (RuntimeException)error;
+		} else if (error instanceof Error) {
+			throw (Error)error;
+		}
+		throw new RuntimeException(error);
+	}
+	
+	/**
+	 * Records the timing samples queued by the component's thread. Call
+	 * this from the thread that reads timing.
+	 */
+	void collectTimings() {
+		long head = m_sampleHead.get();
+		long tail = m_sampleTail.get();
+		if (head == tail) {
+			return;
+		}
+		
+		for (long i = head; i < tail; i++) {
+			timing.record(m_samples[(int)i & (SAMPLE_CAPACITY - 1)]);
+		}
+		
+		// release the slots to the component's thread
+		m_sampleHead.lazySet(tail);
+	}
+	
+	private void queueSample(long nanos) {
+		long tail = m_sampleTail.get();
+		if (tail - m_sampleHead.get() >= SAMPLE_CAPACITY) {
+			// the control loop isn't keeping up, drop it
+			return;
+		}
+		
+		m_samples[(int)tail & (SAMPLE_CAPACITY - 1)] = nanos;
+		m_sampleTail.lazySet(tail + 1);
+	}
+	
+	private void run() {
+		// only used to wait, so don't bother spinning
+		JavaLoopTimer timer = new JavaLoopTimer(0);
+		long next = System.nanoTime();
+		Thread self = Thread.currentThread();
+		
+		try {
+			while (m_thread == self) {
+				long start = System.nanoTime();
+				m_component.execute();
+				
+				long now = System.nanoTime();
+				if (timing != null && m_thread == self) {
+					queueSample(now - start);
+				}
+				
+				// don't try to catch up after a slow call
+				next = Math.max(next + m_period, now);
+				timer.waitUntil(next);
+			}
+		} catch (Throwable t) {
+			if (m_thread == self) {
+				m_error.set(t);
+			}
+		}
+	}
+	
+	private static Thread newThread(Runnable runnable, String name) {
+		// Thread.ofVirtual().name(name).unstarted(runnable) on Java 21+
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+			
+			Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+			return (Thread)unstarted.invoke(builder, runnable);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// not supported by this JVM
+		}
+		
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,457 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import io.github.robotpy.magicbot.sm.AutonomousStateMachine;
+import io.github.robotpy.magicbot.sm.StateMachine;
+
+/**
+ * Runs many copies of an autonomous mode on virtual time, each with
+ * slightly different parameters, and summarizes what happened. This is
+ * useful for finding @TimedState durations that work reliably, or for
+ * finding out how sensitive an autonomous mode is to sensor noise.
+ *
+ *     AutonomousSweep sweep = new AutonomousSweep(trial -> {
+ *         TwoBall auto = new TwoBall();
+ *         auto.setStateDuration("spinUp", trial.uniform("spinUp", 1.0, 2.5));
+ *         trial.provide("shooter", new FakeShooter(trial.getRandom()));
+ *         return auto;
+ *     });
+ *     sweep.setTrials(10000);
+ *     System.out.println(sweep.run());
+ *
+ * Each trial creates its own autonomous mode, components and random
+ * numbers, so trials are run in parallel on a ForkJoinPool. The factory
+ * must not share mutable objects between trials. A trial's random numbers
+ * only depend on the seed and the trial number, so the results of a
+ * sweep are repeatable.
+ */
+public final class AutonomousSweep {
+	
+	/**
+	 * Creates the autonomous mode for a trial
+	 */
+	@FunctionalInterface
+	public interface Factory {
+		public AutonomousStateMachine create(Trial trial);
+	}
+	
+	/**
+	 * Parameters of a single trial, given to the factory
+	 */
+	public static final class Trial {
+		private final int m_index;
+		private final Random m_random;
+		
+		private final Map<String, Object> m_components = new LinkedHashMap<>();
+		private final Map<String, Double> m_parameters = new LinkedHashMap<>();
+		private String m_startState = null;
+		
+		Trial(int index, Random random) {
+			m_index = index;
+			m_random = random;
+		}
+		
+		/**
+		 * @return number of this trial, starting at 0
+		 */
+		public int getIndex() {
+			return m_index;
+		}
+		
+		/**
+		 * @return random numbers for this trial only, such as for sensor noise
+		 */
+		public Random getRandom() {
+			return m_random;
+		}
+		
+		/**
+		 * @return a random number between min and max, which is recorded
+		 *         in the outcome as a parameter
+		 */
+		public double uniform(String name, double min, double max) {
+			return parameter(name, min + (max - min) * m_random.nextDouble());
+		}
+		
+		/**
+		 * @return a normally distributed random number, which is recorded
+		 *         in the outcome as a parameter
+		 */
+		public double gaussian(String name, double mean, double stddev) {
+			return parameter(name, mean + stddev * m_random.nextGaussian());
+		}
+		
+		/**
+		 * Records a parameter of this trial in its outcome
+		 *
+		 * @return value
+		 */
+		public double parameter(String name, double value) {
+			m_parameters.put(name, value);
+			return value;
+		}
+		
+		/**
+		 * Makes an object available for injection into the autonomous mode
+		 * and the other provided objects, like a variable of the robot
+		 * class. Provided MagicComponents are executed after the autonomous
+		 * mode, in the order they were provided.
+		 */
+		public void provide(String name, Object component) {
+			if (m_components.put(name, component) != null) {
+				throw new RuntimeException("'" + name + "' was already provided");
+			}
+		}
+		
+		/**
+		 * Starts the autonomous mode in a state other than its first state
+		 */
+		public void setStartState(String name) {
+			m_startState = name;
+		}
+	}
+	
+	/**
+	 * What happened in a single trial
+	 */
+	public static final class Outcome {
+		/** Number of the trial */
+		public final int index;
+		/** Parameters recorded by the trial */
+		public final Map<String, Double> parameters;
+		/** States in the order they were entered */
+		public final List<String> visited;
+		/** The last state that was entered, or null */
+		public final String finalState;
+		/** True if the autonomous mode finished before the time ran out */
+		public final boolean finished;
+		/** Time that the autonomous mode finished, or the sweep duration, in seconds */
+		public final double time;
+		/** Exception thrown by the trial, or null */
+		public final RuntimeException error;
+		
+		Outcome(int index, Map<String, Double> parameters, List<String> visited, boolean finished,
+				double time, RuntimeException error) {
+			this.index = index;
+			this.parameters = Collections.unmodifiableMap(parameters);
+			this.visited = Collections.unmodifiableList(visited);
+			this.finalState = visited.isEmpty() ? null : visited.get(visited.size() - 1);
+			this.finished = finished;
+			this.time = time;
+			this.error = error;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("trial %d: %s in %.3fs %s%s", index, finished ? "finished" : "timed out", time,
+								 visited, error == null ? "" : " " + error);
+		}
+	}
+	
+	/**
+	 * Outcomes of all of the trials of a sweep
+	 */
+	public static final class Summary {
+		private final List<Outcome> m_outcomes;
+		private final double[] m_times;
+		
+		Summary(Outcome[] outcomes) {
+			m_outcomes = Collections.unmodifiableList(Arrays.asList(outcomes));
+			
+			m_times = new double[outcomes.length];
+			for (int i = 0; i < outcomes.length; i++) {
+				m_times[i] = outcomes[i].time;
+			}
+			Arrays.sort(m_times);
+		}
+		
+		/**
+		 * @return outcome of each trial, ordered by trial number
+		 */
+		public List<Outcome> getOutcomes() {
+			return m_outcomes;
+		}
+		
+		public int getFinishedCount() {
+			int count = 0;
+			for (Outcome outcome: m_outcomes) {
+				if (outcome.finished) {
+					count += 1;
+				}
+			}
+			return count;
+		}
+		
+		public int getErrorCount() {
+			int count = 0;
+			for (Outcome outcome: m_outcomes) {
+				if (outcome.error != null) {
+					count += 1;
+				}
+			}
+			return count;
+		}
+		
+		/**
+		 * @param percentile  0 to 100
+		 * @return the time that the given percentage of trials took at
+		 *         most, in seconds
+		 */
+		public double getTime(double percentile) {
+			if (m_times.length == 0) {
+				return 0;
+			}
+			int i = (int)Math.ceil(percentile / 100.0 * m_times.length) - 1;
+			return m_times[Math.max(0, Math.min(m_times.length - 1, i))];
+		}
+		
+		public double getMeanTime() {
+			double sum = 0;
+			for (double time: m_times) {
+				sum += time;
+			}
+			return m_times.length == 0 ? 0 : sum / m_times.length;
+		}
+		
+		/**
+		 * @return number of trials that ended in each state
+		 */
+		public Map<String, Integer> getFinalStates() {
+			Map<String, Integer> counts = new TreeMap<>();
+			for (Outcome outcome: m_outcomes) {
+				counts.merge(String.valueOf(outcome.finalState), 1, Integer::sum);
+			}
+			return counts;
+		}
+		
+		/**
+		 * @return number of trials that entered each state at least once
+		 */
+		public Map<String, Integer> getVisitCounts() {
+			Map<String, Integer> counts = new TreeMap<>();
+			for (Outcome outcome: m_outcomes) {
+				for (String state: new HashSet<>(outcome.visited)) {
+					counts.merge(state, 1, Integer::sum);
+				}
+			}
+			return counts;
+		}
+		
+		@Override
+		public String toString() {
+			int trials = m_outcomes.size();
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%d trials: %d finished, %d errors%n", trials, getFinishedCount(), getErrorCount()));
+			sb.append(String.format("time: mean=%.3fs p50=%.3fs p90=%.3fs p99=%.3fs max=%.3fs%n",
+									getMeanTime(), getTime(50), getTime(90), getTime(99), getTime(100)));
+			
+			sb.append("final states:");
+			for (Map.Entry<String, Integer> e: getFinalStates().entrySet()) {
+				sb.append(String.format(" %s=%d", e.getKey(), e.getValue()));
+			}
+			
+			sb.append(String.format("%nvisited:"));
+			for (Map.Entry<String, Integer> e: getVisitCounts().entrySet()) {
+				sb.append(String.format(" %s=%.1f%%", e.getKey(), 100.0 * e.getValue() / trials));
+			}
+			return sb.append(String.format("%n")).toString();
+		}
+	}
+	
+	private final Factory m_factory;
+	
+	private int m_trials = 1000;
+	private double m_duration = 15.0;
+	private double m_period = 0.020;
+	private long m_seed = 0;
+	private int m_parallelism = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * @param factory  Creates the autonomous mode for each trial
+	 */
+	public AutonomousSweep(Factory factory) {
+		m_factory = factory;
+	}
+	
+	/**
+	 * @param trials  Number of times to run the autonomous mode
+	 */
+	public void setTrials(int trials) {
+		m_trials = trials;
+	}
+	
+	/**
+	 * @param duration  Maximum time that each trial runs for, in seconds
+	 */
+	public void setDuration(double duration) {
+		m_duration = duration;
+	}
+	
+	/**
+	 * @param period  Control loop period, in seconds
+	 */
+	public void setPeriod(double period) {
+		m_period = period;
+	}
+	
+	/**
+	 * @param seed  Seed for the random numbers of all of the trials
+	 */
+	public void setSeed(long seed) {
+		m_seed = seed;
+	}
+	
+	/**
+	 * @param parallelism  Number of threads to run trials on
+	 */
+	public void setParallelism(int parallelism) {
+		m_parallelism = parallelism;
+	}
+	
+	/**
+	 * Runs all of the trials
+	 */
+	public Summary run() {
+		Outcome[] outcomes = new Outcome[m_trials];
+		
+		ForkJoinPool pool = new ForkJoinPool(m_parallelism);
+		try {
+			pool.invoke(new Trials(outcomes, 0, m_trials));
+		} finally {
+			pool.shutdown();
+		}
+		
+		return new Summary(outcomes);
+	}
+	
+	private final class Trials extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Outcome[] m_outcomes;
+		private final int m_start;
+		private final int m_end;
+		
+		Trials(Outcome[] outcomes, int start, int end) {
+			m_outcomes = outcomes;
+			m_start = start;
+			m_end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if (m_end - m_start <= 4) {
+				for (int i = m_start; i < m_end; i++) {
+					m_outcomes[i] = runTrial(i);
+				}
+			} else {
+				int mid = (m_start + m_end) >>> 1;
+				invokeAll(new Trials(m_outcomes, m_start, mid), new Trials(m_outcomes, mid, m_end));
+			}
+		}
+	}
+	
+	Outcome runTrial(int index) {
+		Trial trial = new Trial(index, new Random(m_seed + index * 0x9E3779B97F4A7C15L));
+		VirtualLoopTimer timer = new VirtualLoopTimer();
+		
+		List<String> visited = new ArrayList<>();
+		long[] doneTime = {-1};
+		
+		try {
+			AutonomousStateMachine auto = m_factory.create(trial);
+			
+			InjectionRegistry registry = new InjectionRegistry(trial, Trial.class);
+			for (Map.Entry<String, Object> e: trial.m_components.entrySet()) {
+				registry.provide(e.getKey(), e.getValue());
+			}
+			registry.provide("clock", timer);
+			
+			List<MagicComponent> components = new ArrayList<>();
+			for (Object o: trial.m_components.values()) {
+				registry.inject(o, null);
+				if (o instanceof MagicComponent) {
+					components.add((MagicComponent)o);
+				}
+				if (o instanceof StateMachine) {
+					((StateMachine)o).setClock(timer);
+				}
+			}
+			registry.inject(auto, null);
+			
+			for (MagicComponent component: components) {
+				component.setup();
+			}
+			
+			auto.setClock(timer);
+			auto.addTransitionListener((machine, from, to, cause, timestamp, machineTime) -> {
+				if (to != null) {
+					visited.add(to.getName());
+				} else {
+					doneTime[0] = timestamp;
+				}
+			});
+			
+			for (MagicComponent component: components) {
+				component.onEnabled();
+			}
+			auto.onEnabled();
+			auto.m_verboseLogging = false;
+			
+			if (trial.m_startState != null) {
+				auto.engage(trial.m_startState, true);
+			}
+			
+			long end = Math.round(m_duration * 1e9);
+			long period = Math.round(m_period * 1e9);
+			
+			try {
+				while (timer.nanoTime() < end && doneTime[0] < 0) {
+					auto.autonomousPeriodic();
+					for (MagicComponent component: components) {
+						component.execute();
+					}
+					timer.advance(period);
+				}
+			} finally {
+				auto.onDisabled();
+				for (MagicComponent component: components) {
+					component.onDisabled();
+				}
+			}
+			
+		} catch (RuntimeException e) {
+			return new Outcome(index, trial.m_parameters, visited, false, timer.nanoTime() / 1e9, e);
+		}
+		
+		boolean finished = doneTime[0] >= 0 && doneTime[0] < Math.round(m_duration * 1e9);
+		double time = finished ? doneTime[0] / 1e9 : m_duration;
+		return new Outcome(index, trial.m_parameters, visited, finished, time, null);
+	}
+}
@@ -0,0 +1,579 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Keeps track of the components of a robot and executes them on each
+ * iteration of the control loop.
+ *
+ * By default, components are executed one at a time in the order that they
+ * were added. If more than one thread is requested, then components are
+ * grouped into levels using their declared dependencies: a component is
+ * only executed after all of the components that it depends on have
+ * finished. Components on the same level are executed in parallel by a
+ * fixed pool of worker threads, and the calling thread helps out.
+ *
+ * Workers spin for a short time waiting for the next level, and then park.
+ * The calling thread never waits for a worker to wake up: it claims
+ * components from the level itself, so a level that the workers are too
+ * slow to help with is simply executed inline. Even so, handing components
+ * to other threads costs a few microseconds per level, so this only pays
+ * off when components do a lot of work (see ControlLoopBenchmark).
+ *
+ * Components may also be executed at a slower rate than the control loop.
+ * A component's period is rounded to a whole number of control loop
+ * iterations, and components with the same period are staggered so that
+ * they don't all execute on the same iteration.
+ *
+ * Asynchronous components are not executed by the control loop at all;
+ * each one runs on its own thread while the robot is enabled.
+ */
+final class ComponentScheduler implements AutoCloseable {
+	
+	static final class Entry {
+		final MagicComponent component;
+		final MagicComponent[] dependsOn;
+		
+		// requested period in seconds, 0 to execute on every iteration
+		final double period;
+		
+		// execute every 'divider' iterations, starting at iteration 'offset'
+		int divider = 1;
+		int offset = 0;
+		int countdown = 1;
+		boolean due = true;
+		
+		// used in timing keys and in the match log
+		String name;
+		
+		TimingStats timing = null;
+		
+		MatchLog log = null;
+		int logId = -1;
+		
+		Entry(MagicComponent component, double period, MagicComponent[] dependsOn) {
+			this.component = component;
+			this.period = period;
+			this.dependsOn = dependsOn;
+			this.name = component.getClass().getSimpleName();
+		}
+	}
+	
+	private final List<Entry> m_entries = new ArrayList<>();
+	private final List<AsyncComponent> m_async = new ArrayList<>();
+	private final List<MagicComponent> m_components = new ArrayList<>();
+	
+	private boolean m_started = false;
+	
+	// how many times a waiting thread checks for work before parking
+	private static final int SPIN_LIMIT = 1 << 14;
+	
+	// parallel execution: indices of the entries at each level
+	private int[][] m_levels = null;
+	private Thread[] m_workers = null;
+	
+	// the level being executed: a generation that increases for each level
+	// in the high 32 bits, the index of the level in m_levels in the next
+	// 16 bits, and the next entry of the level to claim in the low 16 bits
+	private final AtomicLong m_cursor = new AtomicLong();
+	private long m_generation = 0;
+	
+	// entries of the current level that haven't finished executing
+	private final AtomicInteger m_remaining = new AtomicInteger();
+	
+	// set by a thread that is about to park, so that it gets unparked
+	private AtomicIntegerArray m_workerParked = null;
+	private volatile Thread m_caller = null;
+	private volatile boolean m_callerParked = false;
+	
+	private volatile boolean m_shutdown = false;
+	private final AtomicReference<Throwable> m_error = new AtomicReference<>();
+	
+	/**
+	 * Add a component to be executed on every iteration
+	 *
+	 * @param component  Component to add
+	 * @param dependsOn  Components that must be executed before this one
+	 */
+	void add(MagicComponent component, MagicComponent... dependsOn) {
+		add(component, 0, dependsOn);
+	}
+	
+	/**
+	 * Add a component to be executed
+	 *
+	 * @param component  Component to add
+	 * @param period     How often to execute the component in seconds, or 0
+	 *                   to execute it on every iteration
+	 * @param dependsOn  Components that must be executed before this one
+	 */
+	void add(MagicComponent component, double period, MagicComponent... dependsOn) {
+		if (m_started) {
+			throw new IllegalStateException("Cannot add components after the robot has been initialized");
+		}
+		
+		if (period < 0) {
+			throw new IllegalArgumentException("period must not be negative");
+		}
+		
+		m_entries.add(new Entry(component, period, dependsOn.clone()));
+		m_components.add(component);
+	}
+	
+	/**
+	 * Add a component to be executed on its own thread
+	 *
+	 * @param component  Component to add
+	 * @param period     How often to execute the component in seconds, or 0
+	 *                   to execute it again as soon as it returns
+	 */
+	void addAsync(MagicComponent component, double period) {
+		if (m_started) {
+			throw new IllegalStateException("Cannot add components after the robot has been initialized");
+		}
+		
+		if (period < 0) {
+			throw new IllegalArgumentException("period must not be negative");
+		}
+		
+		m_async.add(new AsyncComponent(component, period));
+		m_components.add(component);
+	}
+	
+	/**
+	 * @return all components, in the order they were added
+	 */
+	List<MagicComponent> getComponents() {
+		return Collections.unmodifiableList(m_components);
+	}
+	
+	/**
+	 * Groups the components so that each component comes after the
+	 * components that it depends on. Components in the same group don't
+	 * depend on each other.
+	 *
+	 * @return groups of components, in the order they should be set up
+	 */
+	List<List<MagicComponent>> getSetupOrder() {
+		int[] levels = computeLevels();
+		List<List<MagicComponent>> order = new ArrayList<>();
+		order.add(new ArrayList<>());
+		
+		for (int i = 0; i < levels.length; i++) {
+			while (order.size() <= levels[i]) {
+				order.add(new ArrayList<>());
+			}
+			order.get(levels[i]).add(m_entries.get(i).component);
+		}
+		
+		for (AsyncComponent async: m_async) {
+			order.get(0).add(async.getComponent());
+		}
+		
+		return order;
+	}
+	
+	/**
+	 * Names the components in timings and in the match log. By default,
+	 * components are named after their class.
+	 */
+	void setNames(Function<MagicComponent, String> names) {
+		for (Entry entry: m_entries) {
+			entry.name = names.apply(entry.component);
+		}
+		for (AsyncComponent async: m_async) {
+			async.name = names.apply(async.getComponent());
+		}
+	}
+	
+	/**
+	 * Record how long each component takes to execute
+	 */
+	void setTimings(LoopTimings timings) {
+		for (Entry entry: m_entries) {
+			entry.timing = timings.add(entry.name);
+		}
+		for (AsyncComponent async: m_async) {
+			async.timing = timings.add(async.name);
+		}
+	}
+	
+	/**
+	 * Record how long each component takes to execute in a match log
+	 */
+	void setMatchLog(MatchLog log) {
+		for (Entry entry: m_entries) {
+			entry.logId = log.getNameId(entry.name);
+			entry.log = log;
+		}
+	}
+	
+	/**
+	 * Called once all components have been added. Validates the
+	 * dependencies between components.
+	 *
+	 * @param threads     Number of threads to execute components with. If
+	 *                    less than 2, components are executed in the order
+	 *                    they were added on the calling thread.
+	 * @param loopPeriod  Period of the control loop in seconds
+	 */
+	void start(int threads, double loopPeriod) {
+		if (m_started) {
+			throw new IllegalStateException("Already started");
+		}
+		m_started = true;
+		
+		computeRates(loopPeriod);
+		int[] levels = computeLevels();
+		
+		if (threads < 2) {
+			return;
+		}
+		
+		if (m_entries.size() > 0xFFFF) {
+			throw new IllegalStateException("Too many components to execute in parallel");
+		}
+		
+		int maxLevel = -1;
+		for (int level: levels) {
+			maxLevel = Math.max(maxLevel, level);
+		}
+		
+		List<List<Integer>> byLevel = new ArrayList<>();
+		for (int i = 0; i <= maxLevel; i++) {
+			byLevel.add(new ArrayList<>());
+		}
+		for (int i = 0; i < levels.length; i++) {
+			byLevel.get(levels[i]).add(i);
+		}
+		
+		m_levels = new int[byLevel.size()][];
+		for (int i = 0; i < m_levels.length; i++) {
+			List<Integer> level = byLevel.get(i);
+			m_levels[i] = new int[level.size()];
+			for (int j = 0; j < level.size(); j++) {
+				m_levels[i][j] = level.get(j);
+			}
+		}
+		
+		// the calling thread is one of the threads
+		m_workers = new Thread[threads - 1];
+		m_workerParked = new AtomicIntegerArray(m_workers.length);
+		
+		for (int i = 0; i < m_workers.length; i++) {
+			final int index = i;
+			Thread worker = new Thread(() -> workerLoop(index), "magicbot-worker-" + (i + 1));
+			worker.setDaemon(true);
+			m_workers[i] = worker;
+			worker.start();
+		}
+	}
+	
+	private void computeRates(double loopPeriod) {
+		Map<Integer, Integer> perDivider = new HashMap<>();
+		
+		for (Entry entry: m_entries) {
+			entry.divider = (int)Math.max(1, Math.round(entry.period / loopPeriod));
+			
+			// stagger components that have the same rate
+			int n = perDivider.getOrDefault(entry.divider, 0);
+			perDivider.put(entry.divider, n + 1);
+			entry.offset = n % entry.divider;
+		}
+		
+		reset();
+	}
+	
+	/**
+	 * Start over at the first iteration
+	 */
+	private void reset() {
+		for (Entry entry: m_entries) {
+			entry.countdown = entry.offset + 1;
+		}
+	}
+	
+	/**
+	 * @return for each entry, the length of the longest chain of
+	 *         dependencies leading to it
+	 */
+	private int[] computeLevels() {
+		Map<MagicComponent, Integer> indices = new IdentityHashMap<>();
+		for (int i = 0; i < m_entries.size(); i++) {
+			indices.put(m_entries.get(i).component, i);
+		}
+		
+		// -1: not computed, -2: being computed
+		int[] levels = new int[m_entries.size()];
+		Arrays.fill(levels, -1);
+		
+		for (int i = 0; i < levels.length; i++) {
+			computeLevel(i, indices, levels);
+		}
+		
+		return levels;
+	}
+	
+	private int computeLevel(int i, Map<MagicComponent, Integer> indices, int[] levels) {
+		if (levels[i] == -2) {
+			throw new RuntimeException("Circular dependency involving component " + m_entries.get(i).component);
+		} else if (levels[i] >= 0) {
+			return levels[i];
+		}
+		
+		levels[i] = -2;
+		
+		int level = 0;
+		for (MagicComponent dep: m_entries.get(i).dependsOn) {
+			Integer depIndex = indices.get(dep);
+			if (depIndex == null && m_components.contains(dep)) {
+				throw new RuntimeException("Component " + m_entries.get(i).component +
+										   " cannot depend on asynchronous component " + dep);
+			} else if (depIndex == null) {
+				throw new RuntimeException("Component " + m_entries.get(i).component +
+										   " depends on " + dep + ", which was not added");
+			}
+			level = Math.max(level, computeLevel(depIndex, indices, levels) + 1);
+		}
+		
+		levels[i] = level;
+		return level;
+	}
+	
+	/**
+	 * Calls onEnabled on each component, in the order they were added,
+	 * and then starts the asynchronous components
+	 */
+	void enable() {
+		reset();
+		
+		for (MagicComponent c: m_components) {
+			c.onEnabled();
+		}
+		
+		for (AsyncComponent async: m_async) {
+			async.start();
+		}
+	}
+	
+	/**
+	 * Stops the asynchronous components, and then calls onDisabled on each
+	 * component in the order they were added
+	 */
+	void disable() {
+		for (AsyncComponent async: m_async) {
+			async.stop();
+		}
+		
+		for (MagicComponent c: m_components) {
+			c.onDisabled();
+		}
+	}
+	
+	/**
+	 * Executes each component that is due on this iteration
+	 */
+	void execute() {
+		
+		for (int i = 0; i < m_async.size(); i++) {
+			AsyncComponent async = m_async.get(i);
+			async.checkError();
+			if (async.timing != null) {
+				async.collectTimings();
+			}
+		}
+		
+		// decide which components are due before anything executes
+		for (int i = 0; i < m_entries.size(); i++) {
+			Entry entry = m_entries.get(i);
+			if (--entry.countdown == 0) {
+				entry.countdown = entry.divider;
+				entry.due = true;
+			} else {
+				entry.due = false;
+			}
+		}
+		
+		if (m_levels == null) {
+			for (int i = 0; i < m_entries.size(); i++) {
+				runEntry(m_entries.get(i));
+			}
+			return;
+		}
+		
+		m_caller = Thread.currentThread();
+		
+		for (int l = 0; l < m_levels.length; l++) {
+			int[] level = m_levels[l];
+			
+			// not worth waking up the workers for a single component
+			if (level.length == 1) {
+				runEntry(m_entries.get(level[0]));
+				continue;
+			}
+			
+			// release the workers, help them, then wait for them to finish
+			m_remaining.set(level.length);
+			m_generation += 1;
+			m_cursor.set((m_generation << 32) | ((long)l << 16));
+			
+			for (int i = 0; i < m_workers.length; i++) {
+				if (m_workerParked.get(i) != 0) {
+					LockSupport.unpark(m_workers[i]);
+				}
+			}
+			
+			runLevel(m_generation);
+			awaitLevel();
+			
+			Throwable error = m_error.getAndSet(null);
+			if (error != null) {
+				if (error instanceof RuntimeException) {
+					throw (RuntimeException)error;
+				} else if (error instanceof Error) {
+					throw (Error)error;
+				}
+				throw new RuntimeException(error);
+			}
+		}
+	}
+	
+	private void workerLoop(int index) {
+		long generation = 0;
+		int spins = 0;
+		
+		while (!m_shutdown) {
+			long next = m_cursor.get() >>> 32;
+			if (next != generation) {
+				generation = next;
+				spins = 0;
+				runLevel(generation);
+				
+			} else if (++spins > SPIN_LIMIT) {
+				// check again after saying that we're parked, so that a
+				// new level can't be missed
+				m_workerParked.set(index, 1);
+				if ((m_cursor.get() >>> 32) == generation && !m_shutdown) {
+					LockSupport.park(this);
+				}
+				m_workerParked.set(index, 0);
+			}
+		}
+	}
+	
+	/**
+	 * Executes entries of a level until there are none left to claim
+	 *
+	 * @param generation  Generation of the level. If the level has already
+	 *                    finished and the caller moved on, nothing happens.
+	 */
+	private void runLevel(long generation) {
+		while (true) {
+			long cursor = m_cursor.get();
+			if ((cursor >>> 32) != generation) {
+				return;
+			}
+			
+			int[] level = m_levels[(int)(cursor >>> 16) & 0xFFFF];
+			int i = (int)cursor & 0xFFFF;
+			if (i >= level.length) {
+				return;
+			}
+			
+			if (!m_cursor.compareAndSet(cursor, cursor + 1)) {
+				continue;
+			}
+			
+			try {
+				runEntry(m_entries.get(level[i]));
+			} catch (Throwable t) {
+				m_error.compareAndSet(null, t);
+			}
+			
+			if (m_remaining.decrementAndGet() == 0 && m_callerParked) {
+				LockSupport.unpark(m_caller);
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the workers to finish the entries of the level that they
+	 * claimed
+	 */
+	private void awaitLevel() {
+		int spins = 0;
+		while (m_remaining.get() != 0) {
+			if (++spins > SPIN_LIMIT) {
+				m_callerParked = true;
+				if (m_remaining.get() != 0) {
+					LockSupport.park(this);
+				}
+				m_callerParked = false;
+			}
+		}
+	}
+	
+	private static void runEntry(Entry entry) {
+		if (!entry.due) {
+			return;
+		} else if (entry.timing == null && entry.log == null) {
+			entry.component.execute();
+		} else {
+			long start = System.nanoTime();
+			entry.component.execute();
+			long elapsed = System.nanoTime() - start;
+			
+			if (entry.timing != null) {
+				entry.timing.record(elapsed);
+			}
+			if (entry.log != null) {
+				entry.log.writeTiming(entry.logId, elapsed);
+			}
+		}
+	}
+	
+	/**
+	 * Stops the worker threads and asynchronous components
+	 */
+	@Override
+	public void close() {
+		for (AsyncComponent async: m_async) {
+			async.stop();
+		}
+		
+		if (m_workers != null && !m_shutdown) {
+			m_shutdown = true;
+			for (Thread worker: m_workers) {
+				LockSupport.unpark(worker);
+			}
+		}
+	}
+}
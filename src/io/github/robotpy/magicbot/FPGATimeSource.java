@@ -0,0 +1,35 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import edu.wpi.first.wpilibj.RobotController;
+
+/**
+ * Uses the FPGA timestamp, which has microsecond resolution and is the same
+ * clock that the Notifier uses
+ */
+public final class FPGATimeSource implements TimeSource {
+	
+	public static final FPGATimeSource INSTANCE = new FPGATimeSource();
+	
+	private FPGATimeSource() {}
+
+	@Override
+	public long nanoTime() {
+		return RobotController.getFPGATime() * 1000L;
+	}
+}
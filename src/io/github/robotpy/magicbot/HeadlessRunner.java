@@ -0,0 +1,143 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+/**
+ * Runs a MagicRobotCore without a driver station, dashboard, FPGA or any
+ * of WPILib, on virtual time. The robot goes through the same disabled,
+ * autonomous and teleop code as it does on the field, but the control
+ * loop doesn't wait, so a 15 second autonomous mode finishes as soon as
+ * the code in it has run 750 times.
+ *
+ *     RobotCode robot = new RobotCode();
+ *     try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+ *         runner.disabled(1);
+ *         runner.autonomous("Two ball", 15);
+ *         assertEquals("done", robot.auto.getCurrentState());
+ *     }
+ *
+ * StateMachine components and autonomous modes are switched to the
+ * virtual time, and components can have it injected as a TimeSource
+ * named clock. Asynchronous components still run on their own threads,
+ * in real time.
+ *
+ * The robot is a MagicRobotCore rather than a MagicRobot, because
+ * constructing a MagicRobot starts WPILib and the HAL. Nothing here loads
+ * WPILib, so this works in CI and on machines without the WPILib native
+ * libraries.
+ *
+ * Each runner is independent, so many robots can be run at the same time
+ * on different threads.
+ */
+public class HeadlessRunner implements AutoCloseable {
+	
+	private final MagicRobotCore m_robot;
+	private final SimulatedEnvironment m_env;
+	private boolean m_initialized = false;
+	
+	public HeadlessRunner(MagicRobotCore robot) {
+		this(robot, new SimulatedEnvironment());
+	}
+	
+	public HeadlessRunner(MagicRobotCore robot, SimulatedEnvironment env) {
+		m_robot = robot;
+		m_env = env;
+		robot.setEnvironment(env);
+	}
+	
+	public MagicRobotCore getRobot() {
+		return m_robot;
+	}
+	
+	public SimulatedEnvironment getEnvironment() {
+		return m_env;
+	}
+	
+	/**
+	 * @return virtual time since the runner started, in seconds
+	 */
+	public double getTime() {
+		return m_env.getTimer().nanoTime() / 1e9;
+	}
+	
+	/**
+	 * Calls robotInit, if it hasn't been called yet
+	 */
+	public void init() {
+		if (!m_initialized) {
+			m_initialized = true;
+			m_robot.robotInit();
+		}
+	}
+	
+	/**
+	 * Runs the robot in disabled mode
+	 *
+	 * @param duration  Virtual time to run for, in seconds
+	 */
+	public void disabled(double duration) {
+		init();
+		m_env.setMode(SimulatedEnvironment.Mode.DISABLED, duration);
+		m_robot.disabled();
+	}
+	
+	/**
+	 * Runs an autonomous mode
+	 *
+	 * @param mode      Name of the autonomous mode, or null for the default
+	 * @param duration  Virtual time to run for, in seconds
+	 */
+	public void autonomous(String mode, double duration) {
+		init();
+		m_env.selectAutonomous(mode);
+		m_env.setMode(SimulatedEnvironment.Mode.AUTONOMOUS, duration);
+		m_robot.autonomous();
+	}
+	
+	/**
+	 * Runs the robot in teleop mode
+	 *
+	 * @param duration  Virtual time to run for, in seconds
+	 */
+	public void teleop(double duration) {
+		init();
+		m_env.setMode(SimulatedEnvironment.Mode.TELEOP, duration);
+		m_robot.operatorControl();
+	}
+	
+	/**
+	 * Runs a whole match: a moment of disabled, 15 seconds of autonomous,
+	 * and 135 seconds of teleop
+	 *
+	 * @param mode  Name of the autonomous mode, or null for the default
+	 */
+	public void match(String mode) {
+		disabled(1);
+		autonomous(mode, 15);
+		disabled(0);
+		teleop(135);
+		disabled(0);
+	}
+	
+	/**
+	 * Stops the robot's background threads
+	 */
+	@Override
+	public void close() {
+		m_robot.shutdown();
+	}
+}
@@ -0,0 +1,314 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the objects that a robot provides for injection, built once
+ * after createObjects has been called.
+ *
+ * Every field of the robot class and its superclasses (up to, but not
+ * including, the stop class) is a provider. Providers are indexed by
+ * name, and by every class and interface their declared type is
+ * assignable to, so that @MagicInject fields can be resolved with a
+ * couple of map lookups:
+ *
+ * - If @MagicInject has a value, the provider with that name is used
+ * - Otherwise, a provider with the same name as the field is used (or
+ *   the name prefixed with the name of the object being injected). Its
+ *   value must be an instance of the field's type, just like when it is
+ *   set by reflection, but its declared type doesn't matter.
+ * - Otherwise, the only provider whose declared type is assignable to the
+ *   field is used. If there is more than one, an error is raised.
+ *
+ * Once built, a registry may be used from several threads at once.
+ */
+final class InjectionRegistry {
+	
+	private static final class Provider {
+		final String name;
+		final Class<?> type;
+		final Object value;
+		final boolean isField;
+		
+		Provider(String name, Class<?> type, Object value, boolean isField) {
+			this.name = name;
+			this.type = type;
+			this.value = value;
+			this.isField = isField;
+		}
+	}
+	
+	private static final class Injection {
+		final MethodHandle setter;
+		final Object value;
+		
+		Injection(MethodHandle setter, Object value) {
+			this.setter = setter;
+			this.value = value;
+		}
+	}
+	
+	private final Map<String, Provider> m_byName = new LinkedHashMap<>();
+	private final Map<Class<?>, List<Provider>> m_byType = new HashMap<>();
+	
+	// resolved injections, by target class and name of the target
+	private final Map<Class<?>, Map<String, Injection[]>> m_plans = new ConcurrentHashMap<>();
+	
+	/**
+	 * @param source     Object providing values, usually the robot
+	 * @param stopClass  Fields of this class and its superclasses are ignored
+	 */
+	InjectionRegistry(Object source, Class<?> stopClass) {
+		for (Class<?> c = source.getClass(); c != null && c != stopClass && c != Object.class; c = c.getSuperclass()) {
+			for (Field field: c.getDeclaredFields()) {
+				if (field.isSynthetic() || m_byName.containsKey(field.getName())) {
+					// subclass fields hide superclass fields with the same name
+					continue;
+				}
+				
+				Object value;
+				try {
+					value = MagicInjector.getter(field).invokeExact(source);
+				} catch (Throwable e) {
+					throw new RuntimeException("Cannot read field " + field, e);
+				}
+				
+				Provider provider = new Provider(field.getName(), box(field.getType()), value, true);
+				m_byName.put(provider.name, provider);
+				
+				for (Class<?> type: supertypes(provider.type)) {
+					m_byType.computeIfAbsent(type, k -> new ArrayList<>()).add(provider);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return name of the source's field that holds the object, or null
+	 *         if it isn't held by a field
+	 */
+	String getName(Object value) {
+		for (Provider provider: m_byName.values()) {
+			if (provider.isField && provider.value == value) {
+				return provider.name;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Makes an object that isn't a field of the source available for
+	 * injection. It is not injected into by injectChildren.
+	 *
+	 * If the source already has a field with the same name, the field
+	 * wins and the object isn't provided at all, so that the objects that
+	 * MagicRobot provides never break a robot that happens to use the
+	 * same names.
+	 *
+	 * @param name   Name to inject it by
+	 * @param value  Object to inject
+	 * @return false if the name was already taken
+	 */
+	boolean provide(String name, Object value) {
+		if (m_byName.containsKey(name)) {
+			return false;
+		}
+		
+		Provider provider = new Provider(name, value.getClass(), value, false);
+		m_byName.put(name, provider);
+		
+		for (Class<?> type: supertypes(provider.type)) {
+			m_byType.computeIfAbsent(type, k -> new ArrayList<>()).add(provider);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return all non-null objects provided by the robot
+	 */
+	List<Object> getProvided() {
+		List<Object> values = new ArrayList<>();
+		for (Provider provider: m_byName.values()) {
+			if (provider.isField && provider.value != null) {
+				values.add(provider.value);
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * Sets the @MagicInject fields of an object, including inherited fields
+	 *
+	 * @param to      Object to inject into
+	 * @param toName  Name of the object, used as a prefix when looking up
+	 *                fields by name. May be null.
+	 */
+	void inject(Object to, String toName) {
+		Map<String, Injection[]> plans = m_plans.computeIfAbsent(to.getClass(), k -> new ConcurrentHashMap<>());
+		String key = toName == null ? "" : toName;
+		
+		Injection[] plan = plans.get(key);
+		if (plan == null) {
+			plan = createPlan(to.getClass(), toName);
+			plans.put(key, plan);
+		}
+		
+		for (Injection injection: plan) {
+			try {
+				injection.setter.invokeExact(to, injection.value);
+			} catch (Throwable e) {
+				throw new RuntimeException("Error injecting into " + to.getClass(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Injects into every object provided by the robot
+	 */
+	void injectChildren() {
+		for (Object o: getProvided()) {
+			inject(o, null);
+		}
+	}
+	
+	private Injection[] createPlan(Class<?> toClass, String toName) {
+		List<Injection> plan = new ArrayList<>();
+		
+		for (Class<?> c = toClass; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Field field: c.getDeclaredFields()) {
+				MagicInject annotation = field.getAnnotation(MagicInject.class);
+				if (annotation != null) {
+					Provider provider = resolve(field, annotation.value(), toName);
+					plan.add(new Injection(MagicInjector.setter(field), provider.value));
+				}
+			}
+		}
+		
+		return plan.toArray(new Injection[plan.size()]);
+	}
+	
+	private Provider resolve(Field field, String qualifiedName, String toName) {
+		Class<?> type = box(field.getType());
+		
+		if (!qualifiedName.isEmpty()) {
+			Provider provider = m_byName.get(qualifiedName);
+			if (provider == null) {
+				throw new RuntimeException("Cannot inject " + describe(field) + ": '" + qualifiedName + "' does not exist");
+			}
+			return checkValue(field, type, provider);
+		}
+		
+		// by name. If there is a field with that name, it is always used
+		Provider provider = m_byName.get(field.getName());
+		if (provider == null && toName != null) {
+			provider = m_byName.get(toName + field.getName());
+		}
+		
+		if (provider != null) {
+			return checkValue(field, type, provider);
+		}
+		
+		// by type
+		List<Provider> candidates = m_byType.getOrDefault(type, Collections.emptyList());
+		if (candidates.size() == 1) {
+			return candidates.get(0);
+		} else if (candidates.isEmpty()) {
+			throw new RuntimeException("Cannot inject " + describe(field) + ": no field named '" + field.getName() +
+									   "' or of type " + type.getName() + " exists in the robot");
+		}
+		
+		List<String> names = new ArrayList<>();
+		for (Provider candidate: candidates) {
+			names.add(candidate.name);
+		}
+		throw new RuntimeException("Cannot inject " + describe(field) + ": more than one field of type " +
+								   type.getName() + " exists in the robot " + names +
+								   ". Rename the field or use @MagicInject(\"name\") to choose one.");
+	}
+	
+	/**
+	 * Checks the value of a provider like Field.set would, since a field
+	 * declared as an Object may hold something more specific
+	 */
+	private static Provider checkValue(Field field, Class<?> type, Provider provider) {
+		if (provider.value != null && !type.isInstance(provider.value)) {
+			throw new RuntimeException("Cannot inject " + describe(field) + ": '" + provider.name + "' is a " +
+									   provider.value.getClass().getName());
+		}
+		return provider;
+	}
+	
+	private static String describe(Field field) {
+		return field.getDeclaringClass().getName() + "." + field.getName();
+	}
+	
+	/**
+	 * @return the type and all of the classes and interfaces it is assignable to
+	 */
+	private static Set<Class<?>> supertypes(Class<?> type) {
+		Set<Class<?>> types = new HashSet<>();
+		Deque<Class<?>> pending = new ArrayDeque<>();
+		pending.add(type);
+		
+		while (!pending.isEmpty()) {
+			Class<?> t = pending.remove();
+			if (types.add(t)) {
+				if (t.getSuperclass() != null) {
+					pending.add(t.getSuperclass());
+				}
+				Collections.addAll(pending, t.getInterfaces());
+			}
+		}
+		
+		return types;
+	}
+	
+	private static Class<?> box(Class<?> type) {
+		if (!type.isPrimitive()) {
+			return type;
+		} else if (type == int.class) {
+			return Integer.class;
+		} else if (type == double.class) {
+			return Double.class;
+		} else if (type == boolean.class) {
+			return Boolean.class;
+		} else if (type == long.class) {
+			return Long.class;
+		} else if (type == float.class) {
+			return Float.class;
+		} else if (type == short.class) {
+			return Short.class;
+		} else if (type == byte.class) {
+			return Byte.class;
+		}
+		return Character.class;
+	}
+}
@@ -0,0 +1,70 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pure Java LoopTimer that doesn't need the HAL.
+ *
+ * LockSupport.parkNanos usually wakes up tens of microseconds late, so
+ * this parks until shortly before the deadline and then spins for the
+ * rest of the time. The spin time trades CPU usage for accuracy.
+ */
+public class JavaLoopTimer implements LoopTimer {
+	
+	/** Default amount of time to spin before the deadline, in nanoseconds */
+	public static final long DEFAULT_SPIN_TIME = 200000;
+	
+	private final long m_spinTime;
+	
+	public JavaLoopTimer() {
+		this(DEFAULT_SPIN_TIME);
+	}
+	
+	/**
+	 * @param spinTime Amount of time to spin before the deadline instead
+	 *                 of sleeping, in nanoseconds
+	 */
+	public JavaLoopTimer(long spinTime) {
+		m_spinTime = spinTime;
+	}
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public void waitUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			
+			if (remaining > m_spinTime) {
+				LockSupport.parkNanos(remaining - m_spinTime);
+			}
+		}
+	}
+	
+	@Override
+	public void close() {
+		// nothing to release
+	}
+}
@@ -0,0 +1,70 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the most recent value from one thread to another without locking.
+ * Older values that were never read are simply replaced, so the reader
+ * always sees the newest data and the writer never waits.
+ *
+ * Typically an asynchronous component (see MagicRobot.addAsyncComponent)
+ * publishes its results through one of these, and the control loop reads
+ * them. Values should be immutable, since they are shared between threads.
+ *
+ * @param <T> Type of value
+ */
+public final class LatestValue<T> {
+	
+	private final AtomicReference<T> m_value;
+	
+	public LatestValue() {
+		this(null);
+	}
+	
+	/**
+	 * @param initialValue Value returned until the first call to set
+	 */
+	public LatestValue(T initialValue) {
+		m_value = new AtomicReference<>(initialValue);
+	}
+	
+	/**
+	 * Replaces the current value
+	 */
+	public void set(T value) {
+		m_value.lazySet(value);
+	}
+	
+	/**
+	 * @return the most recent value, or null if there isn't one
+	 */
+	public T get() {
+		return m_value.get();
+	}
+	
+	/**
+	 * Returns the most recent value and clears it, so that each value is
+	 * only seen once
+	 *
+	 * @return the most recent value, or null if there isn't a new one
+	 */
+	public T take() {
+		return m_value.getAndSet(null);
+	}
+}
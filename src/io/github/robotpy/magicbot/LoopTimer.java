@@ -0,0 +1,43 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+/**
+ * Provides the time and the ability to wait until a particular time for
+ * PreciseDelay. There are three implementations:
+ *
+ * - NotifierLoopTimer uses the FPGA notifier, and should be used on a robot
+ * - JavaLoopTimer is pure Java, and can be used off-robot
+ * - VirtualLoopTimer doesn't actually wait, so loops using it run as fast as
+ *   possible. Useful for tests and simulations.
+ */
+public interface LoopTimer extends TimeSource, AutoCloseable {
+	
+	/**
+	 * Blocks until the specified time. Returns immediately if the time
+	 * has already passed.
+	 *
+	 * @param deadline time in nanoseconds, in the same timebase as nanoTime()
+	 */
+	public void waitUntil(long deadline);
+	
+	/**
+	 * Releases any resources used by the timer
+	 */
+	@Override
+	public void close();
+}
@@ -0,0 +1,101 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collection of TimingStats for each phase of the control loop and each
+ * component. MagicRobot records these when m_timingEnabled is set, and
+ * they can be retrieved via MagicRobot.getLoopTimings()
+ *
+ * @warning This object is not intended to be threadsafe
+ */
+public final class LoopTimings {
+	
+	/** Name of the stats for MagicRobot.teleopPeriodic */
+	public static final String TELEOP_PERIODIC = "teleopPeriodic";
+	
+	/** Name of the stats for MagicAutonomous.autonomousPeriodic */
+	public static final String AUTONOMOUS_PERIODIC = "autonomousPeriodic";
+	
+	/** Name of the stats for executing all components */
+	public static final String EXECUTE = "execute";
+	
+	private final int m_window;
+	private final List<TimingStats> m_stats = new ArrayList<>();
+	private final Map<String, TimingStats> m_byName = new HashMap<>();
+	
+	/**
+	 * @param window Number of samples to keep for each phase/component
+	 */
+	public LoopTimings(int window) {
+		m_window = window;
+	}
+	
+	/**
+	 * Creates a new TimingStats. If the name is already in use, a number
+	 * is appended to it.
+	 */
+	public TimingStats add(String name) {
+		String unique = name;
+		for (int i = 2; m_byName.containsKey(unique); i++) {
+			unique = name + "#" + i;
+		}
+		
+		TimingStats stats = new TimingStats(unique, m_window);
+		m_stats.add(stats);
+		m_byName.put(unique, stats);
+		return stats;
+	}
+	
+	/**
+	 * @return stats with the specified name, or null
+	 */
+	public TimingStats get(String name) {
+		return m_byName.get(name);
+	}
+	
+	/**
+	 * @return all stats, in the order they were added
+	 */
+	public List<TimingStats> getAll() {
+		return Collections.unmodifiableList(m_stats);
+	}
+	
+	/**
+	 * Forget all samples
+	 */
+	public void reset() {
+		for (TimingStats stats: m_stats) {
+			stats.reset();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (TimingStats stats: m_stats) {
+			sb.append(stats).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -20,6 +20,20 @@ package io.github.robotpy.magicbot;
  * Must be implemented by all components used with Magicbot
  */
 public interface MagicComponent {
+	
+	/**
+	 * Called once during robotInit, after injection has been performed and
+	 * before the robot is ever enabled. Do expensive initialization, such
+	 * as loading files or precomputing trajectories, here instead of in
+	 * the constructor.
+	 *
+	 * A component's setup is called after the setup of the components it
+	 * depends on. If MagicRobot.m_parallelSetup is set, independent
+	 * components may be set up at the same time on different threads.
+	 */
+	default void setup() {
+		// empty
+	}
 
 	/**
 	 * Called when the robot enters autonomous or teleoperated mode. This
@@ -41,6 +55,17 @@ public interface MagicComponent {
 		// empty
 	}
 	
+	/**
+	 * Called repeatedly while the robot is disabled, if warm-up is enabled
+	 * (see MagicRobot.m_warmUpEnabled), so that the JIT compiles your code
+	 * before the robot needs it. Exercise the same calculations that
+	 * execute does, but this must not have side effects: don't move any
+	 * actuators or change anything that execute depends on.
+	 */
+	default void warmUp() {
+		// empty
+	}
+	
 	/**
 	 * This function is called at the end of the control loop
 	 */
@@ -29,8 +29,23 @@ import java.lang.annotation.Target;
  * This annotation can be used on any object that is stored as an instance
  * variable on your Robot class, or on autonomous modes that are added to your
  * robot via addAutonomous.
+ *
+ * The object is found by the name of the variable. If there is no variable
+ * with that name in the Robot class (or its superclasses), then the only
+ * variable whose type is compatible is used. To choose between several
+ * variables of the same type, specify the name of the variable in the
+ * Robot class:
+ *
+ *     {@literal @}MagicInject("leftMotor")
+ *     SpeedController motor;
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.FIELD)
 public @interface MagicInject {
+	
+	/**
+	 * Name of the variable in the Robot class to inject. If not specified,
+	 * the variable is found by name and then by type.
+	 */
+	String value() default "";
 }
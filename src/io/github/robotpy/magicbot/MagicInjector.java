@@ -16,64 +16,70 @@
 
 package io.github.robotpy.magicbot;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 
+/**
+ * Copies objects from a source into @MagicInject fields.
+ *
+ * These are shortcuts for a one-off InjectionRegistry, so they resolve
+ * fields exactly like the robot does. To inject several objects from the
+ * same source, create an InjectionRegistry once and reuse it.
+ */
 class MagicInjector {
-
+	
+	private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+	
 	static public void inject(Object source, Object to, String toName) {
+		new InjectionRegistry(source, Object.class).inject(to, toName);
+	}
+	
+	static public void injectChildren(Object parent, Object source) {
+		InjectionRegistry registry = new InjectionRegistry(source, Object.class);
+		for (Object o: new InjectionRegistry(parent, Object.class).getProvided()) {
+			registry.inject(o, null);
+		}
+	}
+	
+	/**
+	 * @return a handle of type (Object)Object that reads the field
+	 */
+	static MethodHandle getter(Field field) {
+		field.setAccessible(true);
 		
-		Class<?> toClass = to.getClass();
-		Field[] fields = toClass.getDeclaredFields();
+		MethodHandle getter;
+		try {
+			getter = MethodHandles.lookup().unreflectGetter(field);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException("Cannot read field " + field, e);
+		}
 		
-		for (Field injectField: fields) {
-			if (injectField.isAnnotationPresent(MagicInject.class)) {
-				
-				// try to find the field in the source object
-				String injectFieldName = injectField.getName();
-				Field sourceField = null;
-				
-				try {
-					sourceField = source.getClass().getDeclaredField(injectFieldName);
-				} catch (NoSuchFieldError | NoSuchFieldException | SecurityException ex1) {
-					try {
-						if (toName != null) {
-							sourceField = source.getClass().getDeclaredField(toName + injectFieldName);
-						}
-					} catch (NoSuchFieldError | NoSuchFieldException | SecurityException ex2) {
-						
-					}
-				}
-				
-				if (sourceField == null) {
-					throw new RuntimeException("Field + " + injectFieldName + " in " + toName + " does not exist in" + toClass);
-				}
-				
-				sourceField.setAccessible(true);
-				injectField.setAccessible(true);
-				
-				try {
-					injectField.set(to, sourceField.get(source));
-				} catch (IllegalArgumentException | IllegalAccessException e) {
-					throw new RuntimeException("Error setting field + " + injectFieldName + " in " + toName, e);
-				}
-			}
+		if (Modifier.isStatic(field.getModifiers())) {
+			getter = MethodHandles.dropArguments(getter, 0, Object.class);
 		}
+		return getter.asType(GETTER);
 	}
 	
-	static public void injectChildren(Object parent, Object source) {
-		Field [] fields = parent.getClass().getDeclaredFields();
-		for (Field sourceField: fields) {
-			sourceField.setAccessible(true);
-			Object o = null;
-			try {
-				o = sourceField.get(parent);
-			} catch (IllegalArgumentException | IllegalAccessException e) {
-				// empty
-			}
-			
-			if (o != null) {
-				inject(source, o, null);
-			}
+	/**
+	 * @return a handle of type (Object, Object)void that writes the field
+	 */
+	static MethodHandle setter(Field field) {
+		field.setAccessible(true);
+		
+		MethodHandle setter;
+		try {
+			setter = MethodHandles.lookup().unreflectSetter(field);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException("Cannot write field " + field, e);
+		}
+		
+		if (Modifier.isStatic(field.getModifiers())) {
+			setter = MethodHandles.dropArguments(setter, 0, Object.class);
 		}
+		return setter.asType(SETTER);
 	}
 }
@@ -16,312 +16,341 @@
 
 package io.github.robotpy.magicbot;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import edu.wpi.first.wpilibj.SampleRobot;
-import edu.wpi.first.wpilibj.Timer;
-import edu.wpi.first.wpilibj.livewindow.LiveWindow;
-import edu.wpi.first.wpilibj.networktables.NetworkTable;
-import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 /**
  * Robots that use the MagicBot framework should use this as their
- * base robot class. If you use this as your base, you must
- * implement the following methods:
+ * base robot class. This is a thin adapter between WPILib and a
+ * MagicRobotCore, which does all of the work. There are two ways to
+ * use it.
  *
- * - createObjects
- * - teleopPeriodic
+ * Write the robot as a MagicRobotCore, and pass it to the constructor.
+ * The robot can then also be run with HeadlessRunner on machines that
+ * don't have the WPILib native libraries:
  *
- * MagicRobot allows you to define multiple autonomous modes and
- * to select one of them via SmartDashboard/SFX.
+ *     public class Robot extends MagicRobot {
+ *         public Robot() {
+ *             super(new RobotCode());
+ *         }
+ *     }
  *
- * MagicRobot performs 'magic injection', which means that any objects present
- * as instance variables in this class will be inspected for @MagicInject
- * annotations, and identical objects from the Robot class will be copied
- * to that object.
- *
- * MagicRobot will set the following NetworkTables variables
- * automatically:
- *
- * - /robot/mode: one of 'disabled', 'auto', 'teleop', or 'test'
- * - /robot/is_simulation: true/false
- * - /robot/is_ds_attached: true/false
+ * Or extend this class and implement createObjects and teleopPeriodic in
+ * it, as in earlier versions. MagicRobot has the same methods and
+ * settings as MagicRobotCore for this, and they work the same way (see
+ * MagicRobotCore). Constructing such a robot starts WPILib, which needs
+ * the HAL, so it can only be run on a robot or in WPILib's simulation.
  */
 public abstract class MagicRobot extends SampleRobot {
-
-	private List<MagicComponent> m_components = new ArrayList<>();
-	private NetworkTable m_nt;
 	
-	private Map<String, MagicAutonomous> m_autonomous = new HashMap<>();
-	private SendableChooser<String> m_autoChooser = new SendableChooser<>();
+	/** System property that enables training mode */
+	public static final String TRAINING_PROPERTY = MagicRobotCore.TRAINING_PROPERTY;
 	
-	protected double m_controlLoopWaitTime = 0.020;
-	
-	@Override
-	protected final void robotInit() {
+	/**
+	 * Runs the methods of a MagicRobot subclass, for robots that extend
+	 * MagicRobot directly
+	 */
+	private final class Adapter extends MagicRobotCore {
 		
-		// create user objects
-		createObjects();
+		Adapter() {
+			super(MagicRobot.this, MagicRobot.class);
+		}
 		
-		// perform injection on components
-		for (MagicComponent component: m_components) {
-			MagicInjector.inject(this, component, null);
+		@Override
+		protected void createObjects() {
+			MagicRobot.this.createObjects();
+			
+			// the settings are read after the objects are created
+			m_telemetryPeriod = MagicRobot.this.m_telemetryPeriod;
+			m_parallelSetup = MagicRobot.this.m_parallelSetup;
+			m_warmUpEnabled = MagicRobot.this.m_warmUpEnabled;
+			m_warmUpIterations = MagicRobot.this.m_warmUpIterations;
+			m_controlLoopWaitTime = MagicRobot.this.m_controlLoopWaitTime;
+			m_executeThreads = MagicRobot.this.m_executeThreads;
+			m_overrunPolicy = MagicRobot.this.m_overrunPolicy;
+			m_timingEnabled = MagicRobot.this.m_timingEnabled;
+			m_timingWindow = MagicRobot.this.m_timingWindow;
+			m_timingPublishPeriod = MagicRobot.this.m_timingPublishPeriod;
 		}
 		
-		// perform injection on autonomous modes
-		for (MagicAutonomous autonomous: m_autonomous.values()) {
-			MagicInjector.inject(this, autonomous, null);
+		@Override
+		protected LoopTimer createLoopTimer() {
+			return MagicRobot.this.createLoopTimer();
 		}
 		
-		// inject anything present in the robot
-		MagicInjector.injectChildren(this, this);
+		@Override
+		protected TelemetryRing.RecordSink createRecordSink() {
+			return MagicRobot.this.createRecordSink();
+		}
 		
-		SmartDashboard.putData("Autonomous Mode", m_autoChooser);
+		@Override
+		protected MatchLog createMatchLog() throws IOException {
+			return MagicRobot.this.createMatchLog();
+		}
 		
-		// compatibility with FRC dashboard
-		String [] modes = new String[m_autonomous.size()];
-		m_autonomous.keySet().toArray(modes);
-		Arrays.sort(modes);
+		@Override
+		protected void onLoopOverrun(double lateness, int missed) {
+			MagicRobot.this.onLoopOverrun(lateness, missed);
+		}
 		
-		new SmartDashboard().putStringArray("Auto List", modes);
+		@Override
+		protected void disabledInit() {
+			MagicRobot.this.disabledInit();
+		}
 		
-		m_nt = NetworkTable.getTable("/robot");
-		m_nt.putBoolean("is_simulation", isSimulation());
-		m_nt.putBoolean("is_ds_attached", m_ds.isDSAttached());
-	}
-	
-	/**
-	 * Add a component to be executed
-	 */
-	protected void addComponent(MagicComponent component) {
-		m_components.add(component);
-	}
-	
-	/**
-	 * Add an autonomous mode
-	 *
-	 * @param name			Name to be displayed to the user
-	 * @param autonomous	Autonomous mode object
-	 */
-	protected void addAutonomous(String name, MagicAutonomous autonomous) {
-		addAutonomous(name, autonomous, false);
-	}
-	
-	/**
-	 * Add an autonomous mode
-	 *
-	 * @param name			Name to be displayed to the user
-	 * @param autonomous	Autonomous mode object
-	 * @param default       If true, set to be the default mode
-	 */
-	protected void addAutonomous(String name, MagicAutonomous autonomous, boolean defaultMode) {
-		if (m_autonomous.containsKey(name)) {
-			throw new RuntimeException("Duplciate autonomous mode '" + name + "'");
+		@Override
+		protected void disabledPeriodic() {
+			MagicRobot.this.disabledPeriodic();
 		}
 		
-		m_autonomous.put(name, autonomous);
+		@Override
+		protected void autonomousInit() {
+			MagicRobot.this.autonomousInit();
+		}
 		
-		if (defaultMode) {
-			m_autoChooser.addDefault(name, name);
-		} else {
-			m_autoChooser.addObject(name, name);
+		@Override
+		protected void teleopInit() {
+			MagicRobot.this.teleopInit();
+		}
+		
+		@Override
+		protected void teleopPeriodic() {
+			MagicRobot.this.teleopPeriodic();
+		}
+		
+		// the defaults of MagicRobot's methods
+		
+		LoopTimer defaultLoopTimer() {
+			return super.createLoopTimer();
+		}
+		
+		TelemetryRing.RecordSink defaultRecordSink() {
+			return super.createRecordSink();
+		}
+		
+		void defaultLoopOverrun(double lateness, int missed) {
+			super.onLoopOverrun(lateness, missed);
 		}
 	}
 	
-	/**
-	 * Implement this and create all of your robot objects here
-	 */
-	protected abstract void createObjects();
+	private final MagicRobotCore m_core;
 	
-	/**
-	 * Initialization code for disabled mode should go here.
-	 *
-	 * Users may override this method for initialization code which will be
-	 * called each time the robot enters disabled mode.
-	 *
-	 * Note: the 'on_disable' functions of all components are called
-	 *       before this function is called
-	 */
-	protected void disabledInit() {
-		// empty
-	}
+	// set if the robot extends MagicRobot directly
+	private final Adapter m_adapter;
+	
+	/** See MagicRobotCore.m_telemetryPeriod */
+	protected double m_telemetryPeriod = 0.1;
+	
+	/** See MagicRobotCore.m_parallelSetup */
+	protected boolean m_parallelSetup = false;
+	
+	/** See MagicRobotCore.m_warmUpEnabled */
+	protected boolean m_warmUpEnabled = false;
+	
+	/** See MagicRobotCore.m_warmUpIterations */
+	protected int m_warmUpIterations = 10000;
+	
+	/** See MagicRobotCore.m_controlLoopWaitTime */
+	protected double m_controlLoopWaitTime = 0.020;
+	
+	/** See MagicRobotCore.m_executeThreads */
+	protected int m_executeThreads = 1;
+	
+	/** See MagicRobotCore.m_overrunPolicy */
+	protected PreciseDelay.OverrunPolicy m_overrunPolicy = PreciseDelay.OverrunPolicy.SKIP_MISSED;
+	
+	/** See MagicRobotCore.m_timingEnabled */
+	protected boolean m_timingEnabled = false;
+	
+	/** See MagicRobotCore.m_timingWindow */
+	protected int m_timingWindow = 250;
+	
+	/** See MagicRobotCore.m_timingPublishPeriod */
+	protected double m_timingPublishPeriod = 1.0;
 	
 	/**
-	 * Periodic code for disabled mode should go here
-	 *
-	 * Users should override this method for code which will be called
-	 * periodically at a regular rate while the robot is in disabled mode.
-	 *
+	 * For robots that extend MagicRobot and implement createObjects
 	 */
-	protected void disabledPeriodic() {
-		// empty
+	protected MagicRobot() {
+		m_adapter = new Adapter();
+		m_core = m_adapter;
+		m_core.setEnvironment(new WpilibEnvironment(this));
 	}
 	
 	/**
-	 * Global initialization code for autonomous control code may go here.
-	 *
-	 * Users may override this method for initialization code which will be
-	 * called each time the robot enters autonomous mode.
-	 *
-	 * The 'on_enable' functions of all components are called
-	 * before this function is called
+	 * For robots that are written as a MagicRobotCore. The methods and
+	 * settings of this class aren't used.
 	 *
+	 * @param core  The robot
 	 */
-	protected void autonomousInit() {
-		// empty
+	protected MagicRobot(MagicRobotCore core) {
+		m_adapter = null;
+		m_core = core;
+		m_core.setEnvironment(new WpilibEnvironment(this));
 	}
 	
 	/**
-	 * Initialization code for teleop control code may go here.
-	 *
-	 * Users may override this method for initialization code which will be
-	 * called each time the robot enters teleop mode.
-	 *
-	 * The 'on_enable' functions of all components are called
-	 * before this function is called
-	 *
+	 * @return the robot that this runs
 	 */
-	protected void teleopInit() {
-		// empty
+	public MagicRobotCore getCore() {
+		return m_core;
 	}
 	
-	/**
-	 * Periodic code for teleop mode should go here.
-	 *
-	 * Users should override this method for code which will be called
-	 * periodically at a regular rate while the robot is in teleop mode.
-	 *
-	 * This code executes before the 'execute' functions of all
-	 * components are called
-	 */
-	protected void teleopPeriodic() {
-		// empty
+	@Override
+	protected final void robotInit() {
+		m_core.robotInit();
 	}
 	
 	@Override
 	protected final void disabled() {
-		boolean dsAttached = m_ds.isDSAttached();
-		
-		m_nt.putString("mode", "disabled");
-		m_nt.putBoolean("is_ds_attached", dsAttached);
-		
-		disableComponents();
-		disabledInit();
-		
-		while (isDisabled()) {
-			if (dsAttached != m_ds.isDSAttached()) {
-				dsAttached = !dsAttached;
-				m_nt.putBoolean("is_ds_attached", dsAttached);
-			}
-			
-			disabledPeriodic();
-			
-			Timer.delay(m_controlLoopWaitTime);
-		}
+		m_core.disabled();
 	}
 	
 	@Override
 	public final void autonomous() {
-		m_nt.putString("mode", "auto");
-		m_nt.putBoolean("is_ds_attached", m_ds.isDSAttached());
-		
-		enableComponents();
-		autonomousInit();
-		
-		MagicAutonomous autoMode;
-		
-		// FRC Dashboard compatibility
-		// -> if you set it here, you're stuck using it. The FRC Dashboard
-        //    doesn't seem to have a default (nor will it show a default),
-        //    so the key will only get set if you set it.
-		String modeName = SmartDashboard.getString("Auto Selector", "");
-		if (!m_autonomous.containsKey(modeName)) {
-			modeName = m_autoChooser.getSelected();
-		}
-		
-		autoMode = m_autonomous.get(modeName);
-		if (autoMode == null) {
-			System.err.println("Warning: no autonomous mode selected");
-			
-			autoMode = new MagicAutonomous() {
-				@Override
-				public void autonomousPeriodic() {
-				}
-			};
-			
-		} else {
-			System.out.println("Enabling autonomous mode '" + modeName + "'");
-		}
-		
-		autoMode.onEnabled();
-		
-		try (PreciseDelay delay = new PreciseDelay(m_controlLoopWaitTime)) {
-			while (isAutonomous() && isEnabled()) {
-				
-				autoMode.autonomousPeriodic();
-				execute();
-				delay.delay();
-			}
-		}
-		
-		autoMode.onDisabled();
-		
-		disableComponents();
+		m_core.autonomous();
 	}
 	
 	@Override
 	public final void operatorControl() {
-		m_nt.putString("mode", "teleop");
-		m_nt.putBoolean("is_ds_attached", m_ds.isDSAttached());
-		
-		// initialize things
-		enableComponents();
-		
-		teleopInit();
-		
-		try (PreciseDelay delay = new PreciseDelay(m_controlLoopWaitTime)) {
-			while (isOperatorControl() && isEnabled()) {
-				teleopPeriodic();
-				
-				execute();
-				delay.delay();
-			}
-		}
-		
-		disableComponents();
+		m_core.operatorControl();
 	}
 	
 	@Override
 	public final void test() {
-		m_nt.putString("mode", "teleop");
-		m_nt.putBoolean("is_ds_attached", m_ds.isDSAttached());
-		
-		while (isTest() && isEnabled()) {
-			LiveWindow.run();
-			Timer.delay(0.01);
-		}
+		m_core.test();
 	}
 	
-	private void enableComponents() {
-		for (MagicComponent c: m_components) {
-			c.onEnabled();
-		}
+	/**
+	 * Implement this and create all of your robot objects here, unless a
+	 * MagicRobotCore was passed to the constructor
+	 */
+	protected void createObjects() {
+		throw new RuntimeException(getClass().getName() + " must implement createObjects, " +
+								   "or pass a MagicRobotCore to the MagicRobot constructor");
 	}
 	
-	private void disableComponents() {
-		for (MagicComponent c: m_components) {
-			c.onDisabled();
-		}
+	/** See MagicRobotCore.addComponent */
+	protected void addComponent(MagicComponent component) {
+		m_core.addComponent(component);
 	}
 	
-	private void execute() {
-		for (MagicComponent c: m_components) {
-			c.execute();
-		}
+	/** See MagicRobotCore.addComponent */
+	protected void addComponent(MagicComponent component, MagicComponent... dependsOn) {
+		m_core.addComponent(component, dependsOn);
+	}
+	
+	/** See MagicRobotCore.addComponent */
+	protected void addComponent(MagicComponent component, double period, MagicComponent... dependsOn) {
+		m_core.addComponent(component, period, dependsOn);
+	}
+	
+	/** See MagicRobotCore.addAsyncComponent */
+	protected void addAsyncComponent(MagicComponent component, double period) {
+		m_core.addAsyncComponent(component, period);
+	}
+	
+	/** See MagicRobotCore.addAutonomous */
+	protected void addAutonomous(String name, MagicAutonomous autonomous) {
+		m_core.addAutonomous(name, autonomous);
+	}
+	
+	/** See MagicRobotCore.addAutonomous */
+	protected void addAutonomous(String name, MagicAutonomous autonomous, boolean defaultMode) {
+		m_core.addAutonomous(name, autonomous, defaultMode);
+	}
+	
+	/** See MagicRobotCore.addLazyAutonomous */
+	protected void addLazyAutonomous(String name, Supplier<? extends MagicAutonomous> factory) {
+		m_core.addLazyAutonomous(name, factory);
+	}
+	
+	/** See MagicRobotCore.addLazyAutonomous */
+	protected void addLazyAutonomous(String name, Supplier<? extends MagicAutonomous> factory, boolean defaultMode) {
+		m_core.addLazyAutonomous(name, factory, defaultMode);
+	}
+	
+	/** See MagicRobotCore.getLoopOverrunCount */
+	public int getLoopOverrunCount() {
+		return m_core.getLoopOverrunCount();
+	}
+	
+	/** See MagicRobotCore.getStartupTimings */
+	public Map<String, Double> getStartupTimings() {
+		return m_core.getStartupTimings();
+	}
+	
+	/** See MagicRobotCore.getWarmUpResults */
+	public List<WarmUpResult> getWarmUpResults() {
+		return m_core.getWarmUpResults();
+	}
+	
+	/** See MagicRobotCore.getTelemetry */
+	protected TelemetryBuffer getTelemetry() {
+		return m_core.getTelemetry();
+	}
+	
+	/** See MagicRobotCore.getTelemetryRing */
+	protected TelemetryRing getTelemetryRing() {
+		return m_core.getTelemetryRing();
+	}
+	
+	/** See MagicRobotCore.getLoopTimings */
+	public LoopTimings getLoopTimings() {
+		return m_core.getLoopTimings();
+	}
+	
+	/** See MagicRobotCore.getEnvironment */
+	public RobotEnvironment getEnvironment() {
+		return m_core.getEnvironment();
+	}
+	
+	/** See MagicRobotCore.createLoopTimer */
+	protected LoopTimer createLoopTimer() {
+		return m_adapter.defaultLoopTimer();
+	}
+	
+	/** See MagicRobotCore.createRecordSink */
+	protected TelemetryRing.RecordSink createRecordSink() {
+		return m_adapter.defaultRecordSink();
+	}
+	
+	/** See MagicRobotCore.createMatchLog */
+	protected MatchLog createMatchLog() throws IOException {
+		return null;
+	}
+	
+	/** See MagicRobotCore.onLoopOverrun */
+	protected void onLoopOverrun(double lateness, int missed) {
+		m_adapter.defaultLoopOverrun(lateness, missed);
+	}
+	
+	/** See MagicRobotCore.disabledInit */
+	protected void disabledInit() {
+		// empty
+	}
+	
+	/** See MagicRobotCore.disabledPeriodic */
+	protected void disabledPeriodic() {
+		// empty
+	}
+	
+	/** See MagicRobotCore.autonomousInit */
+	protected void autonomousInit() {
+		// empty
+	}
+	
+	/** See MagicRobotCore.teleopInit */
+	protected void teleopInit() {
+		// empty
+	}
+	
+	/** See MagicRobotCore.teleopPeriodic */
+	protected void teleopPeriodic() {
+		// empty
 	}
 }
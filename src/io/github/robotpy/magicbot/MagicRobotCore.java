@@ -0,0 +1,1071 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import io.github.robotpy.magicbot.sm.StateMachine;
+
+/**
+ * The MagicBot robot lifecycle, without any dependency on WPILib or the
+ * HAL. You must implement the following methods:
+ *
+ * - createObjects
+ * - teleopPeriodic
+ *
+ * On the robot, pass an instance to MagicRobot, which is the thin WPILib
+ * adapter that the robot program starts with:
+ *
+ *     public class Robot extends MagicRobot {
+ *         public Robot() {
+ *             super(new RobotCode());
+ *         }
+ *     }
+ *
+ * The same instance can be run with HeadlessRunner, in tests or in CI, on
+ * machines that don't have the WPILib native libraries. Robots that extend
+ * MagicRobot directly work the same way on the robot, but constructing
+ * them starts WPILib, so they can't be run with HeadlessRunner.
+ *
+ * Multiple autonomous modes can be defined, and one of them is selected
+ * via SmartDashboard/SFX.
+ *
+ * The robot performs 'magic injection', which means that any objects
+ * present as instance variables in this class will be inspected for
+ * @MagicInject annotations, and identical objects from the Robot class
+ * will be copied to that object. Objects are matched by name, or by type
+ * if there is no object with the same name (see MagicInject).
+ *
+ * The following NetworkTables variables are set automatically:
+ *
+ * - /robot/mode: one of 'disabled', 'auto', 'teleop', or 'test'
+ * - /robot/is_simulation: true/false
+ * - /robot/is_ds_attached: true/false
+ * - /robot/startup/PHASE: how long each phase of robotInit took, in ms
+ * - /robot/telemetry_dropped: records dropped by getTelemetryRing()
+ *
+ * Setting the system property magicbot.training to true starts the robot
+ * in training mode, which is used to create a class data sharing archive
+ * that makes the robot program start faster (see the cds-archive target
+ * in build.xml). Training mode only works in simulation.
+ *
+ * If m_timingEnabled is set, the robot will also record how long each
+ * component and each phase of the control loop takes, and periodically
+ * publish the statistics (in milliseconds) to /robot/timing/NAME/min, mean,
+ * p99, and max. Components are named after the robot's field that holds
+ * them, or after their class if no field does.
+ *
+ * The lifecycle methods (robotInit, disabled, autonomous, operatorControl
+ * and test) are called by MagicRobot or HeadlessRunner, which first
+ * provide the RobotEnvironment that the robot talks to.
+ */
+public abstract class MagicRobotCore {
+	
+	/** System property that enables training mode */
+	public static final String TRAINING_PROPERTY = "magicbot.training";
+	
+	/** Number of control loop iterations executed for each mode in training mode */
+	private static final int TRAINING_ITERATIONS = 50;
+
+	private final ComponentScheduler m_scheduler = new ComponentScheduler();
+	private RobotEnvironment m_env = null;
+	private boolean m_started = false;
+	
+	// the object whose fields are injected, and where its fields start
+	private final Object m_robot;
+	private final Class<?> m_robotBase;
+	
+	// sends to the environment's sink, which isn't known until robotInit
+	private final TelemetryBuffer m_telemetry = new TelemetryBuffer(new TelemetryBuffer.Sink() {
+		@Override
+		public void putNumber(String key, double value) {
+			m_env.getTelemetrySink().putNumber(key, value);
+		}
+		
+		@Override
+		public void putBoolean(String key, boolean value) {
+			m_env.getTelemetrySink().putBoolean(key, value);
+		}
+		
+		@Override
+		public void putString(String key, String value) {
+			m_env.getTelemetrySink().putString(key, value);
+		}
+	});
+	private final int m_modeEntry = m_telemetry.getEntry("/robot/mode");
+	private final int m_simulationEntry = m_telemetry.getEntry("/robot/is_simulation");
+	private final int m_dsAttachedEntry = m_telemetry.getEntry("/robot/is_ds_attached");
+	
+	/** How often telemetry is sent to NetworkTables, in seconds */
+	protected double m_telemetryPeriod = 0.1;
+	private long m_nextTelemetryFlush = 0;
+	
+	private final TelemetryRing m_telemetryRing = new TelemetryRing(4096);
+	private final int m_droppedEntry = m_telemetry.getEntry("/robot/telemetry_dropped");
+	
+	private Map<String, MagicAutonomous> m_autonomous = new HashMap<>();
+	private Map<String, Supplier<? extends MagicAutonomous>> m_lazyAutonomous = new HashMap<>();
+	private String m_preparedAutonomous = null;
+	
+	private InjectionRegistry m_registry = null;
+	
+	// names of components and autonomous modes in timings and logs
+	private final Map<Object, String> m_names = new IdentityHashMap<>();
+	
+	private MatchLog m_matchLog = null;
+	
+	/**
+	 * If set, injection and each component's setup() are done in parallel
+	 * during robotInit. Components are still set up after the components
+	 * that they depend on (see addComponent).
+	 */
+	protected boolean m_parallelSetup = false;
+	
+	private final Map<String, Double> m_startupTimings = new LinkedHashMap<>();
+	
+	/**
+	 * If set, the first time the robot is disabled each component's
+	 * warmUp() is called repeatedly, so that the JIT has compiled the
+	 * code the control loop runs before autonomous starts. State machines
+	 * step through their states without calling the state methods.
+	 */
+	protected boolean m_warmUpEnabled = false;
+	
+	/** Number of times each component's warmUp() is called */
+	protected int m_warmUpIterations = 10000;
+	
+	private boolean m_warmedUp = false;
+	private final List<WarmUpResult> m_warmUpResults = new ArrayList<>();
+	
+	protected double m_controlLoopWaitTime = 0.020;
+	
+	/**
+	 * Number of threads used to execute components. If greater than 1,
+	 * components that don't depend on each other are executed in parallel.
+	 * Use addComponent to declare dependencies between components.
+	 *
+	 * Handing components to other threads costs several microseconds per
+	 * iteration, so this only helps when components take hundreds of
+	 * microseconds each. No more threads than there are processors are used.
+	 */
+	protected int m_executeThreads = 1;
+	
+	/** What to do when an iteration of the control loop takes too long */
+	protected PreciseDelay.OverrunPolicy m_overrunPolicy = PreciseDelay.OverrunPolicy.SKIP_MISSED;
+	
+	private int m_loopOverruns = 0;
+	private long m_lastOverrunWarning = 0;
+	
+	/** If set, record how long each component and loop phase takes */
+	protected boolean m_timingEnabled = false;
+	
+	/** Number of control loop iterations that timing statistics are computed over */
+	protected int m_timingWindow = 250;
+	
+	/** How often timing statistics are published to NetworkTables, in seconds */
+	protected double m_timingPublishPeriod = 1.0;
+	
+	private LoopTimings m_timings = null;
+	private TimingStats m_teleopTiming = null;
+	private TimingStats m_autonomousTiming = null;
+	private TimingStats m_executeTiming = null;
+	
+	private int[] m_timingEntries = null;
+	private long m_nextTimingPublish = 0;
+	
+	protected MagicRobotCore() {
+		m_robot = this;
+		m_robotBase = MagicRobotCore.class;
+	}
+	
+	/**
+	 * For MagicRobot, whose subclass holds the robot's fields
+	 */
+	MagicRobotCore(Object robot, Class<?> robotBase) {
+		m_robot = robot;
+		m_robotBase = robotBase;
+	}
+	
+	final void robotInit() {
+		if (m_env == null) {
+			throw new IllegalStateException("No environment: run the robot with MagicRobot or HeadlessRunner");
+		}
+		
+		m_started = true;
+		long start = System.nanoTime();
+		long phase = start;
+		
+		// create user objects
+		createObjects();
+		phase = startupPhase("createObjects", phase);
+		
+		// index everything the robot created
+		m_registry = new InjectionRegistry(m_robot, m_robotBase);
+		m_registry.provide("telemetry", m_telemetry);
+		m_registry.provide("telemetryRing", m_telemetryRing);
+		m_registry.provide("clock", m_env.getClock());
+		
+		for (MagicComponent component: m_scheduler.getComponents()) {
+			nameOf(component, m_registry.getName(component));
+		}
+		for (Map.Entry<String, MagicAutonomous> e: m_autonomous.entrySet()) {
+			String field = m_registry.getName(e.getValue());
+			nameOf(e.getValue(), field != null ? field : e.getKey());
+		}
+		m_scheduler.setNames(component -> nameOf(component, null));
+		
+		// state machines run on the environment's time
+		for (MagicComponent component: m_scheduler.getComponents()) {
+			useClock(component);
+		}
+		for (MagicAutonomous autonomous: m_autonomous.values()) {
+			useClock(autonomous);
+		}
+		
+		ForkJoinPool pool = m_parallelSetup ? new ForkJoinPool() : null;
+		try {
+			// perform injection on components and autonomous modes
+			List<Object> targets = new ArrayList<>(m_scheduler.getComponents());
+			targets.addAll(m_autonomous.values());
+			forEach(pool, targets, o -> m_registry.inject(o, null));
+			
+			// inject anything present in the robot
+			m_registry.injectChildren();
+			phase = startupPhase("inject", phase);
+			
+			for (List<MagicComponent> group: m_scheduler.getSetupOrder()) {
+				forEach(pool, group, MagicComponent::setup);
+			}
+			phase = startupPhase("setup", phase);
+			
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+		
+		TreeSet<String> modeNames = new TreeSet<>(m_autonomous.keySet());
+		modeNames.addAll(m_lazyAutonomous.keySet());
+		m_env.publishAutonomousModes(modeNames.toArray(new String[modeNames.size()]));
+		
+		m_telemetry.putBoolean(m_simulationEntry, m_env.isSimulation());
+		m_telemetry.putBoolean(m_dsAttachedEntry, m_env.isDSAttached());
+		
+		if (m_timingEnabled) {
+			setupTimings();
+		}
+		
+		setupMatchLog();
+		
+		m_scheduler.start(Math.min(m_executeThreads, Runtime.getRuntime().availableProcessors()), m_controlLoopWaitTime);
+		m_telemetryRing.start(createRecordSink(), m_telemetryPeriod);
+		phase = startupPhase("dashboard", phase);
+		
+		m_startupTimings.put("total", (phase - start) / 1e9);
+		
+		for (Map.Entry<String, Double> e: m_startupTimings.entrySet()) {
+			m_telemetry.putNumber(m_telemetry.getEntry("/robot/startup/" + e.getKey()), e.getValue() * 1000);
+		}
+		
+		m_telemetry.flush();
+		
+		if (Boolean.getBoolean(TRAINING_PROPERTY)) {
+			train();
+			shutdown();
+			
+			// exiting is what makes the JVM write the archive
+			System.out.println("Training mode: done");
+			System.exit(0);
+		}
+	}
+	
+	/**
+	 * Add a component to be executed
+	 */
+	protected void addComponent(MagicComponent component) {
+		m_scheduler.add(component);
+	}
+	
+	/**
+	 * Add a component to be executed after the components that it depends
+	 * on. Dependencies are only used to decide which components can be
+	 * executed in parallel when m_executeThreads is greater than 1;
+	 * otherwise components are always executed in the order they were added.
+	 *
+	 * @param component  Component to be executed
+	 * @param dependsOn  Components that must finish executing before this one
+	 */
+	protected void addComponent(MagicComponent component, MagicComponent... dependsOn) {
+		m_scheduler.add(component, dependsOn);
+	}
+	
+	/**
+	 * Add a component that only needs to be executed periodically, such as
+	 * telemetry or slow sensors. The period is rounded to a whole number of
+	 * control loop iterations (m_controlLoopWaitTime), and the component is
+	 * skipped on the iterations in between. Components with the same period
+	 * are staggered so they don't all execute on the same iteration.
+	 *
+	 * This allows m_controlLoopWaitTime to be shortened for components that
+	 * need to run quickly without running every component more often.
+	 *
+	 * @param component  Component to be executed
+	 * @param period     How often to execute the component, in seconds
+	 * @param dependsOn  Components that must finish executing before this one
+	 *                   (see addComponent(MagicComponent, MagicComponent...))
+	 */
+	protected void addComponent(MagicComponent component, double period, MagicComponent... dependsOn) {
+		m_scheduler.add(component, period, dependsOn);
+	}
+	
+	/**
+	 * Add a component that executes on its own thread instead of in the
+	 * control loop, for components that block on I/O such as cameras,
+	 * serial sensors or file logging. A slow execute() in this component
+	 * won't delay the rest of the robot.
+	 *
+	 * onEnabled is called on the robot thread along with all of the other
+	 * components, and then the component starts executing. When the robot
+	 * is disabled, the thread is interrupted and onDisabled is only called
+	 * once execute has returned.
+	 *
+	 * Use a LatestValue to hand data between this component and the rest
+	 * of the robot. If execute throws an exception, it is rethrown from
+	 * the control loop.
+	 *
+	 * @param component  Component to be executed
+	 * @param period     How often to execute the component in seconds, or 0
+	 *                   to call execute again as soon as it returns
+	 */
+	protected void addAsyncComponent(MagicComponent component, double period) {
+		m_scheduler.addAsync(component, period);
+	}
+	
+	/**
+	 * Add an autonomous mode
+	 *
+	 * @param name			Name to be displayed to the user
+	 * @param autonomous	Autonomous mode object
+	 */
+	protected void addAutonomous(String name, MagicAutonomous autonomous) {
+		addAutonomous(name, autonomous, false);
+	}
+	
+	/**
+	 * Add an autonomous mode
+	 *
+	 * @param name			Name to be displayed to the user
+	 * @param autonomous	Autonomous mode object
+	 * @param default       If true, set to be the default mode
+	 */
+	protected void addAutonomous(String name, MagicAutonomous autonomous, boolean defaultMode) {
+		if (m_autonomous.containsKey(name) || m_lazyAutonomous.containsKey(name)) {
+			throw new RuntimeException("Duplciate autonomous mode '" + name + "'");
+		}
+		
+		m_autonomous.put(name, autonomous);
+		m_env.addAutonomousMode(name, defaultMode);
+	}
+	
+	/**
+	 * Add an autonomous mode that is only created when it is needed
+	 *
+	 * @param name			Name to be displayed to the user
+	 * @param factory		Creates the autonomous mode
+	 */
+	protected void addLazyAutonomous(String name, Supplier<? extends MagicAutonomous> factory) {
+		addLazyAutonomous(name, factory, false);
+	}
+	
+	/**
+	 * Add an autonomous mode that is only created when it is needed, for
+	 * modes that are expensive to create (for example, ones that load
+	 * trajectories). The mode is created while the robot is disabled as
+	 * soon as it is selected on the dashboard, or when autonomous starts
+	 * if it wasn't selected beforehand. Injection is performed on it
+	 * after it is created.
+	 *
+	 * @param name			Name to be displayed to the user
+	 * @param factory		Creates the autonomous mode
+	 * @param defaultMode   If true, set to be the default mode
+	 */
+	protected void addLazyAutonomous(String name, Supplier<? extends MagicAutonomous> factory, boolean defaultMode) {
+		if (m_autonomous.containsKey(name) || m_lazyAutonomous.containsKey(name)) {
+			throw new RuntimeException("Duplciate autonomous mode '" + name + "'");
+		}
+		
+		m_lazyAutonomous.put(name, factory);
+		m_env.addAutonomousMode(name, defaultMode);
+	}
+	
+	/**
+	 * @return number of times that the control loop took longer than
+	 *         m_controlLoopWaitTime
+	 */
+	public int getLoopOverrunCount() {
+		return m_loopOverruns;
+	}
+	
+	/**
+	 * @return how long each phase of robotInit took, in seconds
+	 */
+	public Map<String, Double> getStartupTimings() {
+		return Collections.unmodifiableMap(m_startupTimings);
+	}
+	
+	/**
+	 * @return how long each component took to warm up
+	 */
+	public List<WarmUpResult> getWarmUpResults() {
+		return Collections.unmodifiableList(m_warmUpResults);
+	}
+	
+	/**
+	 * @return the telemetry buffer that is sent to NetworkTables every
+	 *         m_telemetryPeriod seconds. Components can also have it
+	 *         injected as a TelemetryBuffer named telemetry, unless
+	 *         the robot has its own field with that name.
+	 */
+	protected TelemetryBuffer getTelemetry() {
+		return m_telemetry;
+	}
+	
+	/**
+	 * @return the ring that components record telemetry into from any
+	 *         thread. A background thread drains it to the sink
+	 *         returned by createRecordSink. Components can also have it
+	 *         injected as a TelemetryRing named telemetryRing, unless
+	 *         the robot has its own field with that name.
+	 */
+	protected TelemetryRing getTelemetryRing() {
+		return m_telemetryRing;
+	}
+	
+	/**
+	 * @return timing statistics, or null if m_timingEnabled is not set
+	 */
+	public LoopTimings getLoopTimings() {
+		return m_timings;
+	}
+	
+	/**
+	 * Implement this and create all of your robot objects here
+	 */
+	protected abstract void createObjects();
+	
+	/**
+	 * @return the environment that the robot is running in
+	 */
+	public RobotEnvironment getEnvironment() {
+		return m_env;
+	}
+	
+	/**
+	 * Sets the environment. Must be called before robotInit.
+	 */
+	void setEnvironment(RobotEnvironment env) {
+		if (m_started) {
+			throw new IllegalStateException("The environment must be set before robotInit is called");
+		}
+		m_env = env;
+	}
+	
+	/**
+	 * Creates the timer used to run the control loop at a fixed rate. By
+	 * default, this comes from the environment, which on a robot uses the
+	 * FPGA notifier. Override this to use a JavaLoopTimer or
+	 * VirtualLoopTimer instead, for example in simulation.
+	 *
+	 * The returned timer is closed when the control loop exits.
+	 */
+	protected LoopTimer createLoopTimer() {
+		return m_env.createLoopTimer();
+	}
+	
+	/**
+	 * Creates the sink that records from getTelemetryRing() are written
+	 * to, on a background thread. By default, the latest value of each
+	 * record is sent to NetworkTables as /components/SOURCE/KEY. Override
+	 * this to log to a file or stdout instead (see TelemetryRing.printTo).
+	 */
+	protected TelemetryRing.RecordSink createRecordSink() {
+		return TelemetryRing.sendTo(m_env.getTelemetrySink(), "/components");
+	}
+	
+	/**
+	 * Creates the log that mode changes, state machine transitions, loop
+	 * overruns and component timings are recorded in. By default there is
+	 * no log; override this to return MatchLog.open(path) to record one.
+	 * Use MatchLogConverter to read the log after the match.
+	 *
+	 * @return match log, or null
+	 */
+	protected MatchLog createMatchLog() throws IOException {
+		return null;
+	}
+	
+	/**
+	 * Called when an iteration of the control loop took longer than
+	 * m_controlLoopWaitTime. What happens to the next iteration depends on
+	 * m_overrunPolicy.
+	 *
+	 * Users may override this to degrade gracefully when the robot is
+	 * overloaded. By default, a warning is printed at most once per second.
+	 *
+	 * @param lateness  How late the loop was, in seconds
+	 * @param missed    Number of loop periods that were missed
+	 */
+	protected void onLoopOverrun(double lateness, int missed) {
+		long now = System.nanoTime();
+		if (now - m_lastOverrunWarning > 1000000000L || m_loopOverruns == 1) {
+			m_lastOverrunWarning = now;
+			System.err.printf("Warning: control loop overrun by %.1fms (%d total)\n", lateness * 1000, m_loopOverruns);
+		}
+	}
+	
+	/**
+	 * Initialization code for disabled mode should go here.
+	 *
+	 * Users may override this method for initialization code which will be
+	 * called each time the robot enters disabled mode.
+	 *
+	 * Note: the 'on_disable' functions of all components are called
+	 *       before this function is called
+	 */
+	protected void disabledInit() {
+		// empty
+	}
+	
+	/**
+	 * Periodic code for disabled mode should go here
+	 *
+	 * Users should override this method for code which will be called
+	 * periodically at a regular rate while the robot is in disabled mode.
+	 *
+	 */
+	protected void disabledPeriodic() {
+		// empty
+	}
+	
+	/**
+	 * Global initialization code for autonomous control code may go here.
+	 *
+	 * Users may override this method for initialization code which will be
+	 * called each time the robot enters autonomous mode.
+	 *
+	 * The 'on_enable' functions of all components are called
+	 * before this function is called
+	 *
+	 */
+	protected void autonomousInit() {
+		// empty
+	}
+	
+	/**
+	 * Initialization code for teleop control code may go here.
+	 *
+	 * Users may override this method for initialization code which will be
+	 * called each time the robot enters teleop mode.
+	 *
+	 * The 'on_enable' functions of all components are called
+	 * before this function is called
+	 *
+	 */
+	protected void teleopInit() {
+		// empty
+	}
+	
+	/**
+	 * Periodic code for teleop mode should go here.
+	 *
+	 * Users should override this method for code which will be called
+	 * periodically at a regular rate while the robot is in teleop mode.
+	 *
+	 * This code executes before the 'execute' functions of all
+	 * components are called
+	 */
+	protected void teleopPeriodic() {
+		// empty
+	}
+	
+	final void disabled() {
+		setMode("disabled");
+		
+		disableComponents();
+		disabledInit();
+		
+		if (m_warmUpEnabled && !m_warmedUp) {
+			m_warmedUp = true;
+			warmUp();
+		}
+		
+		try (PreciseDelay delay = createDelay()) {
+			while (m_env.isDisabled()) {
+				m_telemetry.putBoolean(m_dsAttachedEntry, m_env.isDSAttached());
+				
+				disabledPeriodic();
+				
+				prepareAutonomous();
+				
+				publishTelemetry();
+				delay.delay();
+			}
+		}
+	}
+	
+	final void autonomous() {
+		setMode("auto");
+		
+		enableComponents();
+		autonomousInit();
+		
+		String modeName = getSelectedAutonomous();
+		MagicAutonomous autoMode = getAutonomous(modeName);
+		if (autoMode == null) {
+			System.err.println("Warning: no autonomous mode selected");
+			
+			autoMode = new MagicAutonomous() {
+				@Override
+				public void autonomousPeriodic() {
+				}
+			};
+			
+		} else {
+			System.out.println("Enabling autonomous mode '" + modeName + "'");
+		}
+		
+		autoMode.onEnabled();
+		
+		try (PreciseDelay delay = createDelay()) {
+			while (m_env.isAutonomous() && m_env.isEnabled()) {
+				
+				long start = timingStart();
+				autoMode.autonomousPeriodic();
+				timingStop(m_autonomousTiming, start);
+				
+				execute();
+				publishTelemetry();
+				delay.delay();
+			}
+		}
+		
+		autoMode.onDisabled();
+		
+		disableComponents();
+	}
+	
+	final void operatorControl() {
+		setMode("teleop");
+		
+		// initialize things
+		enableComponents();
+		
+		teleopInit();
+		
+		try (PreciseDelay delay = createDelay()) {
+			while (m_env.isOperatorControl() && m_env.isEnabled()) {
+				long start = timingStart();
+				teleopPeriodic();
+				timingStop(m_teleopTiming, start);
+				
+				execute();
+				publishTelemetry();
+				delay.delay();
+			}
+		}
+		
+		disableComponents();
+	}
+	
+	final void test() {
+		setMode("teleop");
+		
+		while (m_env.isTest() && m_env.isEnabled()) {
+			m_env.testPeriodic();
+		}
+	}
+	
+	/**
+	 * Sends the new mode immediately
+	 */
+	private void setMode(String mode) {
+		m_telemetry.putString(m_modeEntry, mode);
+		if (m_matchLog != null) {
+			m_matchLog.writeMode(m_matchLog.getNameId(mode));
+		}
+		m_telemetry.putBoolean(m_dsAttachedEntry, m_env.isDSAttached());
+		m_telemetry.flush();
+		m_nextTelemetryFlush = m_env.getClock().nanoTime() + (long)(m_telemetryPeriod * 1e9);
+	}
+	
+	private void publishTelemetry() {
+		publishTimings();
+		
+		long now = m_env.getClock().nanoTime();
+		if (now - m_nextTelemetryFlush >= 0) {
+			m_nextTelemetryFlush = now + (long)(m_telemetryPeriod * 1e9);
+			m_telemetry.putNumber(m_droppedEntry, m_telemetryRing.getDroppedCount());
+			m_telemetry.flush();
+		}
+	}
+	
+	private String getSelectedAutonomous() {
+		return m_env.getSelectedAutonomous();
+	}
+	
+	/**
+	 * @return the autonomous mode, creating it if it is a lazy mode that
+	 *         hasn't been created yet, or null
+	 */
+	private MagicAutonomous getAutonomous(String modeName) {
+		MagicAutonomous autoMode = m_autonomous.get(modeName);
+		if (autoMode == null && modeName != null) {
+			Supplier<? extends MagicAutonomous> factory = m_lazyAutonomous.get(modeName);
+			if (factory != null) {
+				long start = System.nanoTime();
+				
+				autoMode = factory.get();
+				if (autoMode == null) {
+					throw new RuntimeException("Autonomous mode '" + modeName + "' was not created");
+				}
+				
+				m_registry.inject(autoMode, null);
+				m_autonomous.put(modeName, autoMode);
+				useClock(autoMode);
+				
+				nameOf(autoMode, modeName);
+				if (m_matchLog != null && autoMode instanceof StateMachine) {
+					m_matchLog.addStateMachine((StateMachine)autoMode, nameOf(autoMode, null));
+				}
+				
+				System.out.printf("Created autonomous mode '%s' in %.1fms\n", modeName, (System.nanoTime() - start) / 1e6);
+				
+				if (m_warmUpEnabled && m_env.isDisabled() && autoMode instanceof MagicComponent) {
+					warmUp((MagicComponent)autoMode);
+				}
+			}
+		}
+		return autoMode;
+	}
+	
+	/**
+	 * Creates the selected autonomous mode while disabled, so that
+	 * autonomous doesn't have to wait for it
+	 */
+	private void prepareAutonomous() {
+		if (m_lazyAutonomous.isEmpty()) {
+			return;
+		}
+		
+		String modeName = getSelectedAutonomous();
+		if (modeName != null && !modeName.equals(m_preparedAutonomous)) {
+			m_preparedAutonomous = modeName;
+			getAutonomous(modeName);
+		}
+	}
+	
+	/**
+	 * Loads the classes that the robot normally uses by creating every
+	 * autonomous mode and running each mode for a little while. In training
+	 * mode, robotInit exits afterwards so that the JVM writes its class
+	 * data sharing archive.
+	 */
+	void train() {
+		if (!m_env.isSimulation()) {
+			throw new RuntimeException(TRAINING_PROPERTY + " can only be used in simulation");
+		}
+		
+		System.out.println("Training mode: exercising the robot");
+		
+		for (String name: new ArrayList<>(m_lazyAutonomous.keySet())) {
+			getAutonomous(name);
+		}
+		
+		try (PreciseDelay delay = createDelay()) {
+			for (MagicComponent component: m_scheduler.getComponents()) {
+				component.warmUp();
+			}
+			
+			for (MagicAutonomous autoMode: m_autonomous.values()) {
+				enableComponents();
+				autoMode.onEnabled();
+				for (int i = 0; i < TRAINING_ITERATIONS; i++) {
+					autoMode.autonomousPeriodic();
+					execute();
+					delay.delay();
+				}
+				autoMode.onDisabled();
+				disableComponents();
+			}
+			
+			enableComponents();
+			teleopInit();
+			for (int i = 0; i < TRAINING_ITERATIONS; i++) {
+				teleopPeriodic();
+				execute();
+				delay.delay();
+			}
+			disableComponents();
+		}
+	}
+	
+	private void warmUp() {
+		List<MagicComponent> components = new ArrayList<>(m_scheduler.getComponents());
+		
+		// autonomous modes are often state machines
+		for (MagicAutonomous autonomous: m_autonomous.values()) {
+			if (autonomous instanceof MagicComponent && !components.contains(autonomous)) {
+				components.add((MagicComponent)autonomous);
+			}
+		}
+		
+		for (MagicComponent component: components) {
+			if (!m_env.isDisabled()) {
+				System.err.println("Warning: robot was enabled before warm-up finished");
+				return;
+			}
+			warmUp(component);
+		}
+	}
+	
+	private void warmUp(MagicComponent component) {
+		try {
+			if (component.getClass().getMethod("warmUp").getDeclaringClass() == MagicComponent.class) {
+				return;
+			}
+		} catch (NoSuchMethodException e) {
+			return;
+		}
+		
+		long start = System.nanoTime();
+		int i = 0;
+		
+		// stop early if the robot is enabled
+		while (i < m_warmUpIterations && ((i & 0xff) != 0 || m_env.isDisabled())) {
+			component.warmUp();
+			i++;
+		}
+		
+		WarmUpResult result = new WarmUpResult(nameOf(component, null), i, System.nanoTime() - start);
+		m_warmUpResults.add(result);
+		System.out.println("Warm-up: " + result);
+	}
+	
+	private long startupPhase(String name, long start) {
+		long now = System.nanoTime();
+		m_startupTimings.put(name, (now - start) / 1e9);
+		return now;
+	}
+	
+	private static <T> void forEach(ForkJoinPool pool, Collection<T> items, Consumer<T> action) {
+		if (pool == null || items.size() < 2) {
+			items.forEach(action);
+			return;
+		}
+		
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (T item: items) {
+			tasks.add(pool.submit(() -> action.accept(item)));
+		}
+		for (ForkJoinTask<?> task: tasks) {
+			task.join();
+		}
+	}
+	
+	private PreciseDelay createDelay() {
+		return new PreciseDelay(m_controlLoopWaitTime, createLoopTimer(), m_overrunPolicy, this::loopOverrun);
+	}
+	
+	private void loopOverrun(double lateness, int missed) {
+		m_loopOverruns += 1;
+		if (m_matchLog != null) {
+			m_matchLog.writeOverrun((long)(lateness * 1e9), missed);
+		}
+		onLoopOverrun(lateness, missed);
+	}
+	
+	private void enableComponents() {
+		m_scheduler.enable();
+	}
+	
+	private void disableComponents() {
+		m_scheduler.disable();
+	}
+	
+	private void execute() {
+		long start = timingStart();
+		m_scheduler.execute();
+		timingStop(m_executeTiming, start);
+	}
+	
+	private void setupMatchLog() {
+		try {
+			m_matchLog = createMatchLog();
+		} catch (IOException e) {
+			System.err.println("Warning: could not create match log: " + e);
+		}
+		
+		if (m_matchLog == null) {
+			return;
+		}
+		
+		m_scheduler.setMatchLog(m_matchLog);
+		
+		for (MagicComponent component: m_scheduler.getComponents()) {
+			if (component instanceof StateMachine) {
+				m_matchLog.addStateMachine((StateMachine)component, nameOf(component, null));
+			}
+		}
+		for (MagicAutonomous autonomous: m_autonomous.values()) {
+			if (autonomous instanceof StateMachine && !(autonomous instanceof MagicComponent &&
+														m_scheduler.getComponents().contains(autonomous))) {
+				m_matchLog.addStateMachine((StateMachine)autonomous, nameOf(autonomous, null));
+			}
+		}
+		
+		// the log is readable even if it isn't closed, but closing it
+		// trims the unused part of the last segment
+		Runtime.getRuntime().addShutdownHook(new Thread(this::closeMatchLog, "magicbot-matchlog-close"));
+	}
+	
+	/**
+	 * @param preferred  Name to use the first time the object is named, or
+	 *                   null to use its class name
+	 * @return the name that an object is timed and logged under, which is
+	 *         unique
+	 */
+	private String nameOf(Object o, String preferred) {
+		String name = m_names.get(o);
+		if (name == null) {
+			if (preferred == null) {
+				// anonymous classes don't have a simple name
+				preferred = o.getClass().getSimpleName();
+				if (preferred.isEmpty()) {
+					preferred = o.getClass().getName();
+				}
+			}
+			
+			name = preferred;
+			for (int i = 2; m_names.containsValue(name); i++) {
+				name = preferred + "_" + i;
+			}
+			m_names.put(o, name);
+		}
+		return name;
+	}
+	
+	/**
+	 * Switches a state machine to the environment's time, when that isn't
+	 * the system time
+	 */
+	private void useClock(Object o) {
+		TimeSource clock = m_env.getClock();
+		if (o instanceof StateMachine && clock != TimeSource.SYSTEM) {
+			((StateMachine)o).setClock(clock);
+		}
+	}
+	
+	/**
+	 * Stops the background threads, for when the robot is run by
+	 * HeadlessRunner or in training mode
+	 */
+	void shutdown() {
+		m_scheduler.close();
+		m_telemetryRing.close();
+		closeMatchLog();
+	}
+	
+	private void closeMatchLog() {
+		if (m_matchLog != null) {
+			try {
+				m_matchLog.close();
+			} catch (IOException e) {
+				System.err.println("Warning: could not close match log: " + e);
+			}
+		}
+	}
+	
+	private void setupTimings() {
+		m_timings = new LoopTimings(m_timingWindow);
+		
+		m_teleopTiming = m_timings.add(LoopTimings.TELEOP_PERIODIC);
+		m_autonomousTiming = m_timings.add(LoopTimings.AUTONOMOUS_PERIODIC);
+		m_executeTiming = m_timings.add(LoopTimings.EXECUTE);
+		
+		m_scheduler.setTimings(m_timings);
+		
+		// look these up now so that publishing doesn't need to build keys
+		List<TimingStats> all = m_timings.getAll();
+		
+		m_timingEntries = new int[all.size() * 4];
+		for (int i = 0; i < all.size(); i++) {
+			String prefix = "/robot/timing/" + all.get(i).getName() + "/";
+			m_timingEntries[i * 4] = m_telemetry.getEntry(prefix + "min");
+			m_timingEntries[i * 4 + 1] = m_telemetry.getEntry(prefix + "mean");
+			m_timingEntries[i * 4 + 2] = m_telemetry.getEntry(prefix + "p99");
+			m_timingEntries[i * 4 + 3] = m_telemetry.getEntry(prefix + "max");
+		}
+		
+		m_nextTimingPublish = System.nanoTime();
+	}
+	
+	private long timingStart() {
+		return m_timings == null ? 0 : System.nanoTime();
+	}
+	
+	private void timingStop(TimingStats stats, long start) {
+		if (stats != null) {
+			stats.record(System.nanoTime() - start);
+		}
+	}
+	
+	private void publishTimings() {
+		if (m_timings == null) {
+			return;
+		}
+		
+		long now = System.nanoTime();
+		if (now - m_nextTimingPublish < 0) {
+			return;
+		}
+		
+		m_nextTimingPublish = now + (long)(m_timingPublishPeriod * 1e9);
+		
+		List<TimingStats> all = m_timings.getAll();
+		for (int i = 0; i < all.size(); i++) {
+			TimingStats stats = all.get(i);
+			
+			m_telemetry.putNumber(m_timingEntries[i * 4], stats.getMin() / 1e6);
+			m_telemetry.putNumber(m_timingEntries[i * 4 + 1], stats.getMean() / 1e6);
+			m_telemetry.putNumber(m_timingEntries[i * 4 + 2], stats.getP99() / 1e6);
+			m_telemetry.putNumber(m_timingEntries[i * 4 + 3], stats.getMax() / 1e6);
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.github.robotpy.magicbot.sm.StateHandle;
+import io.github.robotpy.magicbot.sm.StateMachine;
+import io.github.robotpy.magicbot.sm.StateTransitionListener;
+import io.github.robotpy.magicbot.sm.TransitionCause;
+
+/**
+ * Compact binary log of what the robot did during a match: mode changes,
+ * state machine transitions, loop overruns and component timings. Use
+ * MatchLogReader to read it, or MatchLogConverter to convert it to CSV
+ * or JSON. To record the transitions of a state machine, use
+ * addStateMachine, or add the log to it with
+ * StateMachine.addTransitionListener to name it after its class.
+ *
+ * The log is written to a memory-mapped file in fixed-size segments. The
+ * next segment is mapped ahead of time by a background thread, so writing
+ * a record is just a few stores into memory.
+ *
+ * File format (little endian): a 32-byte header, then 32-byte records.
+ *
+ * - header: "MAGICLOG", int version, int segment size, long wall clock
+ *   time in milliseconds when the log was opened, long timestamp when
+ *   the log was opened
+ * - record: long timestamp in nanoseconds, byte type, 3 bytes padding,
+ *   int id, int arg, 4 bytes padding, long value
+ *
+ * Names (of modes, components, state machines and states) are written
+ * once as NAME records, and other records refer to them by id. A NAME
+ * record's arg is the length of the UTF-8 name, which follows the record,
+ * padded to a multiple of 32 bytes. A record with type 0 marks the end
+ * of a segment.
+ */
+public final class MatchLog implements StateTransitionListener, AutoCloseable {
+	
+	static final byte[] MAGIC = "MAGICLOG".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int RECORD_SIZE = 32;
+	
+	/** Default size of each segment of the file */
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+	
+	// record types
+	public static final byte END = 0;
+	/** id: name */
+	public static final byte NAME = 1;
+	/** id: mode name */
+	public static final byte MODE = 2;
+	/** id: state machine name, arg: state name, value: TransitionCause ordinal */
+	public static final byte STATE_ENTER = 3;
+	/** id: state machine name, arg: state name, value: TransitionCause ordinal */
+	public static final byte STATE_EXIT = 4;
+	/** id: state machine name */
+	public static final byte DONE = 5;
+	/** arg: missed loop periods, value: lateness in nanoseconds */
+	public static final byte OVERRUN = 6;
+	/** id: component name, value: execute time in nanoseconds */
+	public static final byte TIMING = 7;
+	
+	private final FileChannel m_channel;
+	private final int m_segmentSize;
+	private final TimeSource m_clock;
+	
+	private final ExecutorService m_mapper;
+	private Future<MappedByteBuffer> m_nextSegment;
+	
+	private MappedByteBuffer m_buffer;
+	private long m_segment = 0;
+	private boolean m_failed = false;
+	private boolean m_closed = false;
+	
+	private final Map<String, Integer> m_names = new HashMap<>();
+	
+	// name ids of each state machine, followed by the ids of its states
+	private final Map<StateMachine, int[]> m_machines = new IdentityHashMap<>();
+	
+	/**
+	 * Creates a new log, replacing the file if it exists
+	 */
+	public static MatchLog open(Path path) throws IOException {
+		return new MatchLog(path, DEFAULT_SEGMENT_SIZE, TimeSource.SYSTEM);
+	}
+	
+	/**
+	 * Creates a new log, replacing the file if it exists
+	 *
+	 * @param path         File to write
+	 * @param segmentSize  Size of each mapped segment in bytes, a multiple
+	 *                     of 32
+	 * @param clock        Source of record timestamps
+	 */
+	public MatchLog(Path path, int segmentSize, TimeSource clock) throws IOException {
+		if (segmentSize < 2 * RECORD_SIZE || segmentSize % RECORD_SIZE != 0) {
+			throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+		}
+		
+		m_segmentSize = segmentSize;
+		m_clock = clock;
+		m_channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+									 StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		
+		m_mapper = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "magicbot-matchlog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		try {
+			m_buffer = map(0);
+		} catch (IOException e) {
+			m_channel.close();
+			m_mapper.shutdown();
+			throw e;
+		}
+		
+		m_nextSegment = m_mapper.submit(() -> map(1));
+		
+		m_buffer.put(MAGIC);
+		m_buffer.putInt(VERSION);
+		m_buffer.putInt(segmentSize);
+		m_buffer.putLong(System.currentTimeMillis());
+		m_buffer.putLong(clock.nanoTime());
+	}
+	
+	private MappedByteBuffer map(long segment) throws IOException {
+		MappedByteBuffer buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, segment * m_segmentSize, m_segmentSize);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+	
+	/**
+	 * Returns the id of a name, writing it to the log the first time
+	 *
+	 * @return id, or -1 if the log has failed
+	 */
+	public synchronized int getNameId(String name) {
+		Integer id = m_names.get(name);
+		if (id != null) {
+			return id;
+		}
+		
+		id = m_names.size();
+		
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int padded = (bytes.length + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+		if (RECORD_SIZE + padded > m_segmentSize) {
+			throw new IllegalArgumentException("Name is too long: " + name);
+		}
+		
+		if (!reserve(RECORD_SIZE + padded)) {
+			return -1;
+		}
+		
+		int pos = m_buffer.position();
+		writeRecord(NAME, id, bytes.length, 0);
+		m_buffer.put(bytes);
+		m_buffer.position(pos + RECORD_SIZE + padded);
+		
+		m_names.put(name, id);
+		return id;
+	}
+	
+	/**
+	 * Writes a record. This doesn't allocate, and only does I/O when
+	 * the current segment is full and the next one isn't ready yet.
+	 *
+	 * @param type   Record type
+	 * @param id     Depends on the record type
+	 * @param arg    Depends on the record type
+	 * @param value  Depends on the record type
+	 */
+	public synchronized void write(byte type, int id, int arg, long value) {
+		if (reserve(RECORD_SIZE)) {
+			writeRecord(type, id, arg, value);
+		}
+	}
+	
+	private void writeRecord(byte type, int id, int arg, long value) {
+		int pos = m_buffer.position();
+		m_buffer.putLong(pos, m_clock.nanoTime());
+		m_buffer.put(pos + 8, type);
+		m_buffer.putInt(pos + 12, id);
+		m_buffer.putInt(pos + 16, arg);
+		m_buffer.putLong(pos + 24, value);
+		m_buffer.position(pos + RECORD_SIZE);
+	}
+	
+	/**
+	 * Switches to the next segment if there isn't enough room
+	 */
+	private boolean reserve(int size) {
+		if (m_failed || m_closed) {
+			return false;
+		}
+		
+		if (m_buffer.remaining() >= size) {
+			return true;
+		}
+		
+		// the rest of this segment is left as zeros, which the reader skips
+		try {
+			m_buffer = m_nextSegment.get();
+			m_segment += 1;
+			
+			final long next = m_segment + 1;
+			m_nextSegment = m_mapper.submit(() -> map(next));
+			return true;
+			
+		} catch (Exception e) {
+			m_failed = true;
+			System.err.println("Warning: match log stopped, could not map the next segment: " + e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Records the robot changing modes
+	 */
+	public void writeMode(int modeNameId) {
+		write(MODE, modeNameId, 0, 0);
+	}
+	
+	/**
+	 * Records a loop overrun
+	 */
+	public void writeOverrun(long latenessNanos, int missed) {
+		write(OVERRUN, 0, missed, latenessNanos);
+	}
+	
+	/**
+	 * Records how long a component took to execute
+	 */
+	public void writeTiming(int componentNameId, long nanos) {
+		write(TIMING, componentNameId, 0, nanos);
+	}
+	
+	/**
+	 * Records the transitions of a state machine under a name. MagicRobot
+	 * uses the name of the robot's field that holds the state machine, so
+	 * that two instances of the same class can be told apart.
+	 */
+	public synchronized void addStateMachine(StateMachine machine, String name) {
+		m_machines.put(machine, getIds(machine, name));
+		machine.addTransitionListener(this);
+	}
+	
+	private int[] getIds(StateMachine machine, String name) {
+		StateHandle[] states = machine.getStateHandles();
+		int[] ids = new int[states.length + 1];
+		ids[0] = getNameId(name);
+		for (int i = 0; i < states.length; i++) {
+			ids[i + 1] = getNameId(states[i].getName());
+		}
+		return ids;
+	}
+	
+	/**
+	 * Records a state machine transition
+	 */
+	@Override
+	public synchronized void onTransition(StateMachine machine, StateHandle from, StateHandle to,
+										  TransitionCause cause, long timestamp, long machineTime) {
+		int[] ids = m_machines.get(machine);
+		if (ids == null) {
+			// anonymous classes don't have a simple name
+			String name = machine.getClass().getSimpleName();
+			ids = getIds(machine, name.isEmpty() ? machine.getClass().getName() : name);
+			m_machines.put(machine, ids);
+		}
+		
+		if (from != null) {
+			write(STATE_EXIT, ids[0], ids[from.getIndex() + 1], cause.ordinal());
+		}
+		
+		if (to != null) {
+			write(STATE_ENTER, ids[0], ids[to.getIndex() + 1], cause.ordinal());
+		} else {
+			write(DONE, ids[0], 0, 0);
+		}
+	}
+	
+	/**
+	 * Writes any remaining records to disk, and truncates the file to
+	 * the end of the log
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (m_closed) {
+			return;
+		}
+		m_closed = true;
+		
+		long end = m_segment * m_segmentSize + m_buffer.position();
+		
+		// make sure the next segment isn't being mapped while truncating
+		m_mapper.shutdown();
+		try {
+			m_mapper.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		m_buffer.force();
+		m_buffer = null;
+		m_nextSegment = null;
+		
+		try {
+			m_channel.truncate(end);
+		} finally {
+			m_channel.close();
+		}
+	}
+}
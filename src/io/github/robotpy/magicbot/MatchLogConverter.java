@@ -0,0 +1,113 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Converts a match log to CSV or JSON:
+ *
+ *     java -cp Magicbot.jar io.github.robotpy.magicbot.MatchLogConverter [--json] match.log > match.csv
+ *
+ * Each record has the time in seconds since the log was opened, the
+ * record type, the mode/component/state machine name, the state name, and
+ * the record's arg and value (nanoseconds for OVERRUN and TIMING records).
+ */
+public final class MatchLogConverter {
+	
+	private MatchLogConverter() {}
+	
+	public static void toCsv(MatchLogReader reader, PrintStream out) {
+		out.println("time,type,name,state,arg,value");
+		while (reader.hasNext()) {
+			MatchLogReader.Record r = reader.next();
+			out.printf(Locale.ROOT, "%.6f,%s,%s,%s,%d,%d%n", r.time, r.getTypeName(), csv(r.name), csv(r.state), r.arg, r.value);
+		}
+	}
+	
+	public static void toJson(MatchLogReader reader, PrintStream out) {
+		out.println("[");
+		boolean first = true;
+		while (reader.hasNext()) {
+			MatchLogReader.Record r = reader.next();
+			if (!first) {
+				out.println(",");
+			}
+			first = false;
+			out.printf(Locale.ROOT, "  {\"time\": %.6f, \"type\": \"%s\", \"name\": %s, \"state\": %s, \"arg\": %d, \"value\": %d}",
+					   r.time, r.getTypeName(), json(r.name), json(r.state), r.arg, r.value);
+		}
+		out.println();
+		out.println("]");
+	}
+	
+	private static String csv(String s) {
+		if (s == null) {
+			return "";
+		} else if (s.contains(",") || s.contains("\"")) {
+			return "\"" + s.replace("\"", "\"\"") + "\"";
+		}
+		return s;
+	}
+	
+	private static String json(String s) {
+		if (s == null) {
+			return "null";
+		}
+		
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c: s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	public static void main(String[] args) throws IOException {
+		boolean json = false;
+		Path path = null;
+		
+		for (String arg: args) {
+			if (arg.equals("--json")) {
+				json = true;
+			} else {
+				path = Paths.get(arg);
+			}
+		}
+		
+		if (path == null) {
+			System.err.println("Usage: MatchLogConverter [--json] FILE");
+			System.exit(1);
+		}
+		
+		MatchLogReader reader = new MatchLogReader(path);
+		if (json) {
+			toJson(reader, System.out);
+		} else {
+			toCsv(reader, System.out);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a log written by MatchLog
+ */
+public final class MatchLogReader {
+	
+	/**
+	 * A single record from the log, with names resolved
+	 */
+	public static final class Record {
+		/** One of the MatchLog record types */
+		public final byte type;
+		/** Seconds since the log was opened */
+		public final double time;
+		/** Mode, component or state machine name, or null */
+		public final String name;
+		/** State name, or null */
+		public final String state;
+		public final int arg;
+		public final long value;
+		
+		Record(byte type, double time, String name, String state, int arg, long value) {
+			this.type = type;
+			this.time = time;
+			this.name = name;
+			this.state = state;
+			this.arg = arg;
+			this.value = value;
+		}
+		
+		/**
+		 * @return name of the record type, such as STATE_ENTER
+		 */
+		public String getTypeName() {
+			return typeName(type);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%.6f %s %s %s %d %d", time, getTypeName(), name, state, arg, value);
+		}
+	}
+	
+	private final MappedByteBuffer m_buffer;
+	private final int m_segmentSize;
+	private final long m_wallClockStart;
+	private final long m_start;
+	
+	private final List<String> m_names = new ArrayList<>();
+	
+	private int m_position = MatchLog.RECORD_SIZE;
+	private Record m_next = null;
+	
+	public MatchLogReader(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Log is too large: " + path);
+			}
+			m_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		m_buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		byte[] magic = new byte[MatchLog.MAGIC.length];
+		if (m_buffer.limit() < MatchLog.RECORD_SIZE) {
+			throw new IOException("Not a match log: " + path);
+		}
+		m_buffer.get(magic);
+		if (!Arrays.equals(magic, MatchLog.MAGIC)) {
+			throw new IOException("Not a match log: " + path);
+		}
+		
+		int version = m_buffer.getInt();
+		if (version != MatchLog.VERSION) {
+			throw new IOException("Unsupported match log version " + version);
+		}
+		
+		m_segmentSize = m_buffer.getInt();
+		m_wallClockStart = m_buffer.getLong();
+		m_start = m_buffer.getLong();
+	}
+	
+	/**
+	 * @return wall clock time that the log was opened, in milliseconds
+	 *         since the epoch
+	 */
+	public long getWallClockStart() {
+		return m_wallClockStart;
+	}
+	
+	public boolean hasNext() {
+		if (m_next == null) {
+			m_next = read();
+		}
+		return m_next != null;
+	}
+	
+	public Record next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Record record = m_next;
+		m_next = null;
+		return record;
+	}
+	
+	/**
+	 * @return all of the remaining records
+	 */
+	public List<Record> readAll() {
+		List<Record> records = new ArrayList<>();
+		while (hasNext()) {
+			records.add(next());
+		}
+		return records;
+	}
+	
+	private Record read() {
+		while (m_position + MatchLog.RECORD_SIZE <= m_buffer.limit()) {
+			int pos = m_position;
+			byte type = m_buffer.get(pos + 8);
+			
+			if (type == MatchLog.END) {
+				// the rest of the segment is empty
+				m_position = (pos / m_segmentSize + 1) * m_segmentSize;
+				continue;
+			}
+			
+			long timestamp = m_buffer.getLong(pos);
+			int id = m_buffer.getInt(pos + 12);
+			int arg = m_buffer.getInt(pos + 16);
+			long value = m_buffer.getLong(pos + 24);
+			m_position += MatchLog.RECORD_SIZE;
+			
+			if (type == MatchLog.NAME) {
+				byte[] bytes = new byte[arg];
+				for (int i = 0; i < arg; i++) {
+					bytes[i] = m_buffer.get(m_position + i);
+				}
+				
+				while (m_names.size() <= id) {
+					m_names.add(null);
+				}
+				m_names.set(id, new String(bytes, StandardCharsets.UTF_8));
+				
+				m_position += (arg + MatchLog.RECORD_SIZE - 1) / MatchLog.RECORD_SIZE * MatchLog.RECORD_SIZE;
+				continue;
+			}
+			
+			String name = null;
+			String state = null;
+			
+			switch (type) {
+			case MatchLog.STATE_ENTER:
+			case MatchLog.STATE_EXIT:
+				state = getName(arg);
+				name = getName(id);
+				break;
+			case MatchLog.MODE:
+			case MatchLog.DONE:
+			case MatchLog.TIMING:
+				name = getName(id);
+				break;
+			default:
+				break;
+			}
+			
+			return new Record(type, (timestamp - m_start) / 1e9, name, state, arg, value);
+		}
+		
+		return null;
+	}
+	
+	private String getName(int id) {
+		return id >= 0 && id < m_names.size() ? m_names.get(id) : null;
+	}
+	
+	static String typeName(byte type) {
+		switch (type) {
+		case MatchLog.MODE:
+			return "MODE";
+		case MatchLog.STATE_ENTER:
+			return "STATE_ENTER";
+		case MatchLog.STATE_EXIT:
+			return "STATE_EXIT";
+		case MatchLog.DONE:
+			return "DONE";
+		case MatchLog.OVERRUN:
+			return "OVERRUN";
+		case MatchLog.TIMING:
+			return "TIMING";
+		default:
+			return "UNKNOWN_" + type;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.wpi.first.wpilibj.networktables.NetworkTable;
+
+/**
+ * Sends telemetry to NetworkTables. It is shared by the control loop and
+ * the thread that drains the TelemetryRing, so it may be used from any
+ * thread.
+ *
+ * Each key is split into its table and name the first time it is put,
+ * so later puts are a single map lookup. The callers reuse the same key
+ * strings, whose hash codes are cached.
+ */
+class NetworkTablesSink implements TelemetryBuffer.Sink {
+	
+	private static final class Entry {
+		final NetworkTable table;
+		final String name;
+		
+		Entry(NetworkTable table, String name) {
+			this.table = table;
+			this.name = name;
+		}
+	}
+	
+	private final Map<String, NetworkTable> m_tables = new ConcurrentHashMap<>();
+	private final Map<String, Entry> m_entries = new ConcurrentHashMap<>();
+	
+	private Entry getEntry(String key) {
+		Entry entry = m_entries.get(key);
+		if (entry == null) {
+			entry = m_entries.computeIfAbsent(key, this::createEntry);
+		}
+		return entry;
+	}
+	
+	private Entry createEntry(String key) {
+		int slash = key.lastIndexOf('/');
+		String path = slash <= 0 ? "/" : key.substring(0, slash);
+		NetworkTable table = m_tables.computeIfAbsent(path, NetworkTable::getTable);
+		return new Entry(table, key.substring(slash + 1));
+	}
+
+	@Override
+	public void putNumber(String key, double value) {
+		Entry entry = getEntry(key);
+		entry.table.putNumber(entry.name, value);
+	}
+
+	@Override
+	public void putBoolean(String key, boolean value) {
+		Entry entry = getEntry(key);
+		entry.table.putBoolean(entry.name, value);
+	}
+
+	@Override
+	public void putString(String key, String value) {
+		Entry entry = getEntry(key);
+		entry.table.putString(entry.name, value);
+	}
+}
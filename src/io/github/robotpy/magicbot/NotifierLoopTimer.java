@@ -0,0 +1,60 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.hal.NotifierJNI;
+
+/**
+ * LoopTimer that uses the FPGA notifier. The FPGA only has microsecond
+ * resolution, so times are rounded to the nearest microsecond.
+ */
+public class NotifierLoopTimer implements LoopTimer {
+	
+	private final AtomicInteger m_notifier = new AtomicInteger();
+	
+	public NotifierLoopTimer() {
+		m_notifier.set(NotifierJNI.initializeNotifier());
+	}
+
+	@Override
+	public long nanoTime() {
+		return RobotController.getFPGATime() * 1000L;
+	}
+
+	@Override
+	public void waitUntil(long deadline) {
+		int notifier = m_notifier.get();
+		if (notifier == 0) {
+			throw new RuntimeException("Cannot use NotifierLoopTimer object after closing it");
+		}
+		
+		NotifierJNI.updateNotifierAlarm(notifier, (deadline + 500) / 1000);
+		NotifierJNI.waitForNotifierAlarm(notifier);
+	}
+	
+	@Override
+	public void close() {
+		int handle = m_notifier.getAndSet(0);
+		if (handle != 0) {
+			NotifierJNI.stopNotifier(handle);
+			NotifierJNI.cleanNotifier(handle);
+		}
+	}
+}
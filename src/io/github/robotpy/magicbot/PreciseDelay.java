@@ -16,26 +16,91 @@
 
 package io.github.robotpy.magicbot;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
-import edu.wpi.first.wpilibj.RobotController;
-import edu.wpi.first.wpilibj.hal.NotifierJNI;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Runs a loop at a fixed rate. Call delay() at the end of each iteration.
+ *
+ * How the time is measured and how the delay waits is determined by the
+ * LoopTimer that is used. By default, the FPGA notifier is used.
+ */
 public class PreciseDelay implements AutoCloseable {
+	
+	/**
+	 * What to do when an iteration of the loop takes longer than the period
+	 */
+	public enum OverrunPolicy {
+		/**
+		 * Keep the original schedule. The missed alarms fire back to back
+		 * until the loop has caught up.
+		 */
+		CATCH_UP,
+		
+		/**
+		 * Keep the original phase, but skip the alarms that were missed. The
+		 * next delay waits until the next alarm that hasn't passed yet.
+		 */
+		SKIP_MISSED,
+		
+		/**
+		 * Don't wait, and start a new schedule from the current time
+		 */
+		REPHASE,
+	}
+	
+	/**
+	 * Called from delay() when the loop has overrun its period
+	 */
+	@FunctionalInterface
+	public interface OverrunListener {
+		/**
+		 * @param lateness  How late the loop was, in seconds
+		 * @param missed    Number of alarms that had already passed
+		 */
+		public void onOverrun(double lateness, int missed);
+	}
 
-	private final double m_period;
-	private double m_expirationTime;
+	// times are in nanoseconds
+	private final long m_period;
+	private long m_expirationTime;
+	
+	private final OverrunPolicy m_policy;
+	private final OverrunListener m_listener;
+	
+	private int m_overruns = 0;
+	private long m_lastLateness = 0;
 	
-	private final AtomicInteger m_notifier = new AtomicInteger();
+	private final LoopTimer m_timer;
+	private final AtomicBoolean m_closed = new AtomicBoolean();
 
 	/**
 	 * @param period Delay time in seconds
 	 */
 	public PreciseDelay(double period) {
-		m_notifier.set(NotifierJNI.initializeNotifier());
-		m_period = period;
-		m_expirationTime = RobotController.getFPGATime() * 1e-6 + m_period;
-		NotifierJNI.updateNotifierAlarm(m_notifier.get(), (long) (m_expirationTime * 1e6));
+		this(period, new NotifierLoopTimer(), OverrunPolicy.CATCH_UP, null);
+	}
+	
+	/**
+	 * @param period    Delay time in seconds
+	 * @param policy    What to do when the loop overruns the period
+	 * @param listener  Called when the loop overruns the period, may be null
+	 */
+	public PreciseDelay(double period, OverrunPolicy policy, OverrunListener listener) {
+		this(period, new NotifierLoopTimer(), policy, listener);
+	}
+	
+	/**
+	 * @param period    Delay time in seconds
+	 * @param timer     Timer to use. It is closed when this is closed.
+	 * @param policy    What to do when the loop overruns the period
+	 * @param listener  Called when the loop overruns the period, may be null
+	 */
+	public PreciseDelay(double period, LoopTimer timer, OverrunPolicy policy, OverrunListener listener) {
+		m_timer = timer;
+		m_period = Math.round(period * 1e9);
+		m_policy = policy;
+		m_listener = listener;
+		m_expirationTime = timer.nanoTime() + m_period;
 	}
 	
 	/**
@@ -43,24 +108,72 @@ public class PreciseDelay implements AutoCloseable {
 	 */
 	public void delay() {
 		
-		int notifier = m_notifier.get();
-		if (notifier == 0) {
+		if (m_closed.get()) {
 			throw new RuntimeException("Cannot use PreciseDelay object after closing it");
 		}
 		
-		NotifierJNI.waitForNotifierAlarm(notifier);
+		long now = m_timer.nanoTime();
+		if (now > m_expirationTime) {
+			overrun(now);
+		}
+		
+		m_timer.waitUntil(m_expirationTime);
 		
 		// update the wait period
 		m_expirationTime += m_period;
-		NotifierJNI.updateNotifierAlarm(notifier, (long) (m_expirationTime * 1e6));
+	}
+	
+	/**
+	 * @return the timer used by this delay
+	 */
+	public LoopTimer getTimer() {
+		return m_timer;
+	}
+	
+	private void overrun(long now) {
+		long lateness = now - m_expirationTime;
+		int missed = (int) (lateness / m_period) + 1;
+		
+		m_overruns += 1;
+		m_lastLateness = lateness;
+		
+		switch (m_policy) {
+		case CATCH_UP:
+			// the deadline has already passed, so the wait returns immediately
+			break;
+		
+		case SKIP_MISSED:
+			m_expirationTime += missed * m_period;
+			break;
+			
+		case REPHASE:
+			m_expirationTime = now;
+			break;
+		}
+		
+		if (m_listener != null) {
+			m_listener.onOverrun(lateness / 1e9, missed);
+		}
+	}
+	
+	/**
+	 * @return number of times that the loop overran its period
+	 */
+	public int getOverrunCount() {
+		return m_overruns;
+	}
+	
+	/**
+	 * @return how late the loop was the last time it overran, in seconds
+	 */
+	public double getLastLateness() {
+		return m_lastLateness / 1e9;
 	}
 	
 	@Override
 	public void close() {
-		int handle = m_notifier.getAndSet(0);
-		if (handle != 0) {
-			NotifierJNI.stopNotifier(handle);
-			NotifierJNI.cleanNotifier(handle);
+		if (!m_closed.getAndSet(true)) {
+			m_timer.close();
 		}
 	}
 }
@@ -0,0 +1,73 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+/**
+ * Everything that MagicRobot needs from the outside world: the driver
+ * station, the dashboard, NetworkTables, and time. On a robot this is
+ * provided by WPILib. HeadlessRunner provides a simulated environment
+ * instead, so that a whole robot can be run in tests.
+ */
+public interface RobotEnvironment {
+	
+	public boolean isDisabled();
+	public boolean isEnabled();
+	public boolean isAutonomous();
+	public boolean isOperatorControl();
+	public boolean isTest();
+	
+	public boolean isSimulation();
+	public boolean isDSAttached();
+	
+	/**
+	 * @return the time used by the control loop and state machines
+	 */
+	public TimeSource getClock();
+	
+	/**
+	 * @return a timer that runs the control loop, on the same time as
+	 *         getClock(). It is closed when the control loop exits.
+	 */
+	public LoopTimer createLoopTimer();
+	
+	/**
+	 * @return where telemetry is sent. This may be called from any thread.
+	 */
+	public TelemetryBuffer.Sink getTelemetrySink();
+	
+	/**
+	 * Adds an autonomous mode that the user can select
+	 */
+	public void addAutonomousMode(String name, boolean isDefault);
+	
+	/**
+	 * Called once all of the autonomous modes have been added
+	 *
+	 * @param names  Names of all of the autonomous modes, sorted
+	 */
+	public void publishAutonomousModes(String[] names);
+	
+	/**
+	 * @return name of the autonomous mode that the user selected, or null
+	 */
+	public String getSelectedAutonomous();
+	
+	/**
+	 * Called repeatedly while the robot is in test mode
+	 */
+	public void testPeriodic();
+}
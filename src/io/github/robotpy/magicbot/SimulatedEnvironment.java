@@ -0,0 +1,205 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A simulated driver station, dashboard and NetworkTables, running on
+ * virtual time. Used by HeadlessRunner.
+ *
+ * The robot stays in a mode until the virtual time reaches the end of
+ * the mode, then the mode's loop in MagicRobot exits.
+ */
+public class SimulatedEnvironment implements RobotEnvironment {
+	
+	public enum Mode {
+		DISABLED, AUTONOMOUS, TELEOP, TEST
+	}
+	
+	private final VirtualLoopTimer m_timer;
+	
+	private Mode m_mode = Mode.DISABLED;
+	private long m_modeEnd = 0;
+	private boolean m_dsAttached = true;
+	
+	private final List<String> m_autoModes = new ArrayList<>();
+	private String m_defaultAutonomous = null;
+	private String m_selectedAutonomous = null;
+	
+	private final Map<String, Object> m_telemetry = new ConcurrentHashMap<>();
+	
+	private final TelemetryBuffer.Sink m_sink = new TelemetryBuffer.Sink() {
+		@Override
+		public void putNumber(String key, double value) {
+			m_telemetry.put(key, value);
+		}
+		
+		@Override
+		public void putBoolean(String key, boolean value) {
+			m_telemetry.put(key, value);
+		}
+		
+		@Override
+		public void putString(String key, String value) {
+			m_telemetry.put(key, value);
+		}
+	};
+	
+	public SimulatedEnvironment() {
+		this(new VirtualLoopTimer());
+	}
+	
+	/**
+	 * @param timer  Virtual time that the robot runs on
+	 */
+	public SimulatedEnvironment(VirtualLoopTimer timer) {
+		m_timer = timer;
+	}
+	
+	/**
+	 * Puts the robot into a mode until the virtual time has moved forward
+	 * by the duration
+	 *
+	 * @param mode      Mode to switch to
+	 * @param duration  How long the mode lasts, in seconds
+	 */
+	public void setMode(Mode mode, double duration) {
+		m_mode = mode;
+		m_modeEnd = m_timer.nanoTime() + Math.round(duration * 1e9);
+	}
+	
+	private boolean inMode(Mode mode) {
+		return m_mode == mode && m_timer.nanoTime() < m_modeEnd;
+	}
+	
+	@Override
+	public boolean isDisabled() {
+		return inMode(Mode.DISABLED);
+	}
+	
+	@Override
+	public boolean isEnabled() {
+		return m_mode != Mode.DISABLED && m_timer.nanoTime() < m_modeEnd;
+	}
+	
+	@Override
+	public boolean isAutonomous() {
+		return inMode(Mode.AUTONOMOUS);
+	}
+	
+	@Override
+	public boolean isOperatorControl() {
+		return inMode(Mode.TELEOP);
+	}
+	
+	@Override
+	public boolean isTest() {
+		return inMode(Mode.TEST);
+	}
+	
+	@Override
+	public boolean isSimulation() {
+		return true;
+	}
+	
+	@Override
+	public boolean isDSAttached() {
+		return m_dsAttached;
+	}
+	
+	public void setDSAttached(boolean attached) {
+		m_dsAttached = attached;
+	}
+	
+	/**
+	 * @return the virtual time
+	 */
+	public VirtualLoopTimer getTimer() {
+		return m_timer;
+	}
+	
+	@Override
+	public TimeSource getClock() {
+		return m_timer;
+	}
+	
+	@Override
+	public LoopTimer createLoopTimer() {
+		return m_timer;
+	}
+	
+	@Override
+	public TelemetryBuffer.Sink getTelemetrySink() {
+		return m_sink;
+	}
+	
+	/**
+	 * @return the last value sent to a telemetry key (a Double, Boolean or
+	 *         String), or null
+	 */
+	public Object getTelemetry(String key) {
+		return m_telemetry.get(key);
+	}
+	
+	@Override
+	public void addAutonomousMode(String name, boolean isDefault) {
+		m_autoModes.add(name);
+		if (isDefault) {
+			m_defaultAutonomous = name;
+		}
+	}
+	
+	@Override
+	public void publishAutonomousModes(String[] names) {
+		// nothing to show them on
+	}
+	
+	/**
+	 * @return names of the autonomous modes, in the order they were added
+	 */
+	public List<String> getAutonomousModes() {
+		return Collections.unmodifiableList(m_autoModes);
+	}
+	
+	/**
+	 * Selects an autonomous mode, as if the user had selected it on the
+	 * dashboard
+	 *
+	 * @param name  Name of the mode, or null to select the default mode
+	 */
+	public void selectAutonomous(String name) {
+		if (name != null && !m_autoModes.contains(name)) {
+			throw new IllegalArgumentException("No autonomous mode named '" + name + "'");
+		}
+		m_selectedAutonomous = name;
+	}
+	
+	@Override
+	public String getSelectedAutonomous() {
+		return m_selectedAutonomous != null ? m_selectedAutonomous : m_defaultAutonomous;
+	}
+	
+	@Override
+	public void testPeriodic() {
+		m_timer.advance(10000000L);
+	}
+}
@@ -0,0 +1,175 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects telemetry values during each iteration of the control loop, and
+ * sends them to a Sink (normally NetworkTables) in batches. Only values
+ * that changed since they were last sent are sent again.
+ *
+ * Look up an entry once (for example, in setup) and keep the handle:
+ *
+ *     int m_speedEntry = telemetry.getEntry("/components/shooter/speed");
+ *     ...
+ *     telemetry.putNumber(m_speedEntry, speed);
+ *
+ * Putting a value only stores it, so it is cheap enough to do on every
+ * iteration. MagicRobot owns a TelemetryBuffer and flushes it every
+ * m_telemetryPeriod seconds; components can have it injected with
+ * {@literal @}MagicInject TelemetryBuffer telemetry.
+ *
+ * Entries may be created from several threads at once, such as from
+ * setup when MagicRobot sets up components in parallel. Values may be put
+ * from several threads as long as each entry is only written by one of
+ * them, but not while another thread may still be creating entries, and
+ * flush must not run at the same time as a put.
+ */
+public final class TelemetryBuffer {
+	
+	/**
+	 * Where telemetry is sent. Keys are paths such as /robot/mode.
+	 */
+	public interface Sink {
+		public void putNumber(String key, double value);
+		public void putBoolean(String key, boolean value);
+		public void putString(String key, String value);
+	}
+	
+	private static final byte UNSET = 0;
+	private static final byte NUMBER = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte STRING = 3;
+	
+	private final Sink m_sink;
+	private final Map<String, Integer> m_handles = new HashMap<>();
+	
+	private String[] m_keys = new String[16];
+	private int m_count = 0;
+	
+	// current values
+	private byte[] m_types = new byte[16];
+	private double[] m_numbers = new double[16];
+	private String[] m_strings = new String[16];
+	
+	// values that were last sent
+	private byte[] m_sentTypes = new byte[16];
+	private double[] m_sentNumbers = new double[16];
+	private String[] m_sentStrings = new String[16];
+	
+	private long m_sent = 0;
+	
+	/**
+	 * @param sink Where values are sent when the buffer is flushed
+	 */
+	public TelemetryBuffer(Sink sink) {
+		m_sink = sink;
+	}
+	
+	/**
+	 * @param key  Path of the entry, such as /components/shooter/speed
+	 * @return handle for the entry. The same key always has the same handle.
+	 */
+	public synchronized int getEntry(String key) {
+		Integer handle = m_handles.get(key);
+		if (handle != null) {
+			return handle;
+		}
+		
+		if (m_count == m_keys.length) {
+			int size = m_count * 2;
+			m_keys = Arrays.copyOf(m_keys, size);
+			m_types = Arrays.copyOf(m_types, size);
+			m_numbers = Arrays.copyOf(m_numbers, size);
+			m_strings = Arrays.copyOf(m_strings, size);
+			m_sentTypes = Arrays.copyOf(m_sentTypes, size);
+			m_sentNumbers = Arrays.copyOf(m_sentNumbers, size);
+			m_sentStrings = Arrays.copyOf(m_sentStrings, size);
+		}
+		
+		m_keys[m_count] = key;
+		m_handles.put(key, m_count);
+		return m_count++;
+	}
+	
+	public void putNumber(int entry, double value) {
+		m_types[entry] = NUMBER;
+		m_numbers[entry] = value;
+	}
+	
+	public void putBoolean(int entry, boolean value) {
+		m_types[entry] = BOOLEAN;
+		m_numbers[entry] = value ? 1 : 0;
+	}
+	
+	/**
+	 * NetworkTables can't store null, so null is sent as an empty string
+	 */
+	public void putString(int entry, String value) {
+		m_types[entry] = STRING;
+		m_strings[entry] = value == null ? "" : value;
+	}
+	
+	/**
+	 * Sends every value that changed since it was last sent
+	 */
+	public void flush() {
+		for (int i = 0; i < m_count; i++) {
+			byte type = m_types[i];
+			if (type == UNSET || !changed(i)) {
+				continue;
+			}
+			
+			switch (type) {
+			case NUMBER:
+				m_sink.putNumber(m_keys[i], m_numbers[i]);
+				break;
+			case BOOLEAN:
+				m_sink.putBoolean(m_keys[i], m_numbers[i] != 0);
+				break;
+			default:
+				m_sink.putString(m_keys[i], m_strings[i]);
+				break;
+			}
+			
+			m_sentTypes[i] = type;
+			m_sentNumbers[i] = m_numbers[i];
+			m_sentStrings[i] = m_strings[i];
+			m_sent += 1;
+		}
+	}
+	
+	private boolean changed(int i) {
+		if (m_types[i] != m_sentTypes[i]) {
+			return true;
+		} else if (m_types[i] == STRING) {
+			String value = m_strings[i];
+			return value == null ? m_sentStrings[i] != null : !value.equals(m_sentStrings[i]);
+		}
+		return Double.doubleToLongBits(m_numbers[i]) != Double.doubleToLongBits(m_sentNumbers[i]);
+	}
+	
+	/**
+	 * @return number of values that have been sent to the sink
+	 */
+	public long getSentCount() {
+		return m_sent;
+	}
+}
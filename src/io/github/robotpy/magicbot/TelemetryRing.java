@@ -0,0 +1,363 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of telemetry records that is written by the
+ * control loop and drained by a background thread, so that logging never
+ * blocks the control loop on I/O.
+ *
+ * Each record is a timestamp, a source (usually a component), a key and
+ * a double or long value. Records are stored in preallocated arrays, so
+ * recording doesn't allocate. If the queue is full the record is dropped
+ * and counted instead of waiting for space.
+ *
+ * Create a Channel for each value you record (for example, in setup):
+ *
+ *     TelemetryRing.Channel m_speed = ring.channel("shooter", "speed");
+ *     ...
+ *     m_speed.record(speed);
+ *
+ * Any number of threads may record at once, since components record from
+ * the control loop, from scheduler workers and from AsyncComponent
+ * threads. Only one thread may drain at a time. Channels may be created
+ * from any thread.
+ */
+public final class TelemetryRing implements AutoCloseable {
+	
+	/**
+	 * Receives records as they are drained
+	 */
+	public interface RecordSink {
+		public void write(long timestamp, String source, String key, double value);
+		public void write(long timestamp, String source, String key, long value);
+		
+		/**
+		 * Called after each batch of records is written
+		 */
+		public default void flush() {
+			// empty
+		}
+	}
+	
+	/**
+	 * Records values for a single source and key
+	 */
+	public final class Channel {
+		private final int m_source;
+		private final int m_key;
+		
+		Channel(int source, int key) {
+			m_source = source;
+			m_key = key;
+		}
+		
+		/**
+		 * @return false if the record was dropped because the ring is full
+		 */
+		public boolean record(double value) {
+			return TelemetryRing.this.record(m_source, m_key, value);
+		}
+		
+		/**
+		 * @return false if the record was dropped because the ring is full
+		 */
+		public boolean record(long value) {
+			return TelemetryRing.this.record(m_source, m_key, value);
+		}
+	}
+	
+	private static final byte DOUBLE = 0;
+	private static final byte LONG = 1;
+	
+	private final int m_mask;
+	private final long[] m_timestamps;
+	private final int[] m_sources;
+	private final int[] m_keys;
+	private final byte[] m_types;
+	private final long[] m_values;
+	
+	private final TimeSource m_clock;
+	
+	// a record is ready to be read when its sequence is one past its position
+	private final AtomicLongArray m_sequence;
+	
+	// next record to claim, and next record to read
+	private final AtomicLong m_tail = new AtomicLong();
+	private final AtomicLong m_head = new AtomicLong();
+	private final AtomicLong m_dropped = new AtomicLong();
+	
+	// interned source and key names, replaced when a name is added
+	private final Map<String, Integer> m_ids = new HashMap<>();
+	private volatile String[] m_names = new String[0];
+	
+	private Thread m_flusher = null;
+	private volatile boolean m_running = false;
+	
+	/**
+	 * @param capacity  Maximum number of records waiting to be drained,
+	 *                  rounded up to a power of two
+	 */
+	public TelemetryRing(int capacity) {
+		this(capacity, TimeSource.SYSTEM);
+	}
+	
+	/**
+	 * @param capacity  Maximum number of records waiting to be drained,
+	 *                  rounded up to a power of two
+	 * @param clock     Source of record timestamps
+	 */
+	public TelemetryRing(int capacity, TimeSource clock) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		
+		m_mask = size - 1;
+		m_timestamps = new long[size];
+		m_sources = new int[size];
+		m_keys = new int[size];
+		m_types = new byte[size];
+		m_values = new long[size];
+		m_sequence = new AtomicLongArray(size);
+		m_clock = clock;
+	}
+	
+	/**
+	 * @return a channel that records values for the source and key
+	 */
+	public Channel channel(String source, String key) {
+		return new Channel(intern(source), intern(key));
+	}
+	
+	private synchronized int intern(String name) {
+		Integer id = m_ids.get(name);
+		if (id == null) {
+			String[] names = Arrays.copyOf(m_names, m_names.length + 1);
+			id = names.length - 1;
+			names[id] = name;
+			m_ids.put(name, id);
+			m_names = names;
+		}
+		return id;
+	}
+	
+	boolean record(int source, int key, double value) {
+		return put(source, key, DOUBLE, Double.doubleToRawLongBits(value));
+	}
+	
+	boolean record(int source, int key, long value) {
+		return put(source, key, LONG, value);
+	}
+	
+	private boolean put(int source, int key, byte type, long value) {
+		long tail;
+		do {
+			tail = m_tail.get();
+			if (tail - m_head.get() > m_mask) {
+				m_dropped.incrementAndGet();
+				return false;
+			}
+		} while (!m_tail.compareAndSet(tail, tail + 1));
+		
+		int i = (int)tail & m_mask;
+		m_timestamps[i] = m_clock.nanoTime();
+		m_sources[i] = source;
+		m_keys[i] = key;
+		m_types[i] = type;
+		m_values[i] = value;
+		
+		// publish the record to the consumer
+		m_sequence.lazySet(i, tail + 1);
+		return true;
+	}
+	
+	/**
+	 * Writes all of the waiting records to the sink. Only one thread may
+	 * drain at a time.
+	 *
+	 * @return number of records written
+	 */
+	public int drain(RecordSink sink) {
+		long head = m_head.get();
+		String[] names = m_names;
+		
+		// stop at the first record that was claimed but not written yet
+		long n = head;
+		for (; n - head <= m_mask; n++) {
+			int i = (int)n & m_mask;
+			if (m_sequence.get(i) != n + 1) {
+				break;
+			}
+			
+			// the record's channel may be newer than the names
+			int newest = Math.max(m_sources[i], m_keys[i]);
+			if (newest >= names.length) {
+				names = m_names;
+			}
+			
+			String source = names[m_sources[i]];
+			String key = names[m_keys[i]];
+			
+			if (m_types[i] == DOUBLE) {
+				sink.write(m_timestamps[i], source, key, Double.longBitsToDouble(m_values[i]));
+			} else {
+				sink.write(m_timestamps[i], source, key, m_values[i]);
+			}
+		}
+		
+		if (n == head) {
+			return 0;
+		}
+		
+		// release the slots to the producers
+		m_head.lazySet(n);
+		sink.flush();
+		
+		return (int)(n - head);
+	}
+	
+	/**
+	 * @return number of records that were dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return m_dropped.get();
+	}
+	
+	/**
+	 * Starts a daemon thread that drains the ring to the sink periodically
+	 *
+	 * @param sink    Where records are written
+	 * @param period  How often to drain the ring, in seconds
+	 */
+	public synchronized void start(RecordSink sink, double period) {
+		if (m_flusher != null) {
+			throw new IllegalStateException("Already started");
+		}
+		
+		long periodNanos = Math.round(period * 1e9);
+		m_running = true;
+		
+		m_flusher = new Thread(() -> {
+			while (m_running) {
+				drain(sink);
+				LockSupport.parkNanos(periodNanos);
+			}
+			drain(sink);
+		}, "magicbot-telemetry");
+		
+		m_flusher.setDaemon(true);
+		m_flusher.start();
+	}
+	
+	/**
+	 * Stops the background thread after it drains any remaining records
+	 */
+	@Override
+	public synchronized void close() {
+		if (m_flusher == null) {
+			return;
+		}
+		
+		m_running = false;
+		LockSupport.unpark(m_flusher);
+		
+		try {
+			m_flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		m_flusher = null;
+	}
+	
+	/**
+	 * @return a sink that prints each record as a line of text, for
+	 *         example to System.out or to a file
+	 */
+	public static RecordSink printTo(PrintStream out) {
+		return new RecordSink() {
+			private final StringBuilder m_line = new StringBuilder();
+			
+			@Override
+			public void write(long timestamp, String source, String key, double value) {
+				start(timestamp, source, key).append(value);
+				out.println(m_line);
+			}
+			
+			@Override
+			public void write(long timestamp, String source, String key, long value) {
+				start(timestamp, source, key).append(value);
+				out.println(m_line);
+			}
+			
+			private StringBuilder start(long timestamp, String source, String key) {
+				m_line.setLength(0);
+				m_line.append(timestamp / 1000000000L).append('.');
+				
+				// microseconds, zero padded
+				long micros = (timestamp % 1000000000L) / 1000;
+				for (long digit = 100000; digit > 1 && micros < digit; digit /= 10) {
+					m_line.append('0');
+				}
+				
+				return m_line.append(micros).append(' ').append(source).append(' ').append(key).append(' ');
+			}
+			
+			@Override
+			public void flush() {
+				out.flush();
+			}
+		};
+	}
+	
+	/**
+	 * @return a sink that sends the latest value of each record to a
+	 *         telemetry sink (such as NetworkTables) as /prefix/source/key
+	 */
+	public static RecordSink sendTo(TelemetryBuffer.Sink sink, String prefix) {
+		return new RecordSink() {
+			private final Map<String, Map<String, String>> m_paths = new HashMap<>();
+			
+			private String path(String source, String key) {
+				return m_paths.computeIfAbsent(source, s -> new HashMap<>())
+							  .computeIfAbsent(key, k -> prefix + "/" + source + "/" + key);
+			}
+			
+			@Override
+			public void write(long timestamp, String source, String key, double value) {
+				sink.putNumber(path(source, key), value);
+			}
+			
+			@Override
+			public void write(long timestamp, String source, String key, long value) {
+				sink.putNumber(path(source, key), value);
+			}
+		};
+	}
+}
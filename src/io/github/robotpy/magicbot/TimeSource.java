@@ -0,0 +1,38 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+/**
+ * A monotonic source of time with nanosecond resolution. Unlike wall clock
+ * time, it will never go backwards, so it is suitable for measuring how long
+ * something has been running.
+ *
+ * Only differences between two values are meaningful.
+ */
+@FunctionalInterface
+public interface TimeSource {
+	
+	/**
+	 * Uses System.nanoTime
+	 */
+	public static final TimeSource SYSTEM = System::nanoTime;
+	
+	/**
+	 * @return current time in nanoseconds
+	 */
+	public long nanoTime();
+}
@@ -0,0 +1,169 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.Arrays;
+
+/**
+ * Keeps rolling statistics about how long something took over the last N
+ * samples. All storage is allocated up front, so recording a sample never
+ * allocates.
+ *
+ * All times are in nanoseconds.
+ *
+ * @warning This object is not intended to be threadsafe
+ */
+public final class TimingStats {
+	
+	private final String m_name;
+	
+	// ring buffer of the most recent samples
+	private final long[] m_samples;
+	private int m_next = 0;
+	private int m_count = 0;
+	
+	// scratch space for computing percentiles
+	private final long[] m_sorted;
+	
+	private long m_total = 0;
+	
+	/**
+	 * @param name    Name of the thing being measured
+	 * @param window  Number of samples to compute statistics over
+	 */
+	public TimingStats(String name, int window) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("window must be positive");
+		}
+		
+		m_name = name;
+		m_samples = new long[window];
+		m_sorted = new long[window];
+	}
+	
+	/**
+	 * @return name of the thing being measured
+	 */
+	public String getName() {
+		return m_name;
+	}
+	
+	/**
+	 * Record a single sample
+	 *
+	 * @param nanos duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		m_samples[m_next] = nanos;
+		m_next = m_next + 1 == m_samples.length ? 0 : m_next + 1;
+		if (m_count < m_samples.length) {
+			m_count += 1;
+		}
+		m_total += 1;
+	}
+	
+	/**
+	 * Forget all samples
+	 */
+	public void reset() {
+		m_next = 0;
+		m_count = 0;
+		m_total = 0;
+	}
+	
+	/**
+	 * @return number of samples that statistics are computed over
+	 */
+	public int getCount() {
+		return m_count;
+	}
+	
+	/**
+	 * @return number of samples recorded since this was created or reset
+	 */
+	public long getTotalCount() {
+		return m_total;
+	}
+	
+	/**
+	 * @return the most recent sample, or 0 if there are none
+	 */
+	public long getLast() {
+		if (m_count == 0) {
+			return 0;
+		}
+		return m_samples[m_next == 0 ? m_samples.length - 1 : m_next - 1];
+	}
+	
+	public long getMin() {
+		if (m_count == 0) {
+			return 0;
+		}
+		
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < m_count; i++) {
+			min = Math.min(min, m_samples[i]);
+		}
+		return min;
+	}
+	
+	public long getMax() {
+		long max = 0;
+		for (int i = 0; i < m_count; i++) {
+			max = Math.max(max, m_samples[i]);
+		}
+		return max;
+	}
+	
+	public double getMean() {
+		if (m_count == 0) {
+			return 0;
+		}
+		
+		long sum = 0;
+		for (int i = 0; i < m_count; i++) {
+			sum += m_samples[i];
+		}
+		return (double)sum / m_count;
+	}
+	
+	/**
+	 * @param p Percentile to compute, between 0 and 1
+	 * @return the sample at the specified percentile
+	 */
+	public long getPercentile(double p) {
+		if (m_count == 0) {
+			return 0;
+		}
+		
+		System.arraycopy(m_samples, 0, m_sorted, 0, m_count);
+		Arrays.sort(m_sorted, 0, m_count);
+		
+		int idx = (int)Math.ceil(p * m_count) - 1;
+		return m_sorted[Math.max(0, Math.min(m_count - 1, idx))];
+	}
+	
+	public long getP99() {
+		return getPercentile(0.99);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: min=%.3fms mean=%.3fms p99=%.3fms max=%.3fms (n=%d)",
+				m_name, getMin() / 1e6, getMean() / 1e6, getP99() / 1e6, getMax() / 1e6, m_count);
+	}
+}
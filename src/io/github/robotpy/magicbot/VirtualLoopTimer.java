@@ -0,0 +1,72 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+/**
+ * LoopTimer that runs on virtual time. Waiting doesn't block, it just moves
+ * the virtual time forward to the deadline, so a loop driven by this runs
+ * as fast as the code in it allows.
+ *
+ * Because this is also a TimeSource, it can be given to anything else that
+ * needs to see the same virtual time (such as a StateMachine).
+ *
+ * Closing this timer does nothing, so the same instance can be reused by
+ * multiple PreciseDelay objects. Only the thread running the loop should
+ * move the time forward.
+ */
+public class VirtualLoopTimer implements LoopTimer {
+	
+	private volatile long m_now;
+	
+	public VirtualLoopTimer() {
+		this(0);
+	}
+	
+	/**
+	 * @param start Initial virtual time, in nanoseconds
+	 */
+	public VirtualLoopTimer(long start) {
+		m_now = start;
+	}
+
+	@Override
+	public long nanoTime() {
+		return m_now;
+	}
+	
+	@Override
+	public void waitUntil(long deadline) {
+		if (deadline > m_now) {
+			m_now = deadline;
+		}
+	}
+	
+	/**
+	 * Move virtual time forward, for example to simulate some code taking
+	 * time to execute
+	 *
+	 * @param nanos Amount of time to move forward, in nanoseconds
+	 */
+	public void advance(long nanos) {
+		m_now += nanos;
+	}
+	
+	@Override
+	public void close() {
+		// nothing to release
+	}
+}
@@ -0,0 +1,59 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+/**
+ * How long warming up a component took (see MagicRobot.m_warmUpEnabled)
+ */
+public final class WarmUpResult {
+	
+	private final String m_name;
+	private final int m_iterations;
+	private final long m_time;
+	
+	WarmUpResult(String name, int iterations, long time) {
+		m_name = name;
+		m_iterations = iterations;
+		m_time = time;
+	}
+	
+	/**
+	 * @return name of the component
+	 */
+	public String getName() {
+		return m_name;
+	}
+	
+	/**
+	 * @return number of times warmUp was called
+	 */
+	public int getIterations() {
+		return m_iterations;
+	}
+	
+	/**
+	 * @return how long the warm-up took, in seconds
+	 */
+	public double getTime() {
+		return m_time / 1e9;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: %d iterations in %.1fms", m_name, m_iterations, m_time / 1e6);
+	}
+}
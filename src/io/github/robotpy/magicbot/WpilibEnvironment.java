@@ -0,0 +1,142 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.RobotBase;
+import edu.wpi.first.wpilibj.SampleRobot;
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj.livewindow.LiveWindow;
+import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * The environment of a real robot, provided by WPILib
+ */
+class WpilibEnvironment implements RobotEnvironment {
+	
+	private final SampleRobot m_robot;
+	private NetworkTablesSink m_sink = null;
+	
+	private SendableChooser<String> m_autoChooser = null;
+	private final Set<String> m_autoModes = new HashSet<>();
+	
+	WpilibEnvironment(SampleRobot robot) {
+		m_robot = robot;
+	}
+	
+	@Override
+	public boolean isDisabled() {
+		return m_robot.isDisabled();
+	}
+	
+	@Override
+	public boolean isEnabled() {
+		return m_robot.isEnabled();
+	}
+	
+	@Override
+	public boolean isAutonomous() {
+		return m_robot.isAutonomous();
+	}
+	
+	@Override
+	public boolean isOperatorControl() {
+		return m_robot.isOperatorControl();
+	}
+	
+	@Override
+	public boolean isTest() {
+		return m_robot.isTest();
+	}
+	
+	@Override
+	public boolean isSimulation() {
+		return RobotBase.isSimulation();
+	}
+	
+	@Override
+	public boolean isDSAttached() {
+		return DriverStation.getInstance().isDSAttached();
+	}
+	
+	@Override
+	public TimeSource getClock() {
+		return TimeSource.SYSTEM;
+	}
+	
+	@Override
+	public LoopTimer createLoopTimer() {
+		return new NotifierLoopTimer();
+	}
+	
+	@Override
+	public synchronized TelemetryBuffer.Sink getTelemetrySink() {
+		if (m_sink == null) {
+			m_sink = new NetworkTablesSink();
+		}
+		return m_sink;
+	}
+	
+	private SendableChooser<String> getAutoChooser() {
+		if (m_autoChooser == null) {
+			m_autoChooser = new SendableChooser<>();
+		}
+		return m_autoChooser;
+	}
+	
+	@Override
+	public void addAutonomousMode(String name, boolean isDefault) {
+		m_autoModes.add(name);
+		
+		if (isDefault) {
+			getAutoChooser().addDefault(name, name);
+		} else {
+			getAutoChooser().addObject(name, name);
+		}
+	}
+	
+	@Override
+	public void publishAutonomousModes(String[] names) {
+		SmartDashboard.putData("Autonomous Mode", getAutoChooser());
+		
+		// compatibility with FRC dashboard
+		new SmartDashboard().putStringArray("Auto List", names);
+	}
+	
+	@Override
+	public String getSelectedAutonomous() {
+		// FRC Dashboard compatibility
+		// -> if you set it here, you're stuck using it. The FRC Dashboard
+        //    doesn't seem to have a default (nor will it show a default),
+        //    so the key will only get set if you set it.
+		String modeName = SmartDashboard.getString("Auto Selector", "");
+		if (!m_autoModes.contains(modeName)) {
+			modeName = getAutoChooser().getSelected();
+		}
+		return modeName;
+	}
+	
+	@Override
+	public void testPeriodic() {
+		LiveWindow.run();
+		Timer.delay(0.01);
+	}
+}
@@ -0,0 +1,62 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * If this decorator is applied to a function in an object that inherits
+ * from :class:`.StateMachine`, it indicates that the function returns
+ * another StateMachine, which is executed as this state. This allows a
+ * large state machine to be split into smaller ones:
+ *
+ *     @CompositeState(first=true, nextState="shoot")
+ *     Pickup pickup() {
+ *         return m_pickup;
+ *     }
+ *
+ * The function takes no parameters, and is only called the first time
+ * that the state is entered. When the state is entered, the child starts
+ * at its first state. While the state is executing, the child is engaged
+ * and executed on each call to execute, using the parent's time. When
+ * the child finishes (its last state expires, or it calls done), the
+ * parent moves to nextState, or stops if there isn't one. When the parent
+ * leaves the state, the child is stopped.
+ *
+ * A child state machine is only executed by its parent. If it is also
+ * added to the robot as a component, its execute() does nothing once the
+ * parent has entered the state.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CompositeState {
+	
+	/** The name of the next state, after the child state machine finishes.
+	 *  If not specified, then the parent stops when the child finishes
+	 */
+	String nextState() default "";
+	
+	/** If set, this state function will be ran first */
+	boolean first() default false;
+	
+	/**
+	 *  If set, this state will continue executing even if engage
+	 *  is not called. However, if `done` is called, execution will
+	 *  stop regardless of whether this is set
+	 */
+	boolean mustFinish() default false;
+}
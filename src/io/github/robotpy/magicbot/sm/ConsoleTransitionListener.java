@@ -0,0 +1,171 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+import java.io.PrintStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prints state transitions to the console. This is what a StateMachine
+ * uses when m_verboseLogging is set.
+ *
+ * Transitions are queued in preallocated arrays and printed by a
+ * background thread, so the state machine doesn't allocate or format
+ * anything. If the queue is full, the transition is dropped and counted.
+ * Any number of state machines may be executing on different threads.
+ */
+public final class ConsoleTransitionListener implements StateTransitionListener, AutoCloseable {
+	
+	private static final class DefaultHolder {
+		static final ConsoleTransitionListener INSTANCE = new ConsoleTransitionListener(System.out, 1024);
+		
+		static {
+			INSTANCE.start(0.05);
+		}
+	}
+	
+	private final PrintStream m_out;
+	
+	private final SlotQueue m_queue;
+	private final StateHandle[] m_states;
+	private final long[] m_times;
+	
+	private Thread m_printer = null;
+	private volatile boolean m_running = false;
+	
+	/**
+	 * @return the listener used by state machines with m_verboseLogging
+	 *         set, which prints to System.out
+	 */
+	public static ConsoleTransitionListener getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+	
+	/**
+	 * @param out       Where transitions are printed
+	 * @param capacity  Maximum number of transitions waiting to be printed,
+	 *                  rounded up to a power of two
+	 */
+	public ConsoleTransitionListener(PrintStream out, int capacity) {
+		m_out = out;
+		m_queue = new SlotQueue(capacity);
+		m_states = new StateHandle[m_queue.capacity()];
+		m_times = new long[m_queue.capacity()];
+	}
+	
+	@Override
+	public void onTransition(StateMachine machine, StateHandle from, StateHandle to,
+							 TransitionCause cause, long timestamp, long machineTime) {
+		
+		long n = m_queue.claim();
+		if (n == -1) {
+			return;
+		}
+		
+		int i = m_queue.slot(n);
+		m_states[i] = to;
+		m_times[i] = machineTime;
+		m_queue.publish(n);
+	}
+	
+	/**
+	 * Prints the waiting transitions. Only one thread may drain at a time.
+	 *
+	 * @return number of transitions printed
+	 */
+	public int drain() {
+		int count = 0;
+		
+		while (true) {
+			long n = m_queue.next();
+			if (n == -1) {
+				break;
+			}
+			
+			int i = m_queue.slot(n);
+			StateHandle state = m_states[i];
+			double tm = m_times[i] / 1e9;
+			m_states[i] = null;
+			m_queue.release(n);
+			
+			if (state == null) {
+				m_out.printf("%.3fs: Stopped state machine execution\n", tm);
+			} else {
+				m_out.printf("%.3fs: Entering state: %s\n", tm, state.getName());
+			}
+			count += 1;
+		}
+		
+		if (count != 0) {
+			m_out.flush();
+		}
+		return count;
+	}
+	
+	/**
+	 * @return number of transitions that weren't printed because the
+	 *         queue was full
+	 */
+	public long getDroppedCount() {
+		return m_queue.getDroppedCount();
+	}
+	
+	/**
+	 * Starts a daemon thread that prints transitions periodically
+	 *
+	 * @param period  How often to print, in seconds
+	 */
+	public synchronized void start(double period) {
+		if (m_printer != null) {
+			throw new IllegalStateException("Already started");
+		}
+		
+		long periodNanos = Math.round(period * 1e9);
+		m_running = true;
+		
+		m_printer = new Thread(() -> {
+			while (m_running) {
+				drain();
+				LockSupport.parkNanos(periodNanos);
+			}
+			drain();
+		}, "magicbot-transitions");
+		
+		m_printer.setDaemon(true);
+		m_printer.start();
+	}
+	
+	/**
+	 * Stops the background thread after it prints any remaining transitions
+	 */
+	@Override
+	public synchronized void close() {
+		if (m_printer == null) {
+			return;
+		}
+		
+		m_running = false;
+		LockSupport.unpark(m_printer);
+		
+		try {
+			m_printer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		m_printer = null;
+	}
+}
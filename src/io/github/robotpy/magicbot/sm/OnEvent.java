@@ -0,0 +1,56 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Add this to a state of a :class:`.StateMachine` to move to another
+ * state when an event is posted, instead of checking for it each time
+ * the state is called:
+ *
+ *     @State(first=true)
+ *     @OnEvent(type=IntakeFull.class, nextState="hold")
+ *     void runIntake() {
+ *         intake.run();
+ *     }
+ *
+ *     // from any thread, such as a sensor callback
+ *     sm.post(new IntakeFull());
+ *
+ * Events are handled at the start of the next call to execute, in the
+ * order that they were posted. The first @OnEvent of the current state
+ * whose type matches the event (including subclasses) wins. If the
+ * current state is a @CompositeState that doesn't handle the event, it
+ * is passed to the child state machine. If the current state is a
+ * @ParallelState that doesn't handle the event, it is passed to the
+ * current state of each region. Events that aren't handled are dropped.
+ *
+ * A state may have more than one @OnEvent.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Repeatable(OnEvents.class)
+public @interface OnEvent {
+	
+	/** The class of event that causes the transition */
+	Class<?> type();
+	
+	/** The name of the state to move to */
+	String nextState();
+}
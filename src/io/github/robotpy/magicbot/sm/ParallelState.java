@@ -0,0 +1,67 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * If this decorator is applied to a function in an object that inherits
+ * from :class:`.StateMachine`, it indicates that the function is a state
+ * that runs several regions of the same state machine at once:
+ *
+ *     @ParallelState(first=true, regions={"drivePath", "runIntake"}, nextState="score")
+ *     void pickup() {
+ *     }
+ *
+ * Each region is named by the state that it starts in. Entering the state
+ * starts every region at the same time. On each call to execute, the
+ * function is called first, and then the current state of each region is
+ * called in order. Each region has its own state time, follows nextState
+ * when a @TimedState expires, and moves when one of its states calls
+ * nextState. A region finishes when its last @TimedState expires or when
+ * one of its states calls done. That only finishes the region, not the
+ * state machine.
+ *
+ * When all of the regions have finished, the state machine moves to
+ * nextState, or stops if there isn't one. Calling nextState from the
+ * function itself leaves the state right away, and stops all of the
+ * regions.
+ *
+ * The states in a region must be @State or @TimedState states.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ParallelState {
+	
+	/** The first state of each region */
+	String[] regions();
+	
+	/** The name of the next state, after all of the regions finish.
+	 *  If not specified, then the state machine stops when they finish
+	 */
+	String nextState() default "";
+	
+	/** If set, this state function will be ran first */
+	boolean first() default false;
+	
+	/**
+	 *  If set, this state will continue executing even if engage
+	 *  is not called. However, if `done` is called, execution will
+	 *  stop regardless of whether this is set
+	 */
+	boolean mustFinish() default false;
+}
@@ -0,0 +1,126 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package io.github.robotpy.magicbot.sm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out the slots of a bounded ring buffer to any number of producer
+ * threads and one consumer thread, without locking. The owner keeps what
+ * is queued in its own preallocated arrays, indexed by slot(), so queueing
+ * doesn't allocate.
+ *
+ * A producer claims a position, writes its slot, then publishes it:
+ *
+ *     long n = queue.claim();
+ *     if (n != -1) {
+ *         m_items[queue.slot(n)] = item;
+ *         queue.publish(n);
+ *     }
+ *
+ * The consumer reads the slot of next(), then releases it.
+ */
+final class SlotQueue {
+	
+	private final int m_mask;
+	
+	// a slot is ready to be read when its sequence is one past its position
+	private final AtomicLongArray m_sequence;
+	
+	// next position to claim, and next position to read
+	private final AtomicLong m_tail = new AtomicLong();
+	private final AtomicLong m_head = new AtomicLong();
+	private final AtomicLong m_dropped = new AtomicLong();
+	
+	/**
+	 * @param capacity  Maximum number of items waiting to be read,
+	 *                  rounded up to a power of two
+	 */
+	SlotQueue(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity);
+		}
+		
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		
+		m_mask = size - 1;
+		m_sequence = new AtomicLongArray(size);
+	}
+	
+	/**
+	 * @return number of slots, which is the size of the owner's arrays
+	 */
+	int capacity() {
+		return m_mask + 1;
+	}
+	
+	int slot(long position) {
+		return (int)position & m_mask;
+	}
+	
+	/**
+	 * @return position for the producer to write, or -1 if the queue was
+	 *         full. Every claimed position must be published.
+	 */
+	long claim() {
+		long tail;
+		do {
+			tail = m_tail.get();
+			if (tail - m_head.get() > m_mask) {
+				m_dropped.incrementAndGet();
+				return -1;
+			}
+		} while (!m_tail.compareAndSet(tail, tail + 1));
+		return tail;
+	}
+	
+	/**
+	 * Makes a claimed position visible to the consumer, after its slot
+	 * was written
+	 */
+	void publish(long position) {
+		m_sequence.lazySet(slot(position), position + 1);
+	}
+	
+	/**
+	 * @return the oldest published position, or -1 if there isn't one
+	 */
+	long next() {
+		long head = m_head.get();
+		if (m_sequence.get(slot(head)) != head + 1) {
+			return -1;
+		}
+		return head;
+	}
+	
+	/**
+	 * Gives the slot of next() back to the producers, after it was read
+	 */
+	void release(long position) {
+		m_head.lazySet(position + 1);
+	}
+	
+	/**
+	 * @return number of times that claim() failed because the queue was full
+	 */
+	long getDroppedCount() {
+		return m_dropped.get();
+	}
+}
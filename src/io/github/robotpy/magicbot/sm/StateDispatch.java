@@ -0,0 +1,246 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+import io.github.robotpy.magicbot.sm.StateMachine.StateMethod;
+
+/**
+ * Turns annotated state methods into StateMethod objects.
+ *
+ * Where possible, LambdaMetafactory is used to spin a real class that calls
+ * the state method directly, so calling a state doesn't box its arguments
+ * or go through an InvocationHandler. If the JVM won't let us do that (for
+ * example, private methods on Java 8), then we fall back to invoking a
+ * MethodHandle, which is slower but still doesn't allocate.
+ */
+final class StateDispatch {
+
+	private static final MethodType NO_ARGS = MethodType.methodType(void.class);
+	private static final MethodType TIME_ONLY = MethodType.methodType(void.class, double.class);
+	private static final MethodType INITIAL_ONLY = MethodType.methodType(void.class, Object.class);
+	private static final MethodType BOTH = MethodType.methodType(void.class, double.class, boolean.class);
+
+	// MethodHandles.privateLookupIn, only present on Java 9+
+	private static final MethodHandle PRIVATE_LOOKUP_IN = findPrivateLookupIn();
+
+	private StateDispatch() {}
+
+	/**
+	 * @param instance  Object that the state method will be called on
+	 * @param method    Annotated state method
+	 * @return a StateMethod that calls the state method
+	 */
+	static StateMethod create(Object instance, Method method) {
+
+		String methodName = method.getName();
+		Class<?>[] types = method.getParameterTypes();
+
+		// validate the parameters
+		if (types.length == 1) {
+			if (!isTime(types[0]) && !isInitial(types[0])) {
+				throw new RuntimeException("@State method '" + methodName + "' has invalid parameter type " + types[0]);
+			}
+		} else if (types.length == 2) {
+			if (!isTime(types[0])) {
+				throw new RuntimeException("@State method '" + methodName + "' has invalid parameter type " + types[0]);
+			}
+			if (!isInitial(types[1])) {
+				throw new RuntimeException("@State method '" + methodName + "' has invalid parameter type " + types[1]);
+			}
+		} else if (types.length > 2) {
+			throw new RuntimeException("@State method '" + methodName + "' has invalid parameters");
+		}
+
+		method.setAccessible(true);
+
+		StateMethod stateMethod = createDirect(instance, method, types);
+		if (stateMethod == null) {
+			stateMethod = createReflective(instance, method, types);
+		}
+
+		return stateMethod;
+	}
+
+	/**
+	 * Links the state method using LambdaMetafactory
+	 *
+	 * @return StateMethod, or null if the method could not be linked
+	 */
+	@SuppressWarnings("unchecked")
+	static StateMethod createDirect(Object instance, Method method, Class<?>[] types) {
+
+		Class<?> owner = method.getDeclaringClass();
+
+		try {
+			MethodHandles.Lookup lookup = privateLookup(owner);
+			MethodHandle impl = lookup.unreflect(method);
+
+			if (types.length == 0) {
+				Runnable r = (Runnable)link(lookup, impl, owner, instance, Runnable.class, "run", NO_ARGS, NO_ARGS);
+				return new NoArgsState(r);
+
+			} else if (types.length == 1 && isTime(types[0])) {
+				DoubleConsumer c = (DoubleConsumer)link(lookup, impl, owner, instance, DoubleConsumer.class, "accept", TIME_ONLY, TIME_ONLY);
+				return new TimeOnlyState(c);
+
+			} else if (types.length == 1) {
+				Consumer<Boolean> c = (Consumer<Boolean>)link(lookup, impl, owner, instance, Consumer.class, "accept", INITIAL_ONLY,
+															   MethodType.methodType(void.class, Boolean.class));
+				return new InitialOnlyState(c);
+
+			} else {
+				return (StateMethod)link(lookup, impl, owner, instance, StateMethod.class, "execute", BOTH, BOTH);
+			}
+
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Adapts the state method to a MethodHandle of type (double, boolean)void
+	 * and invokes that instead
+	 */
+	static StateMethod createReflective(Object instance, Method method, Class<?>[] types) {
+
+		MethodHandle handle;
+
+		try {
+			handle = MethodHandles.lookup().unreflect(method);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException("@State method '" + method.getName() + "' has invalid parameters", e);
+		}
+
+		handle = handle.bindTo(instance);
+
+		if (types.length == 0) {
+			handle = MethodHandles.dropArguments(handle, 0, double.class, boolean.class);
+		} else if (types.length == 1 && isTime(types[0])) {
+			handle = MethodHandles.dropArguments(handle, 1, boolean.class);
+		} else if (types.length == 1) {
+			handle = MethodHandles.dropArguments(handle, 0, double.class);
+		}
+
+		return new HandleState(handle.asType(BOTH));
+	}
+
+	private static Object link(MethodHandles.Lookup lookup, MethodHandle impl, Class<?> owner, Object instance,
+							   Class<?> samType, String samName, MethodType samMethodType,
+							   MethodType instantiatedMethodType) throws Throwable {
+
+		CallSite site = LambdaMetafactory.metafactory(lookup, samName, MethodType.methodType(samType, owner),
+													  samMethodType, impl, instantiatedMethodType);
+		return site.getTarget().invoke(instance);
+	}
+
+	private static MethodHandles.Lookup privateLookup(Class<?> owner) throws Throwable {
+		if (PRIVATE_LOOKUP_IN != null) {
+			return (MethodHandles.Lookup)PRIVATE_LOOKUP_IN.invokeExact(owner, MethodHandles.lookup());
+		}
+
+		return MethodHandles.lookup();
+	}
+
+	private static MethodHandle findPrivateLookupIn() {
+		try {
+			return MethodHandles.publicLookup().findStatic(MethodHandles.class, "privateLookupIn",
+					MethodType.methodType(MethodHandles.Lookup.class, Class.class, MethodHandles.Lookup.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	private static boolean isTime(Class<?> type) {
+		return type == double.class || type == Double.class;
+	}
+
+	private static boolean isInitial(Class<?> type) {
+		return type == boolean.class || type == Boolean.class;
+	}
+
+	//
+	// Adapters for state methods that don't take all of the parameters
+	//
+
+	static final class NoArgsState implements StateMethod {
+		private final Runnable m_target;
+
+		NoArgsState(Runnable target) {
+			m_target = target;
+		}
+
+		@Override
+		public void execute(double stateTime, boolean initialCall) {
+			m_target.run();
+		}
+	}
+
+	static final class TimeOnlyState implements StateMethod {
+		private final DoubleConsumer m_target;
+
+		TimeOnlyState(DoubleConsumer target) {
+			m_target = target;
+		}
+
+		@Override
+		public void execute(double stateTime, boolean initialCall) {
+			m_target.accept(stateTime);
+		}
+	}
+
+	static final class InitialOnlyState implements StateMethod {
+		private final Consumer<Boolean> m_target;
+
+		InitialOnlyState(Consumer<Boolean> target) {
+			m_target = target;
+		}
+
+		@Override
+		public void execute(double stateTime, boolean initialCall) {
+			// Boolean.valueOf never allocates
+			m_target.accept(Boolean.valueOf(initialCall));
+		}
+	}
+
+	static final class HandleState implements StateMethod {
+		private final MethodHandle m_handle;
+
+		HandleState(MethodHandle handle) {
+			m_handle = handle;
+		}
+
+		@Override
+		public void execute(double stateTime, boolean initialCall) {
+			try {
+				m_handle.invokeExact(stateTime, initialCall);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
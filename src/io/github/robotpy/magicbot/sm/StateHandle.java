@@ -0,0 +1,55 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+/**
+ * Refers to a single state of a StateMachine. Transitioning to a state
+ * via its handle avoids looking up the state by name.
+ *
+ * Use StateMachine.getStateHandle to retrieve one.
+ */
+public final class StateHandle {
+
+	final StateMachine m_machine;
+	final int m_index;
+	private final String m_name;
+	
+	StateHandle(StateMachine machine, int index, String name) {
+		m_machine = machine;
+		m_index = index;
+		m_name = name;
+	}
+	
+	/**
+	 * @return position of the state in StateMachine.getStateHandles()
+	 */
+	public int getIndex() {
+		return m_index;
+	}
+	
+	/**
+	 * @return name of the state
+	 */
+	public String getName() {
+		return m_name;
+	}
+	
+	@Override
+	public String toString() {
+		return m_name;
+	}
+}
@@ -16,16 +16,17 @@
 
 package io.github.robotpy.magicbot.sm;
 
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandleProxies;
-import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
-import java.lang.reflect.Type;
-import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 import io.github.robotpy.magicbot.MagicComponent;
+import io.github.robotpy.magicbot.TimeSource;
 import io.github.robotpy.magicbot.exceptions.InvalidDurationException;
 import io.github.robotpy.magicbot.exceptions.MultipleDefaultStatesError;
 import io.github.robotpy.magicbot.exceptions.MultipleFirstStatesError;
@@ -65,7 +66,19 @@ import io.github.robotpy.magicbot.exceptions.NoFirstStateException;
  * component, you should ensure that your component occurs *before*
  * the other components in your Robot class.
  *
- * @warning This object is not intended to be threadsafe
+ * A state may also be another state machine (see CompositeState), so that
+ * large state machines can be split into smaller ones, or it may run
+ * several sequences of states at the same time (see ParallelState).
+ *
+ * States can also move on when an event is posted from another thread,
+ * instead of checking for something each time they are called (see
+ * OnEvent and post).
+ *
+ * To find out when the state machine changes states, add a
+ * StateTransitionListener. Setting m_verboseLogging prints each transition
+ * to the console.
+ *
+ * @warning This object is not intended to be threadsafe, except for post
  */
 public class StateMachine implements MagicComponent {
 	
@@ -80,7 +93,9 @@ public class StateMachine implements MagicComponent {
 	class StateData {
 		
 		final String name;
-		final double duration;
+		// all times are in nanoseconds. Only timed states have a duration,
+		// which may be changed by setStateDuration
+		long duration;
 		final String nextState;
 		
 		final boolean first;
@@ -89,8 +104,28 @@ public class StateMachine implements MagicComponent {
 		
 		final StateMethod stateMethod;
 		
-		double expires = Double.MAX_VALUE;
-		double startTime = 0;
+		// for a @CompositeState, gets the child state machine the first
+		// time that the state is entered
+		final boolean composite;
+		final Supplier<StateMachine> childFactory;
+		StateMachine child;
+		
+		// for a @ParallelState, the first state of each region
+		final String[] regionNames;
+		StateData[] regions;
+		
+		// @OnEvent transitions of this state
+		Class<?>[] eventTypes = NO_EVENTS;
+		String[] eventStates;
+		StateData[] eventTargets;
+		
+		// set once all of the states are known
+		int index;
+		StateHandle handle;
+		StateData next;
+		
+		long expires = Long.MAX_VALUE;
+		long startTime = 0;
 		boolean ran = false;
 		
 		StateData(String stateName, State s, StateMethod m) {
@@ -100,19 +135,23 @@ public class StateMachine implements MagicComponent {
 			isDefault = false;
 			
 			nextState = null;
-			duration = Double.MAX_VALUE;
+			duration = Long.MAX_VALUE;
 			
 			stateMethod = m;
+			composite = false;
+			childFactory = null;
+			regionNames = null;
 		}
 		
 		StateData(String stateName, TimedState ts, StateMethod m) {
 			name = stateName;
 			
-			duration = ts.duration();
-			if (duration <= 0.0) {
+			if (ts.duration() <= 0.0) {
 				throw new InvalidDurationException("Must specify positive duration for @TimedState");
 			}
 			
+			duration = toNanos(ts.duration());
+			
 			nextState = ts.nextState().equals("") ? null : ts.nextState();
 			
 			first = ts.first();
@@ -120,11 +159,78 @@ public class StateMachine implements MagicComponent {
 			isDefault = false;
 			
 			stateMethod = m;
+			composite = false;
+			childFactory = null;
+			regionNames = null;
+		}
+		
+		StateData(String stateName, CompositeState cs, Supplier<StateMachine> factory) {
+			name = stateName;
+			duration = Long.MAX_VALUE;
+			nextState = cs.nextState().equals("") ? null : cs.nextState();
+			
+			first = cs.first();
+			mustFinish = cs.mustFinish();
+			isDefault = false;
+			
+			stateMethod = null;
+			composite = true;
+			childFactory = factory;
+			regionNames = null;
+		}
+		
+		StateData(String stateName, ParallelState ps, StateMethod m) {
+			name = stateName;
+			duration = Long.MAX_VALUE;
+			nextState = ps.nextState().equals("") ? null : ps.nextState();
+			
+			first = ps.first();
+			mustFinish = ps.mustFinish();
+			isDefault = false;
+			
+			stateMethod = m;
+			composite = false;
+			childFactory = null;
+			regionNames = ps.regions();
+		}
+		
+		StateData(StateTable.Entry e, StateMethod m, Supplier<StateMachine> factory) {
+			name = e.name;
+			duration = toNanos(e.duration);
+			nextState = e.nextState;
+			
+			first = e.first;
+			mustFinish = e.mustFinish;
+			isDefault = e.isDefault;
+			
+			stateMethod = m;
+			composite = e.composite;
+			childFactory = factory;
+			regionNames = e.regions;
+		}
+		
+		/**
+		 * @return true if this state can be one of the states of a region
+		 */
+		boolean canRunInRegion() {
+			return !composite && !isDefault && regionNames == null;
+		}
+		
+		/**
+		 * @return the state that an event moves this state to, or null
+		 */
+		StateData eventTarget(Object event) {
+			for (int i = 0; i < eventTypes.length; i++) {
+				if (eventTypes[i].isInstance(event)) {
+					return eventTargets[i];
+				}
+			}
+			return null;
 		}
 		
 		StateData(String stateName, DefaultState s, StateMethod m) {
 			name = stateName;
-			duration = Double.MAX_VALUE;
+			duration = Long.MAX_VALUE;
 			nextState = null;
 			
 			first = false;
@@ -132,6 +238,9 @@ public class StateMachine implements MagicComponent {
 			isDefault = true;
 			
 			stateMethod = m;
+			composite = false;
+			childFactory = null;
+			regionNames = null;
 		}
 	}
 	
@@ -141,28 +250,168 @@ public class StateMachine implements MagicComponent {
 	// Indicates that the state machine is currently executing
 	private boolean m_engaged = false;
 	
-	// All states
+	// All states, by name and by index
 	private final Map<String, StateData> m_states;
+	private final StateData[] m_stateArray;
 
 	// The currently executing state, or null if not executing
 	private StateData m_state = null;
 	
-	private final String m_firstState;
+	private final StateData m_firstState;
 	private final StateData m_defaultState;
 	
-	double m_start = 0.0;
+	// time that the state machine started executing, in nanoseconds
+	long m_start = 0;
 	
+	/** Print each state transition, using ConsoleTransitionListener */
 	public boolean m_verboseLogging = false;
 	
-	protected Clock m_clock = Clock.systemUTC();
+	// set while warming up, when states are not actually called
+	private boolean m_dryRun = false;
+	
+	protected TimeSource m_clock = TimeSource.SYSTEM;
+	
+	private StateTransitionListener[] m_listeners = new StateTransitionListener[0];
+	
+	// the state that was last entered, and why the next state is entered
+	private StateData m_entered = null;
+	private TransitionCause m_cause = TransitionCause.ENGAGE;
+	
+	// set if this is the child of a @CompositeState, which executes it
+	private StateMachine m_parent = null;
+	private boolean m_finished = false;
+	
+	// the regions of the current @ParallelState. These are sized for the
+	// @ParallelState with the most regions, so stepping them doesn't allocate
+	private final StateData[] m_regionState;
+	private final StateData[] m_regionEntered;
+	private final TransitionCause[] m_regionCause;
+	private final long[] m_regionStart;
+	private final long[] m_regionExpires;
+	private final boolean[] m_regionRan;
+	private int m_regionCount = 0;
+	private int m_regionsActive = 0;
+	
+	// the region whose state is being called, or -1
+	private int m_region = -1;
+	
+	private static final Class<?>[] NO_EVENTS = new Class<?>[0];
+	
+	/** Maximum number of events that can be waiting to be handled */
+	static final int EVENT_CAPACITY = 64;
+	
+	// events posted from any thread, or null if no state has an @OnEvent
+	private final SlotQueue m_events;
+	private final Object[] m_eventSlots;
 	
 	public StateMachine() {
 		
-		String firstState = null;
+		StateData firstState = null;
 		StateData defaultState = null;
 		
 		m_states = new HashMap<>();
 		
+		// use the generated state table if there is one, otherwise go
+		// find the states ourselves
+		StateTable table = StateTables.get(this.getClass());
+		List<StateData> states = table != null ? loadStates(table) : findStates();
+		
+		for (StateData state: states) {
+			
+			if (state.first) {
+				if (firstState != null) {
+					throw new MultipleFirstStatesError("Multiple states were specified as the first state!");
+				}
+				
+				firstState = state;
+			}
+			
+			if (state.isDefault) {
+				if (defaultState != null) {
+					throw new MultipleDefaultStatesError("Multiple states were specified as the default state!");
+				}
+				
+				defaultState = state;
+			}
+			
+			m_states.put(state.name, state);
+		}
+		
+		if (firstState == null) {
+			throw new NoFirstStateException("Starting state not defined!");
+		}
+		
+		// resolve the transitions once so that nothing needs to be looked
+		// up by name when the state machine is executing
+		m_stateArray = states.toArray(new StateData[states.size()]);
+		for (int i = 0; i < m_stateArray.length; i++) {
+			StateData state = m_stateArray[i];
+			state.index = i;
+			state.handle = new StateHandle(this, i, state.name);
+			
+			if (state.nextState != null) {
+				state.next = findState(state.nextState);
+			}
+		}
+		
+		boolean hasEvents = false;
+		for (StateData state: m_stateArray) {
+			if (state.eventStates != null) {
+				state.eventTargets = new StateData[state.eventStates.length];
+				for (int i = 0; i < state.eventStates.length; i++) {
+					state.eventTargets[i] = findState(state.eventStates[i]);
+				}
+				hasEvents = true;
+			}
+			
+			// the child may handle events that this doesn't
+			if (state.childFactory != null) {
+				hasEvents = true;
+			}
+		}
+		
+		m_events = hasEvents ? new SlotQueue(EVENT_CAPACITY) : null;
+		m_eventSlots = hasEvents ? new Object[m_events.capacity()] : null;
+		
+		int maxRegions = 0;
+		for (StateData state: m_stateArray) {
+			if (state.regionNames != null) {
+				state.regions = findRegions(state);
+				maxRegions = Math.max(maxRegions, state.regions.length);
+			}
+		}
+		
+		m_regionState = new StateData[maxRegions];
+		m_regionEntered = new StateData[maxRegions];
+		m_regionCause = new TransitionCause[maxRegions];
+		m_regionStart = new long[maxRegions];
+		m_regionExpires = new long[maxRegions];
+		m_regionRan = new boolean[maxRegions];
+		
+		m_firstState = firstState;
+		m_defaultState = defaultState;
+	}
+	
+	private StateData[] findRegions(StateData state) {
+		if (state.regionNames.length == 0) {
+			throw new RuntimeException("@ParallelState '" + state.name + "' must have at least one region");
+		}
+		
+		StateData[] regions = new StateData[state.regionNames.length];
+		for (int i = 0; i < regions.length; i++) {
+			regions[i] = findState(state.regionNames[i]);
+			if (!regions[i].canRunInRegion()) {
+				throw new RuntimeException("State '" + regions[i].name + "' cannot be a region of @ParallelState '" +
+										   state.name + "'");
+			}
+		}
+		return regions;
+	}
+	
+	private List<StateData> findStates() {
+		
+		List<StateData> states = new ArrayList<>();
+		
 		// for each method
 		for (Method method : this.getClass().getDeclaredMethods()) {
 			
@@ -170,85 +419,140 @@ public class StateMachine implements MagicComponent {
 			State stateAnn = method.getAnnotation(State.class);
 			TimedState tsAnn = method.getAnnotation(TimedState.class);
 			DefaultState dfAnn = method.getAnnotation(DefaultState.class);
+			CompositeState csAnn = method.getAnnotation(CompositeState.class);
+			ParallelState psAnn = method.getAnnotation(ParallelState.class);
+			OnEvent[] events = method.getAnnotationsByType(OnEvent.class);
 			
-			if (stateAnn == null && tsAnn == null && dfAnn == null) {
+			String methodName = method.getName();
+			
+			if (stateAnn == null && tsAnn == null && dfAnn == null && csAnn == null && psAnn == null) {
+				if (events.length != 0) {
+					throw new RuntimeException("@OnEvent method '" + methodName + "' is not a state");
+				}
 				continue;
 			}
 			
-			StateMethod stateMethod;
-			StateData state;
-			String methodName = method.getName();
-			
-			method.setAccessible(true);
+			int count = states.size();
 			
-			try {
-				// transform the method
-				MethodHandle handle = MethodHandles.lookup().unreflect(method);
-				handle = handle.bindTo(this);
-				
-				Type[] types = method.getGenericParameterTypes();
-				
-				if (types.length == 0) {
-					handle = MethodHandles.dropArguments(handle, 0, Double.class, Boolean.class);
-				} else if (types.length == 1) {
-					if (types[0].equals(double.class) || types[0].equals(Double.class)) {
-						handle = MethodHandles.dropArguments(handle, 1, boolean.class);
-					} else if (types[0].equals(boolean.class) || types[0].equals(Boolean.class)) {
-						handle = MethodHandles.dropArguments(handle, 0, double.class);
-					} else {
-						throw new RuntimeException("@State method '" + methodName + "' has invalid parameter type " + types[0]);
-					}
+			if (csAnn != null) {
+				if (stateAnn != null || tsAnn != null || dfAnn != null || psAnn != null) {
+					throw new RuntimeException("Cannot mark a function with @CompositeState and another state annotation!");
 				}
 				
-				stateMethod = MethodHandleProxies.asInterfaceInstance(StateMethod.class, handle);
-			} catch ( IllegalAccessException e) {
-				throw new RuntimeException("@State method '" + methodName + "' has invalid parameters", e);
+				states.add(new StateData(methodName, csAnn, childFactory(method)));
+				setEvents(states.get(count), events);
+				continue;
 			}
 			
+			// transform the method into something we can call quickly
+			StateMethod stateMethod = StateDispatch.create(this, method);
+			
 			// now that nonsense is done, let's construct our state data and continue
-			if (stateAnn != null && tsAnn != null) {
+			if (psAnn != null) {
+				if (stateAnn != null || tsAnn != null || dfAnn != null) {
+					throw new RuntimeException("Cannot mark a function with @ParallelState and another state annotation!");
+				}
+				
+				states.add(new StateData(methodName, psAnn, stateMethod));
+				
+			} else if (stateAnn != null && tsAnn != null) {
 				throw new RuntimeException("Cannot mark a function with @State and @TimedState!");
 				
 			} else if (stateAnn != null) {
-				state = new StateData(methodName, stateAnn, stateMethod);
+				states.add(new StateData(methodName, stateAnn, stateMethod));
 				
 			} else if (tsAnn != null) {
-				state = new StateData(methodName, tsAnn, stateMethod);
+				states.add(new StateData(methodName, tsAnn, stateMethod));
 			
 			} else if (dfAnn != null) {
-				state = new StateData(methodName, dfAnn, stateMethod);
-				
-			} else {
-				continue;
+				states.add(new StateData(methodName, dfAnn, stateMethod));
 			}
 			
-			if (state.first) {
-				if (firstState != null) {
-					throw new MultipleFirstStatesError("Multiple states were specified as the first state!");
-				}
-				
-				firstState = state.name;
+			setEvents(states.get(count), events);
+		}
+		
+		return states;
+	}
+	
+	private static void setEvents(StateData state, OnEvent[] events) {
+		if (events.length == 0) {
+			return;
+		}
+		
+		state.eventTypes = new Class<?>[events.length];
+		state.eventStates = new String[events.length];
+		for (int i = 0; i < events.length; i++) {
+			state.eventTypes[i] = events[i].type();
+			state.eventStates[i] = events[i].nextState();
+		}
+	}
+	
+	private List<StateData> loadStates(StateTable table) {
+		
+		StateTable.Entry[] entries = table.states();
+		List<StateData> states = new ArrayList<>(entries.length);
+		
+		for (int i = 0; i < entries.length; i++) {
+			StateTable.Entry entry = entries[i];
+			
+			if (entry.composite) {
+				// generated code can call non-private methods directly, so
+				// the method is only looked up when that isn't possible
+				final int index = i;
+				states.add(new StateData(entry, null, () -> {
+					StateMachine child = table.child(this, index);
+					return child != null ? child : childFactory(findMethod(entry)).get();
+				}));
+				continue;
 			}
 			
-			if (state.isDefault) {
-				if (defaultState != null) {
-					throw new MultipleDefaultStatesError("Multiple states were specified as the default state!");
-				}
-				
-				defaultState = state;
+			// generated code can call non-private methods directly
+			StateMethod stateMethod = table.bind(this, i);
+			if (stateMethod == null) {
+				stateMethod = StateDispatch.create(this, findMethod(entry));
 			}
 			
-			m_states.put(state.name, state);
+			states.add(new StateData(entry, stateMethod, null));
 		}
 		
-		if (firstState == null) {
-			throw new NoFirstStateException("Starting state not defined!");
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].eventTypes != null) {
+				states.get(i).eventTypes = entries[i].eventTypes;
+				states.get(i).eventStates = entries[i].eventStates;
+			}
 		}
 		
-		m_firstState = firstState;
-		m_defaultState = defaultState;
+		return states;
 	}
 	
+	private Method findMethod(StateTable.Entry entry) {
+		try {
+			return this.getClass().getDeclaredMethod(entry.name, entry.parameterTypes);
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException("State table for " + this.getClass() + " is out of date, " +
+									   "cannot find state '" + entry.name + "'", e);
+		}
+	}
+	
+	/**
+	 * @return something that calls the method of a @CompositeState
+	 */
+	private Supplier<StateMachine> childFactory(Method method) {
+		if (method.getParameterTypes().length != 0 || !StateMachine.class.isAssignableFrom(method.getReturnType())) {
+			throw new RuntimeException("@CompositeState method '" + method.getName() +
+									   "' must take no parameters and return a StateMachine");
+		}
+		
+		method.setAccessible(true);
+		
+		return () -> {
+			try {
+				return (StateMachine)method.invoke(this);
+			} catch (ReflectiveOperationException e) {
+				throw new RuntimeException("Could not get the state machine of @CompositeState '" + method.getName() + "'", e);
+			}
+		};
+	}
 	
 	/**
 	 * @return true if the state machine is executing states
@@ -264,6 +568,97 @@ public class StateMachine implements MagicComponent {
 		return m_state == null ? "" : m_state.name;
 	}
 	
+	/**
+	 * @param region Index of the region in the regions of the @ParallelState
+	 * @return name of the state that a region of the currently executing
+	 *         @ParallelState is in, or "" if the region has finished
+	 */
+	public String getCurrentState(int region) {
+		if (region < 0 || region >= m_regionCount || m_regionState[region] == null) {
+			return "";
+		}
+		return m_regionState[region].name;
+	}
+	
+	/**
+	 * Changes how long a @TimedState lasts, for this state machine only.
+	 * This is useful for tuning, or for trying different durations in
+	 * simulation. The new duration is used the next time that the state
+	 * is entered.
+	 *
+	 * @param name      Name of the state
+	 * @param duration  New duration in seconds
+	 */
+	public void setStateDuration(String name, double duration) {
+		StateData state = findState(name);
+		if (state.duration == Long.MAX_VALUE) {
+			throw new RuntimeException("State '" + name + "' is not a @TimedState");
+		}
+		if (duration <= 0.0) {
+			throw new InvalidDurationException("Must specify positive duration for @TimedState");
+		}
+		state.duration = toNanos(duration);
+	}
+	
+	/**
+	 * @return how long a @TimedState lasts in seconds, or
+	 *         Double.POSITIVE_INFINITY for other states
+	 */
+	public double getStateDuration(String name) {
+		StateData state = findState(name);
+		return state.duration == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : state.duration / 1e9;
+	}
+	
+	/**
+	 * Changes the time that the state machine runs on. Don't call this
+	 * while the state machine is executing.
+	 */
+	public void setClock(TimeSource clock) {
+		m_clock = clock;
+		for (StateData state: m_stateArray) {
+			if (state.child != null) {
+				state.child.setClock(clock);
+			}
+		}
+	}
+	
+	/**
+	 * @return handles for all of the states, ordered by StateHandle.getIndex
+	 */
+	public StateHandle[] getStateHandles() {
+		StateHandle[] handles = new StateHandle[m_stateArray.length];
+		for (int i = 0; i < handles.length; i++) {
+			handles[i] = m_stateArray[i].handle;
+		}
+		return handles;
+	}
+	
+	/**
+	 * Adds a listener that is called each time this state machine enters
+	 * a state or stops executing. Don't call this while the state machine
+	 * is executing.
+	 */
+	public void addTransitionListener(StateTransitionListener listener) {
+		StateTransitionListener[] listeners = Arrays.copyOf(m_listeners, m_listeners.length + 1);
+		listeners[m_listeners.length] = listener;
+		m_listeners = listeners;
+	}
+	
+	/**
+	 * Removes a listener added by addTransitionListener
+	 */
+	public void removeTransitionListener(StateTransitionListener listener) {
+		for (int i = 0; i < m_listeners.length; i++) {
+			if (m_listeners[i] == listener) {
+				StateTransitionListener[] listeners = new StateTransitionListener[m_listeners.length - 1];
+				System.arraycopy(m_listeners, 0, listeners, 0, i);
+				System.arraycopy(m_listeners, i + 1, listeners, i, listeners.length - i);
+				m_listeners = listeners;
+				return;
+			}
+		}
+	}
+	
 	/**
 	 * MagicComponent API: called when autonomous/teleop is disabled
 	 */
@@ -293,12 +688,52 @@ public class StateMachine implements MagicComponent {
 		
 		if (force || m_state == null || m_state == m_defaultState) {
 			if (initialState != null) {
-				nextState(initialState);
+				transition(findState(initialState), TransitionCause.ENGAGE);
 			} else {
-				nextState(m_firstState);
+				transition(m_firstState, TransitionCause.ENGAGE);
 			}
 		}
 	}
+	
+	/**
+	 * Posts an event that is handled by the @OnEvent transitions of the
+	 * current state at the start of the next call to execute. If the
+	 * current state doesn't handle it, it is passed to the child of a
+	 * @CompositeState, or to every region of a @ParallelState. Unlike the
+	 * rest of the state machine, this may be called from any thread, and
+	 * it doesn't lock or allocate.
+	 *
+	 * @param event Event to post
+	 * @return false if the event was dropped, because no state has an
+	 *         @OnEvent or a child, or too many events are already waiting
+	 */
+	public boolean post(Object event) {
+		Objects.requireNonNull(event, "event");
+		if (m_events == null) {
+			return false;
+		}
+		
+		long n = m_events.claim();
+		if (n == -1) {
+			return false;
+		}
+		
+		m_eventSlots[m_events.slot(n)] = event;
+		m_events.publish(n);
+		return true;
+	}
+	
+	/**
+	 * Looks up a state so that you can transition to it without looking
+	 * it up by name each time. Handles can only be used with the state
+	 * machine that created them.
+	 *
+	 * @param name Name of the state
+	 * @return handle for the state
+	 */
+	public StateHandle getStateHandle(String name) {
+		return findState(name).handle;
+	}
 
 	/**
 	 * Call this function to transition to the next state
@@ -306,13 +741,16 @@ public class StateMachine implements MagicComponent {
 	 * @param name Name of the state to transition to
 	 */
 	protected void nextState(String name) {
-		StateData state = m_states.get(name);
-		if (state == null) {
-			throw new RuntimeException("Invalid state '" + name + "' specified");
-		}
-		
-		state.ran = false;
-		m_state = state;
+		moveTo(findState(name));
+	}
+	
+	/**
+	 * Call this function to transition to the next state
+	 *
+	 * @param state Handle of the state to transition to
+	 */
+	protected void nextState(StateHandle state) {
+		moveTo(findState(state));
 	}
 	
 	/**
@@ -324,7 +762,58 @@ public class StateMachine implements MagicComponent {
 	protected void nextStateNow(String name) {
 		nextState(name);
 		// TODO: is this a bad idea?
-		execute();
+		// A region's next state is called on the next execute instead
+		if (m_region == -1) {
+			execute(m_clock.nanoTime());
+		}
+	}
+	
+	/**
+	 * Call this function to transition to the next state, and call the next
+	 * state function immediately. Prefer to use 'next_state' instead.
+	 *
+	 * @param state Handle of the state to transition to
+	 */
+	protected void nextStateNow(StateHandle state) {
+		nextState(state);
+		if (m_region == -1) {
+			execute(m_clock.nanoTime());
+		}
+	}
+	
+	private StateData findState(String name) {
+		StateData state = m_states.get(name);
+		if (state == null) {
+			throw new RuntimeException("Invalid state '" + name + "' specified");
+		}
+		return state;
+	}
+	
+	private StateData findState(StateHandle handle) {
+		if (handle.m_machine != this) {
+			throw new RuntimeException("State '" + handle.getName() + "' belongs to a different state machine");
+		}
+		return m_stateArray[handle.m_index];
+	}
+	
+	/**
+	 * Moves a region instead of the state machine when a state in a
+	 * region calls nextState
+	 */
+	private void moveTo(StateData state) {
+		if (m_region != -1) {
+			enterRegion(m_region, state, TransitionCause.NEXT_STATE);
+		} else {
+			transition(state, TransitionCause.NEXT_STATE);
+		}
+	}
+	
+	private void transition(StateData state, TransitionCause cause) {
+		stopChild();
+		stopRegions();
+		state.ran = false;
+		m_state = state;
+		m_cause = cause;
 	}
 	
 	/**
@@ -332,15 +821,34 @@ public class StateMachine implements MagicComponent {
 	 *
 	 * This function will always be called when a state machine ends. Even if
 	 * the engage function is called repeatedly, done() will be called.
+	 *
+	 * If a state in a region of a @ParallelState calls this, then only the
+	 * region is finished.
 	 */
 	public void done() {
-		if (m_verboseLogging && m_state != null) {
-			double tm = (m_clock.millis() / 1000.0) - m_start;
-			System.out.printf("%.3fs: Stopped state machine execution\n", tm);
+		if (m_region != -1) {
+			finishRegion(m_region);
+			return;
 		}
 		
+		if (m_entered != null && (m_listeners.length != 0 || m_verboseLogging)) {
+			long now = m_clock.nanoTime();
+			fireTransition(m_entered, null, TransitionCause.DONE, now, now - m_start);
+		}
+		
+		stopChild();
+		stopRegions();
+		
+		m_entered = null;
 		m_state = null;
 		m_engaged = false;
+		
+		// let the parent know that we finished, and don't start again
+		// unless the parent engages us
+		if (m_parent != null) {
+			m_finished = true;
+			m_shouldEngage = false;
+		}
 	}
 	
 	/**
@@ -348,11 +856,45 @@ public class StateMachine implements MagicComponent {
 	 * control loop. Most of the time, you will not want to override
 	 * this function. If you find you want to, use @DefaultState
 	 * instead.
+	 *
+	 * While a state machine is the child of the current @CompositeState
+	 * of another state machine, only that parent executes it and this
+	 * does nothing, so adding the child to the robot as a component by
+	 * mistake doesn't stop it. Once the parent leaves the state, the
+	 * child can be executed on its own again.
 	 */
 	@Override
 	public void execute() {
+		if (m_parent != null) {
+			return;
+		}
+		execute(m_clock.nanoTime());
+	}
+	
+	/**
+	 * @param now  Current time from m_clock. A parent state machine passes
+	 *             its own time, so a hierarchy only reads the clock once.
+	 */
+	private void execute(long now) {
 		
-		double now = m_clock.millis() / 1000.0;
+		// handle events first, so that states see the result. Only handle
+		// as many as fit in the queue, in case another thread keeps posting.
+		// Events wait for the real execute while warming up
+		if (m_events != null && !m_dryRun) {
+			for (int i = m_events.capacity(); i > 0; i--) {
+				long n = m_events.next();
+				if (n == -1) {
+					break;
+				}
+				
+				int slot = m_events.slot(n);
+				Object event = m_eventSlots[slot];
+				m_eventSlots[slot] = null;
+				m_events.release(n);
+				
+				dispatch(event);
+			}
+		}
 		
 		if (!m_engaged) {
 			if (m_shouldEngage) {
@@ -363,15 +905,15 @@ public class StateMachine implements MagicComponent {
 			}
 		}
 		
-		// tm is the number of seconds that the state machine has been executing
-		double tm = now - m_start;
+		// tm is the number of nanoseconds that the state machine has been executing
+		long tm = now - m_start;
 		StateData state = m_state;
 		boolean done_called = false;
 		
 		// we adjust this so that if we have states chained together,
         // then the total time it runs is the amount of time of the
         // states. Otherwise, the time drifts.
-		double new_state_start = tm;
+		long new_state_start = tm;
 		
 		// determine if the time has passed to execute the next state
 		// -> intentionally comes first
@@ -386,13 +928,13 @@ public class StateMachine implements MagicComponent {
 				done();
 				
 				if (m_shouldEngage) {
-					nextState(m_firstState);
+					transition(m_firstState, TransitionCause.ENGAGE);
 					state = m_state;
 				} else {
 					state = null;
 				}
 			} else {
-				nextState(state.nextState);
+				transition(state.next, TransitionCause.EXPIRED);
 				state = m_state;
 			}
 		}
@@ -409,8 +951,7 @@ public class StateMachine implements MagicComponent {
         	state = m_defaultState;
         	
         	if (m_state != m_defaultState) {
-				m_state = m_defaultState;
-				m_state.ran = false;
+				transition(m_defaultState, TransitionCause.DEFAULT);
 			}
         }
         
@@ -421,15 +962,24 @@ public class StateMachine implements MagicComponent {
             if (initial_call) {
                 state.ran = true;
                 state.startTime = new_state_start;
-                state.expires = new_state_start + state.duration;
+                state.expires = addNanos(new_state_start, state.duration);
                 
-                if (m_verboseLogging) {
-                	System.out.printf("%.3fs: Entering state: %s\n", tm, state.name);
+                if (m_listeners.length != 0 || m_verboseLogging) {
+                	fireTransition(m_entered, state, m_cause, now, tm);
                 }
+                m_entered = state;
             }
             
             // execute the state function, passing it the arguments
-            state.stateMethod.execute(tm - state.startTime, initial_call);
+            if (m_dryRun) {
+            	// don't call anything
+            } else if (state.composite) {
+            	executeChild(state, now, initial_call);
+            } else if (state.regions != null) {
+            	executeRegions(state, now, tm, initial_call);
+            } else {
+            	state.stateMethod.execute((tm - state.startTime) / 1e9, initial_call);
+            }
         } else if (!done_called) {
         	// or clear the state
         	done();
@@ -439,6 +989,285 @@ public class StateMachine implements MagicComponent {
         m_shouldEngage = false;
 	}
 	
+	/**
+	 * MagicComponent API: steps through each state without calling the
+	 * state methods, so that the code that decides which state to execute
+	 * is compiled before the robot is enabled. The state machine is left
+	 * stopped, so don't call this while it is executing.
+	 */
+	@Override
+	public void warmUp() {
+		boolean verbose = m_verboseLogging;
+		m_verboseLogging = false;
+		m_dryRun = true;
+		
+		try {
+			for (StateData state: m_stateArray) {
+				// the first call to the state, and then a later call
+				engage(state.name, true);
+				execute();
+				engage();
+				execute();
+			}
+		} finally {
+			done();
+			m_shouldEngage = false;
+			m_dryRun = false;
+			m_verboseLogging = verbose;
+		}
+	}
+	
+	/**
+	 * Moves to the state that the current state's @OnEvent says to, or
+	 * passes the event to the child or regions of the current state
+	 *
+	 * @return true if the event was handled
+	 */
+	private boolean dispatch(Object event) {
+		StateData state = m_state;
+		if (state == null) {
+			return false;
+		}
+		
+		StateData target = state.eventTarget(event);
+		if (target != null) {
+			transition(target, TransitionCause.EVENT);
+			return true;
+		}
+		
+		if (state.child != null && state.child.m_state != null) {
+			return state.child.dispatch(event);
+		}
+		
+		boolean handled = false;
+		for (int i = 0; i < m_regionCount; i++) {
+			StateData regionState = m_regionState[i];
+			if (regionState != null) {
+				target = regionState.eventTarget(event);
+				if (target != null) {
+					enterRegion(i, target, TransitionCause.EVENT);
+					handled = true;
+				}
+			}
+		}
+		return handled;
+	}
+	
+	/**
+	 * Executes the child of a @CompositeState, and moves on when the
+	 * child finishes
+	 */
+	private void executeChild(StateData state, long now, boolean initialCall) {
+		StateMachine child = state.child;
+		if (child == null) {
+			child = linkChild(state);
+		}
+		
+		if (initialCall) {
+			attachChild(state, child);
+			child.m_finished = false;
+			child.engage(null, true);
+		} else {
+			child.m_shouldEngage = true;
+		}
+		
+		child.execute(now);
+		
+		if (child.m_finished) {
+			if (state.next != null) {
+				transition(state.next, TransitionCause.CHILD_DONE);
+			} else {
+				done();
+			}
+		}
+	}
+	
+	private StateMachine linkChild(StateData state) {
+		StateMachine child = state.childFactory.get();
+		if (child == null) {
+			throw new RuntimeException("@CompositeState '" + state.name + "' did not return a state machine");
+		}
+		
+		state.child = child;
+		return child;
+	}
+	
+	/**
+	 * Makes this the parent of the child while the @CompositeState runs
+	 */
+	private void attachChild(StateData state, StateMachine child) {
+		for (StateMachine sm = this; sm != null; sm = sm.m_parent) {
+			if (sm == child) {
+				throw new RuntimeException("@CompositeState '" + state.name + "' cannot contain its own parent");
+			}
+		}
+		
+		if (child.m_parent != null && child.m_parent != this) {
+			throw new RuntimeException("@CompositeState '" + state.name + "' returned a state machine that " +
+									   "belongs to a different state machine");
+		}
+		
+		child.m_parent = this;
+		child.setClock(m_clock);
+	}
+	
+	/**
+	 * Stops the child of the current state, if it has one, and lets it
+	 * be executed on its own again
+	 */
+	private void stopChild() {
+		StateData state = m_state;
+		if (state != null && state.child != null && state.child.m_parent == this) {
+			StateMachine child = state.child;
+			if (child.m_state != null) {
+				child.done();
+			}
+			child.m_parent = null;
+		}
+	}
+	
+	/**
+	 * Calls the function of a @ParallelState, and then steps each of its
+	 * regions like execute steps the state machine
+	 */
+	private void executeRegions(StateData state, long now, long tm, boolean initialCall) {
+		
+		// fork: start each region at its first state
+		if (initialCall) {
+			StateData[] regions = state.regions;
+			for (int i = 0; i < regions.length; i++) {
+				m_regionState[i] = regions[i];
+				m_regionEntered[i] = state;
+				m_regionCause[i] = TransitionCause.FORK;
+				m_regionRan[i] = false;
+			}
+			m_regionCount = regions.length;
+			m_regionsActive = regions.length;
+		}
+		
+		state.stateMethod.execute((tm - state.startTime) / 1e9, initialCall);
+		
+		// the function left the state
+		if (m_state != state) {
+			return;
+		}
+		
+		for (int i = 0; i < m_regionCount; i++) {
+			StateData regionState = m_regionState[i];
+			if (regionState == null) {
+				continue;
+			}
+			
+			// regions start when the parallel state started, so that they
+			// don't drift relative to each other
+			long newStateStart = m_regionCause[i] == TransitionCause.FORK ? state.startTime : tm;
+			
+			if (m_regionRan[i] && m_regionExpires[i] < tm) {
+				newStateStart = m_regionExpires[i];
+				
+				if (regionState.next == null) {
+					finishRegion(i);
+					continue;
+				}
+				
+				enterRegion(i, regionState.next, TransitionCause.EXPIRED);
+				regionState = m_regionState[i];
+			}
+			
+			boolean regionInitialCall = !m_regionRan[i];
+			if (regionInitialCall) {
+				m_regionRan[i] = true;
+				m_regionStart[i] = newStateStart;
+				m_regionExpires[i] = addNanos(newStateStart, regionState.duration);
+				
+				if (m_listeners.length != 0 || m_verboseLogging) {
+					fireTransition(m_regionEntered[i], regionState, m_regionCause[i], now, tm);
+				}
+				m_regionEntered[i] = regionState;
+			}
+			
+			m_region = i;
+			try {
+				regionState.stateMethod.execute((tm - m_regionStart[i]) / 1e9, regionInitialCall);
+			} finally {
+				m_region = -1;
+			}
+		}
+		
+		// join: move on once all of the regions have finished
+		if (m_regionsActive == 0) {
+			if (state.next != null) {
+				transition(state.next, TransitionCause.JOIN);
+			} else {
+				done();
+			}
+		}
+	}
+	
+	private void enterRegion(int region, StateData state, TransitionCause cause) {
+		if (!state.canRunInRegion()) {
+			throw new RuntimeException("State '" + state.name + "' cannot be used in a region of a @ParallelState");
+		}
+		
+		m_regionState[region] = state;
+		m_regionCause[region] = cause;
+		m_regionRan[region] = false;
+	}
+	
+	private void finishRegion(int region) {
+		if (m_regionState[region] != null) {
+			m_regionState[region] = null;
+			m_regionsActive--;
+		}
+	}
+	
+	/**
+	 * Stops all of the regions of the current state, if it has any
+	 */
+	private void stopRegions() {
+		for (int i = 0; i < m_regionCount; i++) {
+			m_regionState[i] = null;
+			m_regionEntered[i] = null;
+		}
+		m_regionCount = 0;
+		m_regionsActive = 0;
+	}
+	
+	private void fireTransition(StateData from, StateData to, TransitionCause cause, long now, long tm) {
+		if (m_dryRun) {
+			return;
+		}
+		
+		StateHandle fromHandle = from == null ? null : from.handle;
+		StateHandle toHandle = to == null ? null : to.handle;
+		
+		for (StateTransitionListener listener: m_listeners) {
+			listener.onTransition(this, fromHandle, toHandle, cause, now, tm);
+		}
+		
+		if (m_verboseLogging) {
+			ConsoleTransitionListener.getDefault().onTransition(this, fromHandle, toHandle, cause, now, tm);
+		}
+	}
+	
+	/**
+	 * Converts seconds to nanoseconds, saturating at Long.MAX_VALUE
+	 */
+	static long toNanos(double seconds) {
+		return Math.round(seconds * 1e9);
+	}
+	
+	/**
+	 * Adds two times in nanoseconds, saturating at Long.MAX_VALUE
+	 */
+	static long addNanos(long a, long b) {
+		long r = a + b;
+		if (b > 0 && r < a) {
+			return Long.MAX_VALUE;
+		}
+		return r;
+	}
+	
 	/** don't use this; internal use only */
 	protected void __internal_autonomous_exit() {
 		m_shouldEngage = false;
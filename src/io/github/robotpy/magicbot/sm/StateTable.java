@@ -0,0 +1,128 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+/**
+ * Implemented by the state tables that the Magicbot annotation processor
+ * generates for each StateMachine. You should never need to implement
+ * this yourself.
+ *
+ * If a StateMachine has a generated state table, then the constructor
+ * uses it instead of scanning the class for annotated methods. The
+ * generated table for ``foo.Outer$MyMachine`` is ``foo.Outer_MyMachine_StateTable``.
+ */
+public interface StateTable {
+
+	/**
+	 * Description of a single state, in declaration order
+	 */
+	public static final class Entry {
+
+		final String name;
+		final Class<?>[] parameterTypes;
+
+		final boolean isDefault;
+		final double duration;
+		final String nextState;
+
+		final boolean first;
+		final boolean mustFinish;
+		final boolean composite;
+		final String[] regions;
+		final Class<?>[] eventTypes;
+		final String[] eventStates;
+
+		/**
+		 * @param name            Name of the state method
+		 * @param parameterTypes  Parameter types of the state method
+		 * @param isDefault       True if this is a @DefaultState
+		 * @param duration        Duration of a @TimedState, Double.MAX_VALUE otherwise
+		 * @param nextState       Next state of a @TimedState, @CompositeState or
+		 *                        @ParallelState, or null
+		 * @param first           True if this is the first state
+		 * @param mustFinish      True if this state must finish
+		 */
+		public Entry(String name, Class<?>[] parameterTypes, boolean isDefault, double duration,
+					 String nextState, boolean first, boolean mustFinish) {
+			this(name, parameterTypes, isDefault, duration, nextState, first, mustFinish, false, null);
+		}
+
+		/**
+		 * @param composite       True if this is a @CompositeState
+		 */
+		public Entry(String name, Class<?>[] parameterTypes, boolean isDefault, double duration,
+					 String nextState, boolean first, boolean mustFinish, boolean composite) {
+			this(name, parameterTypes, isDefault, duration, nextState, first, mustFinish, composite, null);
+		}
+
+		/**
+		 * @param regions         First state of each region of a @ParallelState, or null
+		 */
+		public Entry(String name, Class<?>[] parameterTypes, boolean isDefault, double duration,
+					 String nextState, boolean first, boolean mustFinish, boolean composite,
+					 String[] regions) {
+			this(name, parameterTypes, isDefault, duration, nextState, first, mustFinish, composite, regions, null, null);
+		}
+
+		/**
+		 * @param eventTypes      Event type of each @OnEvent, or null
+		 * @param eventStates     Next state of each @OnEvent, or null
+		 */
+		public Entry(String name, Class<?>[] parameterTypes, boolean isDefault, double duration,
+					 String nextState, boolean first, boolean mustFinish, boolean composite,
+					 String[] regions, Class<?>[] eventTypes, String[] eventStates) {
+			this.name = name;
+			this.parameterTypes = parameterTypes;
+			this.isDefault = isDefault;
+			this.duration = duration;
+			this.nextState = nextState;
+			this.first = first;
+			this.mustFinish = mustFinish;
+			this.composite = composite;
+			this.regions = regions;
+			this.eventTypes = eventTypes;
+			this.eventStates = eventStates;
+		}
+	}
+
+	/**
+	 * @return all states of the state machine. Do not modify the array.
+	 */
+	public Entry[] states();
+
+	/**
+	 * Creates a StateMethod that directly calls a state method
+	 *
+	 * @param machine  State machine that the state belongs to
+	 * @param index    Index of the state in states()
+	 * @return StateMethod, or null if the state method isn't accessible
+	 *         to the generated code (for example, it is private)
+	 */
+	public StateMachine.StateMethod bind(StateMachine machine, int index);
+
+	/**
+	 * Calls the method of a @CompositeState to get its child state machine
+	 *
+	 * @param machine  State machine that the state belongs to
+	 * @param index    Index of the state in states()
+	 * @return child state machine, or null if the method isn't accessible
+	 *         to the generated code (for example, it is private)
+	 */
+	public default StateMachine child(StateMachine machine, int index) {
+		return null;
+	}
+}
@@ -0,0 +1,57 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+/**
+ * Finds the generated StateTable for a StateMachine class, if there is one
+ */
+final class StateTables {
+
+	private static final ClassValue<StateTable> TABLES = new ClassValue<StateTable>() {
+		@Override
+		protected StateTable computeValue(Class<?> type) {
+			String name = tableName(type);
+
+			try {
+				Class<?> tableClass = Class.forName(name, true, type.getClassLoader());
+				return (StateTable)tableClass.getDeclaredConstructor().newInstance();
+			} catch (ClassNotFoundException e) {
+				return null;
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new RuntimeException("Could not load state table " + name, e);
+			}
+		}
+	};
+
+	private StateTables() {}
+
+	/**
+	 * @return the generated state table for the class, or null
+	 */
+	static StateTable get(Class<?> type) {
+		return TABLES.get(type);
+	}
+
+	/**
+	 * Must be kept in sync with the annotation processor
+	 */
+	static String tableName(Class<?> type) {
+		String name = type.getName();
+		int dot = name.lastIndexOf('.');
+		return name.substring(0, dot + 1) + name.substring(dot + 1).replace('$', '_') + "_StateTable";
+	}
+}
@@ -0,0 +1,48 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+/**
+ * Receives the state transitions of a StateMachine. Add one with
+ * StateMachine.addTransitionListener.
+ *
+ * Listeners are called on the thread executing the state machine, in the
+ * middle of the control loop, so they should return quickly. To do slow
+ * work such as printing, queue the transition and do the work on another
+ * thread, like ConsoleTransitionListener does.
+ */
+@FunctionalInterface
+public interface StateTransitionListener {
+	
+	/**
+	 * Called when a state machine starts executing a state, or stops
+	 * executing
+	 *
+	 * @param machine      State machine that changed states
+	 * @param from         State that was executing, or null if the state
+	 *                     machine is starting
+	 * @param to           State that is about to execute, or null if the
+	 *                     state machine stopped
+	 * @param cause        Why the state changed
+	 * @param timestamp    Time of the transition from the state machine's
+	 *                     clock, in nanoseconds
+	 * @param machineTime  Time since the state machine started executing,
+	 *                     in nanoseconds
+	 */
+	public void onTransition(StateMachine machine, StateHandle from, StateHandle to,
+							 TransitionCause cause, long timestamp, long machineTime);
+}
@@ -0,0 +1,41 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+/**
+ * Why a state machine changed states
+ */
+public enum TransitionCause {
+	/** engage() started the state machine, or forced it into a state */
+	ENGAGE,
+	/** A state called nextState() */
+	NEXT_STATE,
+	/** A @TimedState ran for its duration */
+	EXPIRED,
+	/** The state machine wasn't engaged, so it went back to its @DefaultState */
+	DEFAULT,
+	/** The state machine stopped executing */
+	DONE,
+	/** The child state machine of a @CompositeState finished */
+	CHILD_DONE,
+	/** A @ParallelState started one of its regions */
+	FORK,
+	/** All of the regions of a @ParallelState finished */
+	JOIN,
+	/** An event was posted that the state handles with @OnEvent */
+	EVENT
+}
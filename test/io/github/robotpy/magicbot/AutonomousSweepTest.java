@@ -0,0 +1,131 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.github.robotpy.magicbot.sm.AutonomousStateMachine;
+import io.github.robotpy.magicbot.sm.State;
+import io.github.robotpy.magicbot.sm.TimedState;
+
+public class AutonomousSweepTest {
+	
+	static class Odometry implements MagicComponent {
+		final double m_speed;
+		double distance = 0;
+		
+		Odometry(double speed) {
+			m_speed = speed;
+		}
+		
+		@Override
+		public void execute() {
+			distance += m_speed * 0.020;
+		}
+	}
+	
+	static class DriveAndShoot extends AutonomousStateMachine {
+		@MagicInject
+		Odometry odometry;
+		
+		@TimedState(first=true, duration=1, nextState="drive")
+		void spinUp() {}
+		
+		@State
+		void drive() {
+			if (odometry.distance > 3) {
+				nextState("shoot");
+			}
+		}
+		
+		@TimedState(duration=2)
+		void shoot() {}
+	}
+	
+	static AutonomousSweep createSweep() {
+		return new AutonomousSweep(trial -> {
+			DriveAndShoot auto = new DriveAndShoot();
+			auto.setStateDuration("spinUp", trial.uniform("spinUp", 0.5, 1.5));
+			trial.provide("odometry", new Odometry(Math.max(0.1, trial.gaussian("speed", 1.0, 0.2))));
+			return auto;
+		});
+	}
+	
+	@Test
+	public void testSweep() {
+		AutonomousSweep sweep = createSweep();
+		sweep.setTrials(200);
+		sweep.setParallelism(4);
+		sweep.setSeed(42);
+		
+		AutonomousSweep.Summary summary = sweep.run();
+		assertEquals(200, summary.getOutcomes().size());
+		assertEquals(0, summary.getErrorCount());
+		assertTrue(summary.getFinishedCount() > 150);
+		
+		for (AutonomousSweep.Outcome outcome: summary.getOutcomes()) {
+			assertEquals("spinUp", outcome.visited.get(0));
+			
+			if (outcome.finished) {
+				// the time is determined by the parameters of the trial
+				double expected = Math.max(outcome.parameters.get("spinUp"), 3 / outcome.parameters.get("speed")) + 2;
+				assertEquals(expected, outcome.time, 0.1);
+				assertEquals("shoot", outcome.finalState);
+			} else {
+				assertEquals(15.0, outcome.time, 0.0);
+			}
+		}
+		
+		assertEquals(200, (int)summary.getVisitCounts().get("drive"));
+		assertTrue(summary.getTime(50) <= summary.getTime(99));
+		
+		// trials are repeatable, no matter which thread runs them
+		sweep.setParallelism(1);
+		AutonomousSweep.Summary again = sweep.run();
+		for (int i = 0; i < 200; i++) {
+			assertEquals(summary.getOutcomes().get(i).time, again.getOutcomes().get(i).time, 0.0);
+		}
+	}
+	
+	@Test
+	public void testTimeout() {
+		AutonomousSweep sweep = createSweep();
+		sweep.setTrials(10);
+		sweep.setDuration(2);
+		
+		AutonomousSweep.Summary summary = sweep.run();
+		assertEquals(0, summary.getFinishedCount());
+		for (AutonomousSweep.Outcome outcome: summary.getOutcomes()) {
+			assertEquals(2.0, outcome.time, 0.0);
+		}
+	}
+	
+	@Test
+	public void testErrors() {
+		AutonomousSweep sweep = new AutonomousSweep(trial -> {
+			DriveAndShoot auto = new DriveAndShoot();
+			auto.setStateDuration("drive", 1);
+			return auto;
+		});
+		sweep.setTrials(3);
+		
+		AutonomousSweep.Summary summary = sweep.run();
+		assertEquals(3, summary.getErrorCount());
+	}
+}
@@ -0,0 +1,334 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ComponentSchedulerTest {
+	
+	class Recorder implements MagicComponent {
+		
+		final String name;
+		final List<String> executed;
+		
+		Recorder(String name, List<String> executed) {
+			this.name = name;
+			this.executed = executed;
+		}
+		
+		@Override
+		public void execute() {
+			executed.add(name);
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	@Test
+	public void testRegistrationOrder() {
+		List<String> executed = new ArrayList<>();
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			Recorder a = new Recorder("a", executed);
+			Recorder b = new Recorder("b", executed);
+			Recorder c = new Recorder("c", executed);
+			
+			// dependencies don't change the order when executing sequentially
+			scheduler.add(a, b);
+			scheduler.add(b);
+			scheduler.add(c, a);
+			scheduler.start(1, 0.020);
+			
+			scheduler.execute();
+			scheduler.execute();
+		}
+		
+		assertEquals(Arrays.asList("a", "b", "c", "a", "b", "c"), executed);
+	}
+	
+	@Test
+	public void testParallelDependencies() {
+		List<String> executed = Collections.synchronizedList(new ArrayList<>());
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			Recorder sensors = new Recorder("sensors", executed);
+			Recorder vision = new Recorder("vision", executed);
+			Recorder pose = new Recorder("pose", executed);
+			Recorder logging = new Recorder("logging", executed);
+			Recorder drive = new Recorder("drive", executed);
+			
+			scheduler.add(drive, pose);
+			scheduler.add(pose, sensors, vision);
+			scheduler.add(sensors);
+			scheduler.add(vision);
+			scheduler.add(logging);
+			scheduler.start(3, 0.020);
+			
+			for (int i = 0; i < 100; i++) {
+				executed.clear();
+				scheduler.execute();
+				
+				assertEquals(5, executed.size());
+				assertTrue(executed.indexOf("pose") > executed.indexOf("sensors"));
+				assertTrue(executed.indexOf("pose") > executed.indexOf("vision"));
+				assertTrue(executed.indexOf("drive") > executed.indexOf("pose"));
+			}
+		}
+	}
+	
+	@Test
+	public void testParallelException() {
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.add(() -> {});
+			scheduler.add(() -> { throw new IllegalStateException("boom"); });
+			scheduler.start(2, 0.020);
+			
+			try {
+				scheduler.execute();
+				fail();
+			} catch (IllegalStateException e) {
+				assertEquals("boom", e.getMessage());
+			}
+		}
+	}
+	
+	@Test
+	public void testCircularDependency() {
+		List<String> executed = new ArrayList<>();
+		Recorder a = new Recorder("a", executed);
+		Recorder b = new Recorder("b", executed);
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.add(a, b);
+			scheduler.add(b, a);
+			scheduler.start(1, 0.020);
+			fail();
+		} catch (RuntimeException e) {
+			// ok
+		}
+	}
+	
+	@Test
+	public void testMissingDependency() {
+		List<String> executed = new ArrayList<>();
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.add(new Recorder("a", executed), new Recorder("b", executed));
+			scheduler.start(1, 0.020);
+			fail();
+		} catch (RuntimeException e) {
+			// ok
+		}
+	}
+	
+	@Test
+	public void testMultiRate() {
+		List<String> executed = new ArrayList<>();
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.add(new Recorder("fast", executed));
+			scheduler.add(new Recorder("slow1", executed), 0.1);
+			scheduler.add(new Recorder("slow2", executed), 0.1);
+			scheduler.add(new Recorder("half", executed), 0.035);
+			scheduler.start(1, 0.020);
+			
+			scheduler.enable();
+			for (int i = 0; i < 10; i++) {
+				scheduler.execute();
+			}
+		}
+		
+		assertEquals(10, Collections.frequency(executed, "fast"));
+		assertEquals(2, Collections.frequency(executed, "slow1"));
+		assertEquals(2, Collections.frequency(executed, "slow2"));
+		assertEquals(5, Collections.frequency(executed, "half"));
+		
+		// same rate components are staggered
+		assertEquals(Arrays.asList("fast", "slow1", "half", "fast", "slow2"), executed.subList(0, 5));
+	}
+	
+	class Camera implements MagicComponent {
+		
+		final LatestValue<Integer> frames = new LatestValue<>();
+		final CountDownLatch released = new CountDownLatch(1);
+		final List<String> events = Collections.synchronizedList(new ArrayList<>());
+		int frame = 0;
+		
+		@Override
+		public void onEnabled() {
+			events.add("enabled");
+		}
+		
+		@Override
+		public void execute() {
+			try {
+				// pretend to wait for a frame
+				released.await();
+			} catch (InterruptedException e) {
+				events.add("interrupted");
+				return;
+			}
+			frames.set(++frame);
+		}
+		
+		@Override
+		public void onDisabled() {
+			events.add("disabled");
+		}
+	}
+	
+	@Test
+	public void testAsyncComponent() throws InterruptedException {
+		List<String> executed = new ArrayList<>();
+		Camera camera = new Camera();
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.add(new Recorder("drive", executed));
+			scheduler.addAsync(camera, 0.001);
+			scheduler.start(1, 0.020);
+			
+			scheduler.enable();
+			
+			// a blocked async component doesn't stall the loop
+			scheduler.execute();
+			scheduler.execute();
+			assertEquals(Arrays.asList("drive", "drive"), executed);
+			assertNull(camera.frames.get());
+			
+			camera.released.countDown();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (camera.frames.get() == null && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertNotNull(camera.frames.take());
+			
+			scheduler.disable();
+		}
+		
+		// onDisabled is only called after execute has returned
+		assertEquals("enabled", camera.events.get(0));
+		assertEquals("disabled", camera.events.get(camera.events.size() - 1));
+	}
+	
+	/** Ignores interrupts until it is released */
+	class Stubborn implements MagicComponent {
+		AtomicInteger calls = new AtomicInteger();
+		volatile boolean released = false;
+		
+		@Override
+		public void execute() {
+			calls.incrementAndGet();
+			while (!released) {
+				Thread.yield();
+			}
+		}
+	}
+	
+	@Test
+	public void testAsyncComponentIgnoresInterrupts() throws InterruptedException {
+		Stubborn stubborn = new Stubborn();
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.addAsync(stubborn, 0);
+			scheduler.start(1, 0.020);
+			scheduler.enable();
+			
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (stubborn.calls.get() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, stubborn.calls.get());
+			
+			// disabling gives up on the component instead of hanging
+			long start = System.nanoTime();
+			scheduler.disable();
+			long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue(waited >= AsyncComponent.STOP_TIMEOUT);
+			assertTrue(waited < 5000);
+			
+			// it can be enabled again, and the thread left behind exits
+			// once execute returns
+			scheduler.enable();
+			stubborn.released = true;
+			deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (stubborn.calls.get() < 10 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertTrue(stubborn.calls.get() >= 10);
+			scheduler.disable();
+		}
+	}
+	
+	@Test
+	public void testAsyncTimings() throws InterruptedException {
+		AtomicInteger calls = new AtomicInteger();
+		LoopTimings timings = new LoopTimings(100);
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.addAsync(calls::incrementAndGet, 0.001);
+			scheduler.setTimings(timings);
+			scheduler.start(1, 0.020);
+			scheduler.enable();
+			
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (calls.get() < 5 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			
+			// samples are only recorded by the control loop's thread
+			TimingStats stats = timings.getAll().get(0);
+			assertEquals(0, stats.getTotalCount());
+			
+			scheduler.execute();
+			assertTrue(stats.getTotalCount() >= 4);
+			
+			scheduler.disable();
+		}
+	}
+	
+	@Test
+	public void testSetupOrder() {
+		List<String> executed = new ArrayList<>();
+		Recorder sensors = new Recorder("sensors", executed);
+		Recorder pose = new Recorder("pose", executed);
+		Recorder drive = new Recorder("drive", executed);
+		Recorder camera = new Recorder("camera", executed);
+		
+		try (ComponentScheduler scheduler = new ComponentScheduler()) {
+			scheduler.add(drive, pose);
+			scheduler.add(pose, sensors);
+			scheduler.add(sensors);
+			scheduler.addAsync(camera, 0);
+			
+			assertEquals(Arrays.asList(Arrays.asList(sensors, camera), Arrays.asList(pose), Arrays.asList(drive)),
+						 scheduler.getSetupOrder());
+		}
+	}
+}
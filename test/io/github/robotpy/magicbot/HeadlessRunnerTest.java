@@ -0,0 +1,123 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.github.robotpy.magicbot.sm.AutonomousStateMachine;
+import io.github.robotpy.magicbot.sm.State;
+import io.github.robotpy.magicbot.sm.TimedState;
+
+public class HeadlessRunnerTest {
+	
+	static class Shooter implements MagicComponent {
+		int executed = 0;
+		boolean firing = false;
+		
+		@Override
+		public void execute() {
+			executed += 1;
+		}
+	}
+	
+	static class TwoBall extends AutonomousStateMachine {
+		@MagicInject
+		Shooter shooter;
+		
+		final List<String> visited = new ArrayList<>();
+		
+		@TimedState(first=true, duration=2, nextState="fire")
+		void spinUp(boolean initialCall) {
+			if (initialCall) {
+				visited.add("spinUp");
+			}
+		}
+		
+		@TimedState(duration=3, nextState="finished")
+		void fire(boolean initialCall) {
+			if (initialCall) {
+				visited.add("fire");
+			}
+			shooter.firing = true;
+		}
+		
+		@State
+		void finished() {
+			visited.add("finished");
+			done();
+		}
+	}
+	
+	static class Robot extends MagicRobotCore {
+		Shooter shooter;
+		TwoBall twoBall;
+		
+		int teleopPeriodic = 0;
+		
+		@Override
+		protected void createObjects() {
+			shooter = new Shooter();
+			addComponent(shooter);
+			
+			twoBall = new TwoBall();
+			addAutonomous("Two ball", twoBall, true);
+		}
+		
+		@Override
+		protected void teleopPeriodic() {
+			teleopPeriodic += 1;
+		}
+	}
+	
+	@Test
+	public void testMatch() {
+		Robot robot = new Robot();
+		
+		try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+			runner.disabled(1);
+			assertEquals("disabled", runner.getEnvironment().getTelemetry("/robot/mode"));
+			
+			runner.autonomous(null, 15);
+			assertEquals(15.0, runner.getTime() - 1.0, 0.021);
+			
+			// the timed states ran on virtual time
+			assertEquals(3, robot.twoBall.visited.size());
+			assertEquals("finished", robot.twoBall.visited.get(2));
+			assertTrue(robot.shooter.firing);
+			assertEquals(750, robot.shooter.executed, 1);
+			
+			runner.teleop(135);
+			assertEquals("teleop", runner.getEnvironment().getTelemetry("/robot/mode"));
+			assertEquals(135 * 50, robot.teleopPeriodic, 1);
+		}
+	}
+	
+	@Test
+	public void testUnknownAutonomous() {
+		try (HeadlessRunner runner = new HeadlessRunner(new Robot())) {
+			runner.autonomous("Three ball", 15);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// ok
+		}
+	}
+}
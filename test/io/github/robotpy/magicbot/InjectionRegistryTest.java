@@ -0,0 +1,197 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class InjectionRegistryTest {
+	
+	interface Motor {}
+	
+	static class Talon implements Motor {}
+	
+	static class Gyro {}
+	
+	static class BaseRobot {
+		Gyro gyro = new Gyro();
+		Talon shooter_motor = new Talon();
+	}
+	
+	static class Robot extends BaseRobot {
+		Talon leftMotor = new Talon();
+		Talon rightMotor = new Talon();
+		int answer = 42;
+		Drive drive = new Drive();
+	}
+	
+	static class Drive {
+		// inherited provider, by type
+		@MagicInject
+		Gyro theGyro;
+		
+		// by name
+		@MagicInject
+		Motor leftMotor;
+		
+		// qualified
+		@MagicInject("rightMotor")
+		Motor motor;
+		
+		@MagicInject
+		int answer;
+	}
+	
+	static class DriveBase {
+		@MagicInject
+		Gyro gyro;
+	}
+	
+	static class Subclassed extends DriveBase {}
+	
+	static class Ambiguous {
+		@MagicInject
+		Motor motor;
+	}
+	
+	@Test
+	public void testResolution() {
+		Robot robot = new Robot();
+		InjectionRegistry registry = new InjectionRegistry(robot, Object.class);
+		
+		registry.injectChildren();
+		
+		assertSame(robot.gyro, robot.drive.theGyro);
+		assertSame(robot.leftMotor, robot.drive.leftMotor);
+		assertSame(robot.rightMotor, robot.drive.motor);
+		assertEquals(42, robot.drive.answer);
+		
+		// inherited @MagicInject fields
+		Subclassed sub = new Subclassed();
+		registry.inject(sub, null);
+		assertSame(robot.gyro, sub.gyro);
+	}
+	
+	@Test
+	public void testAmbiguous() {
+		InjectionRegistry registry = new InjectionRegistry(new Robot(), Object.class);
+		
+		try {
+			registry.inject(new Ambiguous(), null);
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("leftMotor"));
+			assertTrue(e.getMessage(), e.getMessage().contains("shooter_motor"));
+		}
+		
+		// the prefix disambiguates
+		Robot robot = new Robot();
+		Ambiguous shooter = new Ambiguous();
+		new InjectionRegistry(robot, Object.class).inject(shooter, "shooter_");
+		assertSame(robot.shooter_motor, shooter.motor);
+	}
+	
+	@Test
+	public void testStopClass() {
+		Robot robot = new Robot();
+		InjectionRegistry registry = new InjectionRegistry(robot, BaseRobot.class);
+		
+		try {
+			registry.inject(new DriveBase(), null);
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("gyro"));
+		}
+	}
+	
+	static class LooseRobot {
+		Object motor = new Talon();
+		Gyro gyro = new Gyro();
+		Talon other = new Talon();
+	}
+	
+	static class WantsTalon {
+		@MagicInject
+		Talon motor;
+	}
+	
+	static class WantsGyro {
+		@MagicInject
+		Talon gyro;
+	}
+	
+	@Test
+	public void testRuntimeTypeByName() {
+		LooseRobot robot = new LooseRobot();
+		InjectionRegistry registry = new InjectionRegistry(robot, Object.class);
+		
+		// the value of a field is used even if its declared type is looser
+		WantsTalon target = new WantsTalon();
+		registry.inject(target, null);
+		assertSame(robot.motor, target.motor);
+		
+		// a field with the right name but the wrong value is an error, not
+		// a reason to look for some other field of the right type
+		try {
+			registry.inject(new WantsGyro(), null);
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("'gyro' is a " + Gyro.class.getName()));
+		}
+	}
+	
+	static class WantsTelemetry {
+		@MagicInject
+		TelemetryBuffer telemetry;
+	}
+	
+	@Test
+	public void testProvide() {
+		TelemetryBuffer telemetry = new TelemetryBuffer(null);
+		InjectionRegistry registry = new InjectionRegistry(new Robot(), Object.class);
+		registry.provide("telemetry", telemetry);
+		
+		WantsTelemetry target = new WantsTelemetry();
+		registry.inject(target, null);
+		assertSame(telemetry, target.telemetry);
+		
+		// provided objects aren't children of the robot
+		assertFalse(registry.getProvided().contains(telemetry));
+	}
+	
+	static class TelemetryRobot {
+		Object telemetry = new Object();
+	}
+	
+	@Test
+	public void testProvideTaken() {
+		TelemetryRobot robot = new TelemetryRobot();
+		InjectionRegistry registry = new InjectionRegistry(robot, Object.class);
+		assertFalse(registry.provide("telemetry", new TelemetryBuffer(null)));
+		assertTrue(registry.provide("telemetryRing", new Object()));
+		
+		WantsObject target = new WantsObject();
+		registry.inject(target, null);
+		assertSame(robot.telemetry, target.telemetry);
+	}
+	
+	static class WantsObject {
+		@MagicInject
+		Object telemetry;
+	}
+}
@@ -48,5 +48,81 @@ public class InjectorTest {
 		assertEquals(42, to.getTheField());
 		
 	}
-
+	
+	class Robot {
+		InjectFrom from = new InjectFrom();
+		String shooter_motor = "shooter motor";
+		String motor = null;
+	}
+	
+	class Shooter {
+		@MagicInject
+		String shooter_motor;
+		
+		@MagicInject
+		InjectFrom from;
+	}
+	
+	class Prefixed {
+		@MagicInject
+		String motor;
+	}
+	
+	class Missing {
+		@MagicInject
+		String notThere;
+	}
+	
+	class Parent {
+		Shooter a = new Shooter();
+		Shooter b = new Shooter();
+		Shooter none = null;
+	}
+	
+	@Test
+	public void testRepeatedInjection() {
+		Robot robot = new Robot();
+		
+		for (int i = 0; i < 2; i++) {
+			Shooter shooter = new Shooter();
+			MagicInjector.inject(robot, shooter, null);
+			assertEquals("shooter motor", shooter.shooter_motor);
+			assertSame(robot.from, shooter.from);
+		}
+	}
+	
+	@Test
+	public void testPrefixedName() {
+		Robot robot = new Robot();
+		Prefixed prefixed = new Prefixed();
+		
+		// a field with the exact name takes precedence
+		MagicInjector.inject(robot, prefixed, "shooter_");
+		assertNull(prefixed.motor);
+		
+		robot.motor = "motor";
+		MagicInjector.inject(robot, prefixed, "shooter_");
+		assertEquals("motor", prefixed.motor);
+	}
+	
+	@Test
+	public void testMissingField() {
+		try {
+			MagicInjector.inject(new Robot(), new Missing(), "missing");
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("notThere"));
+		}
+	}
+	
+	@Test
+	public void testInjectChildren() {
+		Robot robot = new Robot();
+		Parent parent = new Parent();
+		
+		MagicInjector.injectChildren(parent, robot);
+		
+		assertEquals("shooter motor", parent.a.shooter_motor);
+		assertEquals("shooter motor", parent.b.shooter_motor);
+	}
 }
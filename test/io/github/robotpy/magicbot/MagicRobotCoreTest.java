@@ -0,0 +1,360 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import io.github.robotpy.magicbot.sm.State;
+import io.github.robotpy.magicbot.sm.StateMachine;
+
+public class MagicRobotCoreTest {
+	
+	/** Not a TelemetryBuffer, but has the name MagicRobotCore provides one as */
+	static class Telemetry {
+	}
+	
+	static class Dashboard implements MagicComponent {
+		@MagicInject
+		Telemetry telemetry;
+		
+		@Override
+		public void execute() {
+		}
+	}
+	
+	static class TelemetryRobot extends MagicRobotCore {
+		Telemetry telemetry;
+		Dashboard dashboard;
+		
+		@Override
+		protected void createObjects() {
+			telemetry = new Telemetry();
+			dashboard = new Dashboard();
+			addComponent(dashboard);
+		}
+	}
+	
+	@Test
+	public void testFieldNamedTelemetry() {
+		TelemetryRobot robot = new TelemetryRobot();
+		
+		try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+			runner.init();
+			
+			// the robot's field wins over the provided TelemetryBuffer
+			assertSame(robot.telemetry, robot.dashboard.telemetry);
+			
+			// and the robot still publishes telemetry
+			runner.teleop(1);
+			assertEquals("teleop", runner.getEnvironment().getTelemetry("/robot/mode"));
+		}
+	}
+	
+	static class Counter implements MagicComponent {
+		int executed = 0;
+		
+		@Override
+		public void execute() {
+			executed += 1;
+		}
+	}
+	
+	static class CountingAuto implements MagicAutonomous {
+		@MagicInject
+		Counter counter;
+		
+		int periodic = 0;
+		
+		@Override
+		public void autonomousPeriodic() {
+			periodic += 1;
+		}
+	}
+	
+	static class TrainingRobot extends MagicRobotCore {
+		Counter counter;
+		CountingAuto auto;
+		int teleopPeriodic = 0;
+		
+		@Override
+		protected void createObjects() {
+			counter = new Counter();
+			addComponent(counter);
+			
+			addLazyAutonomous("Lazy", () -> auto = new CountingAuto());
+		}
+		
+		@Override
+		protected void teleopPeriodic() {
+			teleopPeriodic += 1;
+		}
+	}
+	
+	@Test
+	public void testTrain() {
+		TrainingRobot robot = new TrainingRobot();
+		
+		try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+			runner.init();
+			double start = runner.getTime();
+			
+			robot.train();
+			
+			// the lazy mode was created, and every mode ran
+			assertNotNull(robot.auto);
+			assertSame(robot.counter, robot.auto.counter);
+			assertEquals(50, robot.auto.periodic);
+			assertEquals(50, robot.teleopPeriodic);
+			assertEquals(100, robot.counter.executed);
+			
+			// on virtual time
+			assertEquals(100 * 0.02, runner.getTime() - start, 0.001);
+		}
+	}
+	
+	static class LazyRobot extends MagicRobotCore {
+		Counter counter;
+		int created = 0;
+		CountingAuto auto;
+		
+		@Override
+		protected void createObjects() {
+			counter = new Counter();
+			addComponent(counter);
+			
+			addLazyAutonomous("Lazy", () -> {
+				created += 1;
+				return auto = new CountingAuto();
+			});
+		}
+	}
+	
+	@Test
+	public void testLazyAutonomous() {
+		LazyRobot robot = new LazyRobot();
+		
+		try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+			// not created until it is selected
+			runner.disabled(1);
+			assertEquals(0, robot.created);
+			
+			// created and injected while still disabled
+			runner.getEnvironment().selectAutonomous("Lazy");
+			runner.disabled(1);
+			assertEquals(1, robot.created);
+			assertSame(robot.counter, robot.auto.counter);
+			assertEquals(0, robot.auto.periodic);
+			
+			// and only created once
+			runner.autonomous("Lazy", 1);
+			assertEquals(1, robot.created);
+			assertEquals(50, robot.auto.periodic, 1);
+		}
+	}
+	
+	@Test
+	public void testLazyAutonomousNotSelected() {
+		LazyRobot robot = new LazyRobot();
+		
+		try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+			// created when autonomous starts
+			runner.autonomous("Lazy", 1);
+			assertEquals(1, robot.created);
+			assertSame(robot.counter, robot.auto.counter);
+			assertEquals(50, robot.auto.periodic, 1);
+		}
+	}
+	
+	static class SetupOrder implements MagicComponent {
+		final List<String> order;
+		final String name;
+		final SetupOrder[] dependsOn;
+		
+		@MagicInject
+		Counter counter;
+		
+		boolean ready = false;
+		
+		SetupOrder(List<String> order, String name, SetupOrder... dependsOn) {
+			this.order = order;
+			this.name = name;
+			this.dependsOn = dependsOn;
+		}
+		
+		@Override
+		public void setup() {
+			assertNotNull(counter);
+			for (SetupOrder dependency: dependsOn) {
+				assertTrue(name + " before " + dependency.name, dependency.ready);
+			}
+			order.add(name);
+			ready = true;
+		}
+		
+		@Override
+		public void execute() {
+		}
+	}
+	
+	static class ParallelRobot extends MagicRobotCore {
+		final List<String> order = Collections.synchronizedList(new ArrayList<>());
+		Counter counter;
+		
+		ParallelRobot() {
+			m_parallelSetup = true;
+		}
+		
+		@Override
+		protected void createObjects() {
+			counter = new Counter();
+			addComponent(counter);
+			
+			SetupOrder drive = new SetupOrder(order, "drive");
+			SetupOrder intake = new SetupOrder(order, "intake");
+			SetupOrder shooter = new SetupOrder(order, "shooter", intake);
+			SetupOrder auto = new SetupOrder(order, "auto", drive, shooter);
+			addComponent(drive);
+			addComponent(auto, drive, shooter);
+			addComponent(shooter, intake);
+			addComponent(intake);
+		}
+	}
+	
+	@Test
+	public void testParallelSetup() {
+		ParallelRobot robot = new ParallelRobot();
+		
+		try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+			runner.init();
+			
+			// every component was injected and set up once, after the
+			// components it depends on
+			assertEquals(4, robot.order.size());
+			assertEquals("auto", robot.order.get(3));
+			assertTrue(robot.order.indexOf("intake") < robot.order.indexOf("shooter"));
+		}
+	}
+	
+	@Test
+	public void testStartupTimings() {
+		TelemetryRobot robot = new TelemetryRobot();
+		
+		try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+			runner.init();
+			
+			List<String> phases = Arrays.asList("createObjects", "inject", "setup", "dashboard", "total");
+			assertEquals(phases, new ArrayList<>(robot.getStartupTimings().keySet()));
+			
+			double sum = 0;
+			for (String phase: phases) {
+				Object ms = runner.getEnvironment().getTelemetry("/robot/startup/" + phase);
+				assertEquals(robot.getStartupTimings().get(phase) * 1000, (Double)ms, 1e-9);
+				if (!phase.equals("total")) {
+					sum += (Double)ms;
+				}
+			}
+			
+			// the phases add up to the total
+			assertEquals(sum, (Double)runner.getEnvironment().getTelemetry("/robot/startup/total"), 1e-6);
+		}
+	}
+	
+	static class Arm extends StateMachine {
+		@State(first=true)
+		void raise() {
+		}
+	}
+	
+	static class NamedRobot extends MagicRobotCore {
+		Arm left;
+		Arm right;
+		Path logPath;
+		
+		NamedRobot(Path logPath) {
+			this.logPath = logPath;
+			m_timingEnabled = true;
+		}
+		
+		@Override
+		protected void createObjects() {
+			left = new Arm();
+			right = new Arm();
+			addComponent(left);
+			addComponent(right);
+			
+			// not held by a field, and has no simple name
+			addComponent(new MagicComponent() {
+				@Override
+				public void execute() {
+				}
+			});
+			addComponent(new Counter());
+			addComponent(new Counter());
+		}
+		
+		@Override
+		protected MatchLog createMatchLog() throws IOException {
+			return MatchLog.open(logPath);
+		}
+		
+		@Override
+		protected void teleopPeriodic() {
+			left.engage();
+			right.engage();
+		}
+	}
+	
+	@Test
+	public void testComponentNames() throws IOException {
+		Path path = Files.createTempFile("matchlog", ".log");
+		try {
+			NamedRobot robot = new NamedRobot(path);
+			
+			try (HeadlessRunner runner = new HeadlessRunner(robot)) {
+				runner.teleop(1);
+				
+				// components are named after their fields, or else their class
+				String anonymous = NamedRobot.class.getName() + "$1";
+				for (String name: Arrays.asList("left", "right", anonymous, "Counter", "Counter_2")) {
+					assertNotNull(name, robot.getLoopTimings().get(name));
+				}
+			}
+			
+			Set<String> machines = new TreeSet<>();
+			for (MatchLogReader.Record r: new MatchLogReader(path).readAll()) {
+				if (r.getTypeName().equals("STATE_ENTER")) {
+					machines.add(r.name);
+				}
+			}
+			assertEquals(new TreeSet<>(Arrays.asList("left", "right")), machines);
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+}
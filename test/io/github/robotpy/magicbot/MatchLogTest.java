@@ -0,0 +1,165 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.github.robotpy.magicbot.sm.State;
+import io.github.robotpy.magicbot.sm.StateMachine;
+import io.github.robotpy.magicbot.sm.TimedState;
+
+public class MatchLogTest {
+	
+	Path m_path;
+	
+	@Before
+	public void setUp() throws IOException {
+		m_path = Files.createTempFile("matchlog", ".log");
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(m_path);
+	}
+	
+	class LoggedSm extends StateMachine {
+		
+		LoggedSm(TimeSource clock) {
+			m_clock = clock;
+		}
+		
+		@TimedState(first=true, duration=1, nextState="second")
+		void first() {}
+		
+		@State
+		void second() {}
+	}
+	
+	@Test
+	public void testRoundTrip() throws IOException {
+		VirtualLoopTimer clock = new VirtualLoopTimer();
+		
+		// small segments, so records are written across several of them
+		try (MatchLog log = new MatchLog(m_path, 128, clock)) {
+			log.writeMode(log.getNameId("auto"));
+			
+			LoggedSm sm = new LoggedSm(clock);
+			sm.addTransitionListener(log);
+			
+			int shooter = log.getNameId("a component with a rather long name");
+			
+			for (int i = 0; i < 4; i++) {
+				sm.engage();
+				sm.execute();
+				log.writeTiming(shooter, 1000 + i);
+				clock.advance(400000000L);
+			}
+			
+			sm.done();
+			log.writeOverrun(5000000, 2);
+		}
+		
+		MatchLogReader reader = new MatchLogReader(m_path);
+		List<MatchLogReader.Record> records = reader.readAll();
+		
+		StringBuilder sb = new StringBuilder();
+		for (MatchLogReader.Record r: records) {
+			sb.append(r.getTypeName()).append(' ').append(r.name).append(' ').append(r.state).append('\n');
+		}
+		
+		String shooter = "a component with a rather long name";
+		assertEquals("MODE auto null\n" +
+					 "STATE_ENTER LoggedSm first\n" +
+					 "TIMING " + shooter + " null\n" +
+					 "TIMING " + shooter + " null\n" +
+					 "TIMING " + shooter + " null\n" +
+					 "STATE_EXIT LoggedSm first\n" +
+					 "STATE_ENTER LoggedSm second\n" +
+					 "TIMING " + shooter + " null\n" +
+					 "STATE_EXIT LoggedSm second\n" +
+					 "DONE LoggedSm null\n" +
+					 "OVERRUN null null\n", sb.toString());
+		
+		// timestamps are relative to when the log was opened
+		assertEquals(0.0, records.get(0).time, 0.0);
+		assertEquals(1.2, records.get(6).time, 1e-9);
+		
+		MatchLogReader.Record overrun = records.get(records.size() - 1);
+		assertEquals(2, overrun.arg);
+		assertEquals(5000000, overrun.value);
+	}
+	
+	@Test
+	public void testUnclosedLog() throws IOException {
+		// a log that wasn't closed still has the zeros at the end of the
+		// last segment, which the reader skips
+		MatchLog log = new MatchLog(m_path, 64, new VirtualLoopTimer());
+		log.writeMode(log.getNameId("teleop"));
+		
+		List<MatchLogReader.Record> records = new MatchLogReader(m_path).readAll();
+		assertEquals(1, records.size());
+		assertEquals("teleop", records.get(0).name);
+		
+		log.close();
+	}
+	
+	@Test
+	public void testConvertToCsv() throws IOException {
+		try (MatchLog log = new MatchLog(m_path, 128, new VirtualLoopTimer())) {
+			log.writeMode(log.getNameId("disabled"));
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MatchLogConverter.toCsv(new MatchLogReader(m_path), new PrintStream(out, true));
+		
+		assertEquals(String.format("time,type,name,state,arg,value%n0.000000,MODE,disabled,,0,0%n"), out.toString());
+	}
+	
+	@Test
+	public void testConvertIgnoresLocale() throws IOException {
+		try (MatchLog log = new MatchLog(m_path, 128, new VirtualLoopTimer())) {
+			log.writeMode(log.getNameId("disabled"));
+		}
+		
+		// a decimal comma would add a CSV column and break the JSON
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try {
+			ByteArrayOutputStream csv = new ByteArrayOutputStream();
+			MatchLogConverter.toCsv(new MatchLogReader(m_path), new PrintStream(csv, true));
+			assertTrue(csv.toString(), csv.toString().contains("0.000000,MODE,disabled,,0,0"));
+			
+			ByteArrayOutputStream json = new ByteArrayOutputStream();
+			MatchLogConverter.toJson(new MatchLogReader(m_path), new PrintStream(json, true));
+			assertTrue(json.toString(), json.toString().contains("\"time\": 0.000000,"));
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+}
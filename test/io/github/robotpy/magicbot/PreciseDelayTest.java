@@ -0,0 +1,128 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.github.robotpy.magicbot.PreciseDelay.OverrunPolicy;
+
+public class PreciseDelayTest {
+	
+	static final long MS = 1000000L;
+	
+	/**
+	 * Runs a loop with a 20ms period where the third iteration takes 50ms,
+	 * and returns the virtual time at which each iteration started
+	 */
+	private static List<Long> runLoop(OverrunPolicy policy, List<Double> lateness) {
+		VirtualLoopTimer timer = new VirtualLoopTimer();
+		List<Long> starts = new ArrayList<>();
+		
+		try (PreciseDelay delay = new PreciseDelay(0.020, timer, policy, (late, missed) -> lateness.add(late))) {
+			for (int i = 0; i < 7; i++) {
+				starts.add(timer.nanoTime() / MS);
+				timer.advance(i == 2 ? 50 * MS : 1 * MS);
+				delay.delay();
+			}
+			
+			assertEquals(lateness.size(), delay.getOverrunCount());
+			assertEquals(lateness.get(lateness.size() - 1), delay.getLastLateness(), 1e-9);
+		}
+		
+		return starts;
+	}
+	
+	@Test
+	public void testNoOverrun() {
+		VirtualLoopTimer timer = new VirtualLoopTimer(5 * MS);
+		
+		try (PreciseDelay delay = new PreciseDelay(0.020, timer, OverrunPolicy.CATCH_UP, null)) {
+			for (int i = 1; i <= 5; i++) {
+				timer.advance(3 * MS);
+				delay.delay();
+				assertEquals(5 * MS + i * 20 * MS, timer.nanoTime());
+			}
+			
+			assertEquals(0, delay.getOverrunCount());
+		}
+	}
+	
+	@Test
+	public void testCatchUp() {
+		List<Double> lateness = new ArrayList<>();
+		
+		// the 60ms and 80ms slots run back to back, and the second one is
+		// still late
+		assertEquals(Arrays.asList(0L, 20L, 40L, 90L, 91L, 100L, 120L),
+					 runLoop(OverrunPolicy.CATCH_UP, lateness));
+		assertEquals(2, lateness.size());
+		assertEquals(0.030, lateness.get(0), 1e-9);
+		assertEquals(0.011, lateness.get(1), 1e-9);
+	}
+	
+	@Test
+	public void testSkipMissed() {
+		List<Double> lateness = new ArrayList<>();
+		
+		// the 60ms and 80ms slots are skipped, the phase is kept
+		assertEquals(Arrays.asList(0L, 20L, 40L, 100L, 120L, 140L, 160L),
+					 runLoop(OverrunPolicy.SKIP_MISSED, lateness));
+		assertEquals(1, lateness.size());
+		assertEquals(0.030, lateness.get(0), 1e-9);
+	}
+	
+	@Test
+	public void testRephase() {
+		List<Double> lateness = new ArrayList<>();
+		
+		// runs immediately, then every 20ms from then
+		assertEquals(Arrays.asList(0L, 20L, 40L, 90L, 110L, 130L, 150L),
+					 runLoop(OverrunPolicy.REPHASE, lateness));
+		assertEquals(1, lateness.size());
+		assertEquals(0.030, lateness.get(0), 1e-9);
+	}
+	
+	@Test
+	public void testClosed() {
+		PreciseDelay delay = new PreciseDelay(0.020, new VirtualLoopTimer(), OverrunPolicy.CATCH_UP, null);
+		delay.close();
+		
+		try {
+			delay.delay();
+			fail();
+		} catch (RuntimeException e) {
+			// ok
+		}
+	}
+	
+	@Test
+	public void testJavaLoopTimer() {
+		try (JavaLoopTimer timer = new JavaLoopTimer()) {
+			for (int i = 0; i < 5; i++) {
+				long deadline = timer.nanoTime() + 2 * MS;
+				timer.waitUntil(deadline);
+				assertTrue(timer.nanoTime() >= deadline);
+			}
+		}
+	}
+}
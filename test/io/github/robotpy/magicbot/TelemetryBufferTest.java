@@ -0,0 +1,132 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TelemetryBufferTest {
+	
+	class RecordingSink implements TelemetryBuffer.Sink {
+		
+		final List<String> sent = new ArrayList<>();
+
+		@Override
+		public void putNumber(String key, double value) {
+			sent.add(key + "=" + value);
+		}
+
+		@Override
+		public void putBoolean(String key, boolean value) {
+			sent.add(key + "=" + value);
+		}
+
+		@Override
+		public void putString(String key, String value) {
+			sent.add(key + "=" + value);
+		}
+	}
+	
+	@Test
+	public void testChangeDetection() {
+		RecordingSink sink = new RecordingSink();
+		TelemetryBuffer telemetry = new TelemetryBuffer(sink);
+		
+		int speed = telemetry.getEntry("/shooter/speed");
+		int ready = telemetry.getEntry("/shooter/ready");
+		int mode = telemetry.getEntry("/robot/mode");
+		int unused = telemetry.getEntry("/robot/unused");
+		
+		assertEquals(speed, telemetry.getEntry("/shooter/speed"));
+		assertNotEquals(speed, unused);
+		
+		telemetry.putNumber(speed, 1.5);
+		telemetry.putBoolean(ready, false);
+		telemetry.putString(mode, "auto");
+		telemetry.flush();
+		
+		assertEquals(Arrays.asList("/shooter/speed=1.5", "/shooter/ready=false", "/robot/mode=auto"), sink.sent);
+		sink.sent.clear();
+		
+		// nothing changed, even though values were put again
+		telemetry.putNumber(speed, 1.5);
+		telemetry.putString(mode, new String("auto"));
+		telemetry.flush();
+		assertEquals(0, sink.sent.size());
+		
+		// only the latest value is sent
+		telemetry.putNumber(speed, 2);
+		telemetry.putNumber(speed, 3);
+		telemetry.putBoolean(ready, true);
+		telemetry.flush();
+		assertEquals(Arrays.asList("/shooter/speed=3.0", "/shooter/ready=true"), sink.sent);
+		
+		assertEquals(5, telemetry.getSentCount());
+	}
+	
+	@Test
+	public void testManyEntries() {
+		RecordingSink sink = new RecordingSink();
+		TelemetryBuffer telemetry = new TelemetryBuffer(sink);
+		
+		for (int i = 0; i < 100; i++) {
+			telemetry.putNumber(telemetry.getEntry("/n/" + i), i);
+		}
+		telemetry.flush();
+		
+		assertEquals(100, sink.sent.size());
+		assertEquals("/n/99=99.0", sink.sent.get(99));
+	}
+	
+	@Test
+	public void testNullString() {
+		RecordingSink sink = new RecordingSink();
+		TelemetryBuffer telemetry = new TelemetryBuffer(sink);
+		
+		int mode = telemetry.getEntry("/mode");
+		telemetry.putString(mode, null);
+		telemetry.flush();
+		assertEquals(Arrays.asList("/mode="), sink.sent);
+	}
+	
+	@Test
+	public void testConcurrentEntries() throws InterruptedException {
+		TelemetryBuffer telemetry = new TelemetryBuffer(new RecordingSink());
+		
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					telemetry.getEntry("/" + id + "/" + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		
+		// every entry got its own handle
+		assertEquals(4000, telemetry.getEntry("/new"));
+	}
+}
@@ -0,0 +1,142 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TelemetryRingTest {
+	
+	class ListSink implements TelemetryRing.RecordSink {
+		final List<String> records = new ArrayList<>();
+		
+		@Override
+		public void write(long timestamp, String source, String key, double value) {
+			records.add(timestamp + " " + source + " " + key + " " + value);
+		}
+		
+		@Override
+		public void write(long timestamp, String source, String key, long value) {
+			records.add(timestamp + " " + source + " " + key + " " + value + "L");
+		}
+	}
+	
+	@Test
+	public void testRecordAndDrain() {
+		VirtualLoopTimer clock = new VirtualLoopTimer();
+		TelemetryRing ring = new TelemetryRing(3, clock);
+		
+		TelemetryRing.Channel speed = ring.channel("shooter", "speed");
+		TelemetryRing.Channel count = ring.channel("intake", "count");
+		
+		// capacity is rounded up to 4
+		assertTrue(speed.record(1.5));
+		clock.advance(1000);
+		assertTrue(count.record(7L));
+		assertTrue(speed.record(2.5));
+		assertTrue(speed.record(3.5));
+		assertFalse(speed.record(4.5));
+		assertEquals(1, ring.getDroppedCount());
+		
+		ListSink sink = new ListSink();
+		assertEquals(4, ring.drain(sink));
+		assertEquals("0 shooter speed 1.5", sink.records.get(0));
+		assertEquals("1000 intake count 7L", sink.records.get(1));
+		assertEquals("1000 shooter speed 3.5", sink.records.get(3));
+		
+		// space is available again
+		assertTrue(speed.record(5.5));
+		assertEquals(1, ring.drain(sink));
+		assertEquals(0, ring.drain(sink));
+	}
+	
+	@Test
+	public void testBackgroundFlusher() throws InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TelemetryRing ring = new TelemetryRing(1024, () -> 1000012345L);
+		TelemetryRing.Channel speed = ring.channel("shooter", "speed");
+		
+		ring.start(TelemetryRing.printTo(new PrintStream(out)), 0.001);
+		
+		long total = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (speed.record((long)i)) {
+				total += 1;
+			}
+		}
+		
+		// drains everything before stopping
+		ring.close();
+		
+		String[] lines = out.toString().split("\n");
+		assertEquals(total, lines.length);
+		assertEquals(10000, total + ring.getDroppedCount());
+		assertEquals("1.000012 shooter speed 0", lines[0]);
+	}
+	
+	@Test
+	public void testSeveralProducers() throws InterruptedException {
+		TelemetryRing ring = new TelemetryRing(256);
+		
+		// each source's values must arrive in the order they were recorded
+		long[] last = {-1, -1, -1, -1};
+		long[] received = new long[1];
+		List<String> errors = new ArrayList<>();
+		
+		ring.start(new TelemetryRing.RecordSink() {
+			@Override
+			public void write(long timestamp, String source, String key, double value) {
+				errors.add(source);
+			}
+			
+			@Override
+			public void write(long timestamp, String source, String key, long value) {
+				int id = Integer.parseInt(source);
+				if (value <= last[id]) {
+					errors.add(source + " " + value);
+				}
+				last[id] = value;
+				received[0] += 1;
+			}
+		}, 0.0001);
+		
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			TelemetryRing.Channel channel = ring.channel(Integer.toString(t), "value");
+			threads[t] = new Thread(() -> {
+				for (long i = 0; i < 10000; i++) {
+					channel.record(i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread: threads) {
+			thread.join();
+		}
+		
+		ring.close();
+		
+		assertEquals(errors.toString(), 0, errors.size());
+		assertEquals(40000, received[0] + ring.getDroppedCount());
+	}
+}
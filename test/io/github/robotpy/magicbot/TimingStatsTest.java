@@ -0,0 +1,82 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TimingStatsTest {
+	
+	@Test
+	public void testEmpty() {
+		TimingStats stats = new TimingStats("empty", 10);
+		
+		assertEquals(0, stats.getCount());
+		assertEquals(0, stats.getMin());
+		assertEquals(0, stats.getMax());
+		assertEquals(0, stats.getP99());
+		assertEquals(0.0, stats.getMean(), 0.0);
+	}
+	
+	@Test
+	public void testStats() {
+		TimingStats stats = new TimingStats("stats", 100);
+		
+		for (int i = 100; i > 0; i--) {
+			stats.record(i);
+		}
+		
+		assertEquals(100, stats.getCount());
+		assertEquals(1, stats.getLast());
+		assertEquals(1, stats.getMin());
+		assertEquals(100, stats.getMax());
+		assertEquals(50.5, stats.getMean(), 0.0001);
+		assertEquals(99, stats.getP99());
+		assertEquals(50, stats.getPercentile(0.5));
+	}
+	
+	@Test
+	public void testRollingWindow() {
+		TimingStats stats = new TimingStats("window", 4);
+		
+		stats.record(1000);
+		for (int i = 0; i < 4; i++) {
+			stats.record(10);
+		}
+		
+		// the big sample fell out of the window
+		assertEquals(4, stats.getCount());
+		assertEquals(5, stats.getTotalCount());
+		assertEquals(10, stats.getMax());
+		
+		stats.reset();
+		assertEquals(0, stats.getCount());
+	}
+	
+	@Test
+	public void testDuplicateNames() {
+		LoopTimings timings = new LoopTimings(10);
+		TimingStats a = timings.add("Component");
+		TimingStats b = timings.add("Component");
+		
+		assertEquals("Component", a.getName());
+		assertEquals("Component#2", b.getName());
+		assertSame(b, timings.get("Component#2"));
+		assertEquals(2, timings.getAll().size());
+	}
+}
@@ -0,0 +1,286 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.processor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.github.robotpy.magicbot.sm.StateMachine;
+
+public class StateTableProcessorTest {
+	
+	/**
+	 * @return source of demo.Machine with the given states. record()
+	 *         notes whether it was called through the generated table.
+	 */
+	static String machine(String states) {
+		return
+			"package demo;\n" +
+			"import io.github.robotpy.magicbot.sm.*;\n" +
+			"public class Machine extends StateMachine {\n" +
+			"	public final java.util.List<String> calls = new java.util.ArrayList<>();\n" +
+			states +
+			"	void record(String name) {\n" +
+			"		boolean table = false;\n" +
+			"		for (StackTraceElement e: new Throwable().getStackTrace()) {\n" +
+			"			table |= e.getClassName().startsWith(\"demo.Machine_StateTable\");\n" +
+			"		}\n" +
+			"		calls.add(name + (table ? \" table\" : \" reflection\"));\n" +
+			"	}\n" +
+			"}\n";
+	}
+	
+	static final String MACHINE = machine(
+		"	@State(first=true)\n" +
+		"	void first() { record(\"first\"); nextState(Machine_StateTable.SECOND); }\n" +
+		"	@State\n" +
+		"	void second(boolean initialCall) { record(\"second\"); }\n" +
+		"	@TimedState(duration=1, nextState=\"first\")\n" +
+		"	void third(double tm) { record(\"third\"); }\n");
+	
+	static final String COMPOSITE = machine(
+		"	public static class Child extends StateMachine {\n" +
+		"		@State(first=true)\n" +
+		"		void run() { done(); }\n" +
+		"	}\n" +
+		"	public final Child a = new Child();\n" +
+		"	public final Child b = new Child();\n" +
+		"	@CompositeState(first=true, nextState=\"hidden\")\n" +
+		"	Child visible() { record(\"visible\"); return a; }\n" +
+		"	@CompositeState(nextState=\"last\")\n" +
+		"	private Child hidden() { record(\"hidden\"); return b; }\n" +
+		"	@State\n" +
+		"	void last() { record(\"last\"); }\n");
+	
+	static final String PARALLEL = machine(
+		"	@ParallelState(first=true, regions={\"left\", \"right\"}, nextState=\"after\")\n" +
+		"	void both() { record(\"both\"); }\n" +
+		"	@State\n" +
+		"	void left() { record(\"left\"); done(); }\n" +
+		"	@State\n" +
+		"	private void right() { record(\"right\"); done(); }\n" +
+		"	@State\n" +
+		"	void after() { record(\"after\"); }\n");
+	
+	static final String EVENTS = machine(
+		"	public static class Go {}\n" +
+		"	public static class Stop {}\n" +
+		"	@State(first=true)\n" +
+		"	@OnEvent(type=Go.class, nextState=\"moved\")\n" +
+		"	@OnEvent(type=Stop.class, nextState=\"stopped\")\n" +
+		"	void waiting() { record(\"waiting\"); post(new Go()); }\n" +
+		"	@State\n" +
+		"	void moved() { record(\"moved\"); }\n" +
+		"	@State\n" +
+		"	void stopped() { record(\"stopped\"); }\n");
+	
+	Path m_dir;
+	DiagnosticCollector<JavaFileObject> m_diagnostics;
+	
+	@Before
+	public void setUp() throws IOException {
+		m_dir = Files.createTempDirectory("processor");
+		m_diagnostics = new DiagnosticCollector<>();
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(m_dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+	
+	static class Source extends SimpleJavaFileObject {
+		final String m_code;
+		
+		Source(String className, String code) {
+			super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+			m_code = code;
+		}
+		
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return m_code;
+		}
+	}
+	
+	/**
+	 * Compiles a source file into m_dir
+	 *
+	 * @param process  Run the state table processor
+	 * @return true if it compiled
+	 */
+	boolean compile(String className, String code, boolean process) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		List<String> options = new ArrayList<>(Arrays.asList(
+			"-d", m_dir.toString(),
+			"-classpath", System.getProperty("java.class.path")));
+		if (!process) {
+			options.add("-proc:none");
+		}
+		
+		JavaCompiler.CompilationTask task = compiler.getTask(new StringWriter(), null, m_diagnostics, options, null,
+															 Arrays.asList(new Source(className, code)));
+		if (process) {
+			task.setProcessors(Arrays.asList(new StateTableProcessor()));
+		}
+		return task.call();
+	}
+	
+	List<String> errors() {
+		List<String> errors = new ArrayList<>();
+		for (Diagnostic<? extends JavaFileObject> d: m_diagnostics.getDiagnostics()) {
+			if (d.getKind() == Diagnostic.Kind.ERROR) {
+				errors.add(d.getMessage(null));
+			}
+		}
+		return errors;
+	}
+	
+	/**
+	 * @return source of the generated state table
+	 */
+	String generated() throws IOException {
+		return new String(Files.readAllBytes(m_dir.resolve("demo/Machine_StateTable.java")), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Engages and executes the state machine, once per step
+	 */
+	@SuppressWarnings("unchecked")
+	List<String> run(int steps) throws Exception {
+		try (URLClassLoader loader = new URLClassLoader(new URL[] {m_dir.toUri().toURL()}, getClass().getClassLoader())) {
+			StateMachine sm = (StateMachine)loader.loadClass("demo.Machine").getDeclaredConstructor().newInstance();
+			for (int i = 0; i < steps; i++) {
+				sm.engage();
+				sm.execute();
+			}
+			return (List<String>)sm.getClass().getField("calls").get(sm);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	List<String> run() throws Exception {
+		try (URLClassLoader loader = new URLClassLoader(new URL[] {m_dir.toUri().toURL()}, getClass().getClassLoader())) {
+			StateMachine sm = (StateMachine)loader.loadClass("demo.Machine").getDeclaredConstructor().newInstance();
+			sm.engage();
+			sm.execute();
+			sm.engage();
+			sm.execute();
+			sm.engage("third", true);
+			sm.execute();
+			return (List<String>)sm.getClass().getField("calls").get(sm);
+		}
+	}
+	
+	@Test
+	public void testGeneratedTable() throws Exception {
+		assertTrue(errors().toString(), compile("demo.Machine", MACHINE, true));
+		assertTrue(Files.exists(m_dir.resolve("demo/Machine_StateTable.class")));
+		
+		// the state machine calls its states through the generated table
+		assertEquals(Arrays.asList("first table", "second table", "third table"), run());
+	}
+	
+	@Test
+	public void testReflectionFallback() throws Exception {
+		// without the processor, the constant doesn't exist
+		String code = MACHINE.replace("Machine_StateTable.SECOND", "\"second\"");
+		assertTrue(errors().toString(), compile("demo.Machine", code, false));
+		assertFalse(Files.exists(m_dir.resolve("demo/Machine_StateTable.class")));
+		
+		assertEquals(Arrays.asList("first reflection", "second reflection", "third reflection"), run());
+	}
+	
+	@Test
+	public void testCompositeChild() throws Exception {
+		assertTrue(errors().toString(), compile("demo.Machine", COMPOSITE, true));
+		
+		// only the method that the table can call gets a case in child()
+		String table = generated();
+		assertTrue(table, table.contains("child(io.github.robotpy.magicbot.sm.StateMachine machine, int index)"));
+		assertTrue(table, table.contains("case 0: return m.visible();"));
+		assertFalse(table, table.contains("m.hidden()"));
+		
+		// the private method falls back to reflection
+		assertEquals(Arrays.asList("visible table", "hidden reflection", "last table"), run(3));
+	}
+	
+	@Test
+	public void testParallelRegions() throws Exception {
+		assertTrue(errors().toString(), compile("demo.Machine", PARALLEL, true));
+		
+		String table = generated();
+		assertTrue(table, table.contains("new String[] {\"left\", \"right\"}"));
+		
+		// the regions run in the same step as the parallel state, and the
+		// private region falls back to reflection
+		assertEquals(Arrays.asList("both table", "left table", "right reflection", "after table"), run(2));
+	}
+	
+	@Test
+	public void testEvents() throws Exception {
+		assertTrue(errors().toString(), compile("demo.Machine", EVENTS, true));
+		
+		String table = generated();
+		assertTrue(table, table.contains("new Class<?>[] {demo.Machine.Go.class, demo.Machine.Stop.class}, " +
+										 "new String[] {\"moved\", \"stopped\"}"));
+		
+		// the event posted by the first state is handled on the next step
+		assertEquals(Arrays.asList("waiting table", "moved table"), run(2));
+	}
+	
+	@Test
+	public void testInvalidNextState() {
+		String code = MACHINE.replace("nextState=\"first\"", "nextState=\"fourth\"");
+		assertFalse(compile("demo.Machine", code, true));
+		assertEquals(Arrays.asList("Invalid state 'fourth' specified as nextState"), errors());
+	}
+	
+	@Test
+	public void testMultipleFirstStates() {
+		String code = MACHINE.replace("Machine_StateTable.SECOND", "\"second\"")
+							 .replace("@State\n", "@State(first=true)\n");
+		assertFalse(compile("demo.Machine", code, true));
+		assertEquals(1, errors().size());
+		assertTrue(errors().get(0), errors().get(0).startsWith("Multiple states were specified as the first state!"));
+	}
+}
@@ -0,0 +1,97 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+public class ConsoleTransitionListenerTest {
+	
+	class Sm extends StateMachine {
+		@State(first=true)
+		private void first() {
+			nextState("second");
+		}
+		
+		@State
+		private void second() {
+			nextState("first");
+		}
+	}
+	
+	@Test
+	public void testPrint() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ConsoleTransitionListener listener = new ConsoleTransitionListener(new PrintStream(out, true), 2);
+		
+		Sm sm = new Sm();
+		StateHandle first = sm.getStateHandle("first");
+		
+		listener.onTransition(sm, null, first, TransitionCause.ENGAGE, 0, 0);
+		listener.onTransition(sm, first, null, TransitionCause.DONE, 0, 1500000000L);
+		listener.onTransition(sm, null, first, TransitionCause.ENGAGE, 0, 0);
+		assertEquals(1, listener.getDroppedCount());
+		assertEquals("", out.toString());
+		
+		assertEquals(2, listener.drain());
+		assertEquals("0.000s: Entering state: first\n1.500s: Stopped state machine execution\n",
+					 out.toString());
+		
+		assertEquals(0, listener.drain());
+	}
+	
+	@Test
+	public void testTransitionsDontAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		
+		com.sun.management.ThreadMXBean tbean = (com.sun.management.ThreadMXBean)bean;
+		assumeTrue(tbean.isThreadAllocatedMemorySupported() && tbean.isThreadAllocatedMemoryEnabled());
+		
+		ConsoleTransitionListener listener = new ConsoleTransitionListener(new PrintStream(new ByteArrayOutputStream()), 1024);
+		
+		Sm sm = new Sm();
+		sm.addTransitionListener(listener);
+		
+		final int iterations = 100000;
+		for (int i = 0; i < iterations; i++) {
+			sm.engage();
+			sm.execute();
+			listener.drain();
+		}
+		
+		// every execute() is a transition, and the queue fills up
+		long tid = Thread.currentThread().getId();
+		long before = tbean.getThreadAllocatedBytes(tid);
+		
+		for (int i = 0; i < iterations; i++) {
+			sm.engage();
+			sm.execute();
+		}
+		
+		long allocated = tbean.getThreadAllocatedBytes(tid) - before;
+		
+		assertTrue(listener.getDroppedCount() > 0);
+		assertEquals("bytes allocated per transition", 0, allocated / iterations);
+	}
+}
@@ -0,0 +1,188 @@
+/**
+   Copyright 2017 Dustin Spicuzza
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package io.github.robotpy.magicbot.sm;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import io.github.robotpy.magicbot.sm.StateMachine.StateMethod;
+
+public class StateDispatchTest {
+
+	class Target {
+		int calls = 0;
+		double lastTm = -1;
+		Boolean lastInitial = null;
+
+		private void nada() {
+			calls += 1;
+		}
+
+		private void tm(double tm) {
+			calls += 1;
+			lastTm = tm;
+		}
+
+		private void init(boolean initial) {
+			calls += 1;
+			lastInitial = initial;
+		}
+
+		private void all(double tm, boolean initial) {
+			calls += 1;
+			lastTm = tm;
+			lastInitial = initial;
+		}
+
+		private void boxed(Double tm, Boolean initial) {
+			calls += 1;
+			lastTm = tm;
+			lastInitial = initial;
+		}
+
+		private void bad(int x) {}
+	}
+
+	private static Method method(String name) {
+		for (Method m: Target.class.getDeclaredMethods()) {
+			if (m.getName().equals(name)) {
+				return m;
+			}
+		}
+		throw new AssertionError(name);
+	}
+
+	private static void checkCalls(StateMethod sm, Target t, String name) {
+		t.calls = 0;
+		t.lastTm = -1;
+		t.lastInitial = null;
+
+		sm.execute(1.5, true);
+		assertEquals(1, t.calls);
+
+		if (name.equals("tm") || name.equals("all") || name.equals("boxed")) {
+			assertEquals(1.5, t.lastTm, 0.0);
+		}
+		if (name.equals("init") || name.equals("all") || name.equals("boxed")) {
+			assertEquals(Boolean.TRUE, t.lastInitial);
+		}
+	}
+
+	@Test
+	public void testDispatch() {
+		Target t = new Target();
+
+		for (String name: new String[] {"nada", "tm", "init", "all", "boxed"}) {
+			checkCalls(StateDispatch.create(t, method(name)), t, name);
+
+			Method m = method(name);
+			m.setAccessible(true);
+			checkCalls(StateDispatch.createReflective(t, m, m.getParameterTypes()), t, name);
+		}
+	}
+
+	@Test
+	public void testDirectLinking() {
+		// private methods can only be linked directly on Java 9+
+		assumeTrue(!System.getProperty("java.specification.version").startsWith("1."));
+
+		Target t = new Target();
+		assertTrue(StateDispatch.create(t, method("nada")) instanceof StateDispatch.NoArgsState);
+		assertTrue(StateDispatch.create(t, method("tm")) instanceof StateDispatch.TimeOnlyState);
+		assertTrue(StateDispatch.create(t, method("init")) instanceof StateDispatch.InitialOnlyState);
+		assertFalse(StateDispatch.create(t, method("all")) instanceof StateDispatch.HandleState);
+	}
+
+	@Test
+	public void testInvalidParameters() {
+		try {
+			StateDispatch.create(new Target(), method("bad"));
+			fail();
+		} catch (RuntimeException e) {
+			// ok
+		}
+	}
+
+	class ZeroAllocSm extends StateMachine {
+
+		int calls = 0;
+
+		@State(first=true)
+		private void all(double tm, boolean initial) {
+			calls += 1;
+		}
+
+		@TimedState(duration=1000)
+		private void tm(double tm) {
+			calls += 1;
+		}
+
+		@State
+		private void nada() {
+			calls += 1;
+		}
+
+		@State
+		private void init(boolean initial) {
+			calls += 1;
+		}
+	}
+
+	private static long allocatedBytes(Runnable r) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+
+		com.sun.management.ThreadMXBean tbean = (com.sun.management.ThreadMXBean)bean;
+		assumeTrue(tbean.isThreadAllocatedMemorySupported() && tbean.isThreadAllocatedMemoryEnabled());
+
+		long tid = Thread.currentThread().getId();
+		long before = tbean.getThreadAllocatedBytes(tid);
+		r.run();
+		return tbean.getThreadAllocatedBytes(tid) - before;
+	}
+
+	@Test
+	public void testZeroAllocationPerStateCall() {
+		final int iterations = 100000;
+
+		for (final String name: new String[] {"all", "tm", "nada", "init"}) {
+			final ZeroAllocSm sm = new ZeroAllocSm();
+
+			// warm up
+			for (int i = 0; i < iterations; i++) {
+				sm.engage(name);
+				sm.execute();
+			}
+
+			long allocated = allocatedBytes(() -> {
+				for (int i = 0; i < iterations; i++) {
+					sm.engage(name);
+					sm.execute();
+				}
+			});
+
+			assertEquals(name, sm.getCurrentState());
+			assertEquals(2 * iterations, sm.calls);
+			assertEquals("bytes allocated per state call in '" + name + "'", 0, allocated / iterations);
+		}
+	}
+}
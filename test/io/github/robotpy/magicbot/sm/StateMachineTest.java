@@ -18,15 +18,13 @@ package io.github.robotpy.magicbot.sm;
 
 import static org.junit.Assert.*;
 
-import java.time.Clock;
-import java.time.Instant;
-import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
+import io.github.robotpy.magicbot.TimeSource;
 import io.github.robotpy.magicbot.exceptions.InvalidDurationException;
 import io.github.robotpy.magicbot.exceptions.MultipleDefaultStatesError;
 import io.github.robotpy.magicbot.exceptions.MultipleFirstStatesError;
@@ -34,30 +32,14 @@ import io.github.robotpy.magicbot.exceptions.NoFirstStateException;
 
 public class StateMachineTest {
 	
-	class FakeClock extends Clock {
+	class FakeClock implements TimeSource {
 		
+		// milliseconds
 		public long now = 0;
 
 		@Override
-		public ZoneId getZone() {
-			// TODO Auto-generated method stub
-			return null;
-		}
-
-		@Override
-		public Clock withZone(ZoneId zone) {
-			// TODO Auto-generated method stub
-			return null;
-		}
-
-		@Override
-		public Instant instant() {
-			return null;
-		}
-		
-		@Override
-		public long millis() {
-			return now;
+		public long nanoTime() {
+			return now * 1000000L;
 		}
 		
 	}
@@ -626,4 +608,679 @@ public class StateMachineTest {
 			sm.executed
 		);
 	}
+	
+	class HandleSm extends StateMachine {
+		
+		public List<String> executed = new ArrayList<>();
+		
+		final StateHandle second = getStateHandle("second");
+		
+		@State(first=true)
+		private void first() {
+			executed.add("1");
+			nextState(second);
+		}
+		
+		@TimedState(duration=1, nextState="first")
+		private void second() {
+			executed.add("2");
+		}
+	}
+	
+	@Test
+	public void testStateHandles() {
+		HandleSm sm = new HandleSm();
+		FakeClock wpitime = new FakeClock();
+		sm.m_clock = wpitime;
+		
+		assertEquals("second", sm.second.getName());
+		assertSame(sm.second, sm.getStateHandle("second"));
+		
+		sm.engage();
+		sm.execute();
+		assertEquals("second", sm.getCurrentState());
+		
+		sm.engage();
+		sm.execute();
+		assertEquals("second", sm.getCurrentState());
+		
+		// expires, goes back to first, which transitions to second again
+		wpitime.now += 1500;
+		sm.engage();
+		sm.execute();
+		assertEquals("second", sm.getCurrentState());
+		
+		assertEquals(Arrays.asList("1", "2", "1"), sm.executed);
+		
+		// handles from another state machine are not allowed
+		try {
+			sm.nextState(new HandleSm().second);
+			fail();
+		} catch (RuntimeException e) {
+			// ok
+		}
+	}
+	
+	class InvalidNextState extends StateMachine {
+		@TimedState(first=true, duration=1, nextState="nope")
+		private void tmp() {}
+	}
+	
+	@Test
+	public void testInvalidNextState() {
+		try {
+			new InvalidNextState();
+			fail();
+		} catch (RuntimeException e) {
+			// ok
+		}
+	}
+	
+	@Test
+	public void testWarmUp() {
+		TestStateMachine1 sm = new TestStateMachine1();
+		sm.m_verboseLogging = true;
+		
+		for (int i = 0; i < 100; i++) {
+			sm.warmUp();
+		}
+		
+		// no states were actually called, and the machine is stopped
+		assertEquals(0, sm.executed.size());
+		assertFalse(sm.isExecuting());
+		assertEquals("", sm.getCurrentState());
+		assertTrue(sm.m_verboseLogging);
+		
+		// and it still works afterwards
+		sm.engage();
+		sm.execute();
+		assertEquals(1, sm.executed.size());
+	}
+	
+	@Test
+	public void testTransitionListener() {
+		TestStateMachine1 sm = new TestStateMachine1();
+		sm.m_verboseLogging = false;
+		
+		FakeClock wpitime = new FakeClock();
+		sm.m_clock = wpitime;
+		
+		List<String> events = new ArrayList<>();
+		sm.addTransitionListener((machine, from, to, cause, timestamp, machineTime) -> {
+			assertSame(sm, machine);
+			events.add(from + ">" + to + " " + cause + " " + machineTime / 1000000L);
+		});
+		
+		wpitime.now = 100;
+		sm.engage();
+		sm.execute();
+		sm.engage();
+		sm.execute();
+		
+		wpitime.now += 1500;
+		sm.engage();
+		sm.execute();
+		sm.done();
+		
+		assertEquals(Arrays.asList("null>first_state ENGAGE 0",
+								   "first_state>second_state NEXT_STATE 0",
+								   "second_state>third_state EXPIRED 1500",
+								   "third_state>null DONE 1500"), events);
+		
+		// nothing is sent while warming up
+		events.clear();
+		sm.warmUp();
+		assertEquals(0, events.size());
+	}
+	
+	class Inner extends StateMachine {
+		List<String> executed = new ArrayList<>();
+		
+		@TimedState(first=true, duration=1, nextState="b")
+		private void a(double tm) {
+			executed.add("a " + tm);
+		}
+		
+		@TimedState(duration=1)
+		private void b(double tm) {
+			executed.add("b " + tm);
+		}
+	}
+	
+	class Middle extends StateMachine {
+		Inner inner = new Inner();
+		
+		@CompositeState(first=true, nextState="last")
+		Inner inner() {
+			return inner;
+		}
+		
+		@State
+		private void last() {
+			done();
+		}
+	}
+	
+	class Outer extends StateMachine {
+		Middle middle = new Middle();
+		boolean after = false;
+		
+		@TimedState(first=true, duration=0.5, nextState="middle")
+		private void before() {}
+		
+		@CompositeState(nextState="after")
+		Middle middle() {
+			return middle;
+		}
+		
+		@State
+		private void after() {
+			after = true;
+		}
+	}
+	
+	@Test
+	public void testCompositeStates() {
+		Outer sm = new Outer();
+		FakeClock wpitime = new FakeClock();
+		sm.setClock(wpitime);
+		
+		List<String> events = new ArrayList<>();
+		sm.addTransitionListener((machine, from, to, cause, timestamp, machineTime) -> {
+			events.add(to + " " + cause);
+		});
+		
+		// before, then into middle and inner at 0.6s
+		for (int i = 0; i <= 6; i++) {
+			wpitime.now = i * 100;
+			sm.engage();
+			sm.execute();
+		}
+		
+		assertEquals("middle", sm.getCurrentState());
+		assertEquals("inner", sm.middle.getCurrentState());
+		assertEquals("a", sm.middle.inner.getCurrentState());
+		
+		// the children run on the parent's time
+		assertEquals(Arrays.asList("a 0.0"), sm.middle.inner.executed);
+		
+		for (int i = 7; i <= 30; i++) {
+			wpitime.now = i * 100;
+			sm.engage();
+			sm.execute();
+		}
+		
+		// inner ran a and b for a second each, then middle moved to last,
+		// which finished middle, so outer moved on to after
+		assertTrue(sm.middle.inner.executed.contains("b 0.1"));
+		assertFalse(sm.middle.isExecuting());
+		assertFalse(sm.middle.inner.isExecuting());
+		assertEquals("after", sm.getCurrentState());
+		assertTrue(sm.after);
+		
+		assertEquals(Arrays.asList("before ENGAGE", "middle EXPIRED", "after CHILD_DONE"), events);
+		
+		// it can be run again, and stopping the parent stops the children
+		sm.engage("middle", true);
+		sm.execute();
+		assertEquals("a", sm.middle.inner.getCurrentState());
+		
+		sm.done();
+		assertFalse(sm.middle.isExecuting());
+		assertFalse(sm.middle.inner.isExecuting());
+	}
+	
+	@Test
+	public void testCompositeChildAsComponent() {
+		Outer sm = new Outer();
+		FakeClock wpitime = new FakeClock();
+		sm.setClock(wpitime);
+		
+		// the robot executes the children as components too, which
+		// must not stop them while the parent runs them
+		for (int i = 0; i <= 30; i++) {
+			wpitime.now = i * 100;
+			sm.middle.inner.execute();
+			sm.engage();
+			sm.execute();
+			sm.middle.execute();
+			sm.middle.inner.execute();
+		}
+		
+		assertTrue(sm.middle.inner.executed.contains("b 0.1"));
+		assertEquals("after", sm.getCurrentState());
+		assertTrue(sm.after);
+	}
+	
+	class NowSm extends StateMachine {
+		List<String> executed = new ArrayList<>();
+		
+		@State(first=true)
+		private void a() {
+			executed.add("a");
+			nextStateNow("b");
+		}
+		
+		@State
+		private void b() {
+			executed.add("b");
+		}
+	}
+	
+	class NowParent extends StateMachine {
+		NowSm child = new NowSm();
+		
+		@CompositeState(first=true, nextState="after")
+		NowSm child() {
+			return child;
+		}
+		
+		@State
+		private void after() {}
+	}
+	
+	@Test
+	public void testCompositeChildNextStateNow() {
+		NowSm flat = new NowSm();
+		flat.engage();
+		flat.execute();
+		assertEquals(Arrays.asList("a", "b"), flat.executed);
+		
+		// a child calls the next state immediately too
+		NowParent sm = new NowParent();
+		sm.engage();
+		sm.execute();
+		assertEquals(Arrays.asList("a", "b"), sm.child.executed);
+	}
+	
+	@Test
+	public void testCompositeChildRunsAloneAfterParent() {
+		NowParent sm = new NowParent();
+		sm.engage();
+		sm.execute();
+		assertEquals("b", sm.child.getCurrentState());
+		
+		// the parent is done with the child once it leaves the state
+		sm.engage("after", true);
+		sm.execute();
+		assertFalse(sm.child.isExecuting());
+		
+		sm.child.executed.clear();
+		sm.child.engage();
+		sm.child.execute();
+		assertEquals(Arrays.asList("a", "b"), sm.child.executed);
+		
+		// and another parent can use it
+		NowParent other = new NowParent();
+		other.child = sm.child;
+		sm.child.done();
+		sm.child.executed.clear();
+		other.engage();
+		other.execute();
+		assertEquals(Arrays.asList("a", "b"), sm.child.executed);
+	}
+	
+	class BadComposite extends StateMachine {
+		@CompositeState(first=true)
+		StateMachine bad(double tm) {
+			return null;
+		}
+	}
+	
+	class SelfComposite extends StateMachine {
+		@CompositeState(first=true)
+		StateMachine self() {
+			return this;
+		}
+	}
+	
+	@Test
+	public void testInvalidCompositeStates() {
+		try {
+			new BadComposite();
+			fail();
+		} catch (RuntimeException e) {
+			// ok
+		}
+		
+		SelfComposite sm = new SelfComposite();
+		sm.engage();
+		try {
+			sm.execute();
+			fail();
+		} catch (RuntimeException e) {
+			// ok
+		}
+	}
+	
+	class Pickup extends StateMachine {
+		List<String> executed = new ArrayList<>();
+		boolean intakeFull = false;
+		boolean scored = false;
+		
+		@ParallelState(first=true, regions={"drivePath", "runIntake"}, nextState="score")
+		void pickup() {
+		}
+		
+		@TimedState(duration=1, nextState="driveSlow")
+		void drivePath(double tm, boolean initialCall) {
+			if (initialCall) {
+				executed.add("drivePath " + tm);
+			}
+		}
+		
+		@TimedState(duration=0.5)
+		void driveSlow(double tm, boolean initialCall) {
+			if (initialCall) {
+				executed.add("driveSlow " + Math.round(tm * 10) / 10.0);
+			}
+		}
+		
+		@State
+		void runIntake() {
+			if (intakeFull) {
+				nextState("holdIntake");
+			}
+		}
+		
+		@State
+		void holdIntake() {
+			done();
+		}
+		
+		@State
+		void score() {
+			scored = true;
+		}
+	}
+	
+	@Test
+	public void testParallelStates() {
+		Pickup sm = new Pickup();
+		FakeClock wpitime = new FakeClock();
+		sm.setClock(wpitime);
+		
+		List<String> events = new ArrayList<>();
+		sm.addTransitionListener((machine, from, to, cause, timestamp, machineTime) -> {
+			events.add(from + ">" + to + " " + cause);
+		});
+		
+		for (int i = 0; i <= 3; i++) {
+			wpitime.now = i * 100;
+			sm.engage();
+			sm.execute();
+		}
+		
+		assertEquals("pickup", sm.getCurrentState());
+		assertEquals("drivePath", sm.getCurrentState(0));
+		assertEquals("runIntake", sm.getCurrentState(1));
+		
+		// the intake region finishes on its own, the drive region keeps going
+		sm.intakeFull = true;
+		for (int i = 4; i <= 12; i++) {
+			wpitime.now = i * 100;
+			sm.engage();
+			sm.execute();
+		}
+		
+		assertEquals("pickup", sm.getCurrentState());
+		assertEquals("driveSlow", sm.getCurrentState(0));
+		assertEquals("", sm.getCurrentState(1));
+		
+		// once both regions finish, the state machine moves on
+		for (int i = 13; i <= 17; i++) {
+			wpitime.now = i * 100;
+			sm.engage();
+			sm.execute();
+		}
+		
+		assertEquals("score", sm.getCurrentState());
+		assertEquals("", sm.getCurrentState(0));
+		assertTrue(sm.scored);
+		
+		// region states don't drift: driveSlow started when drivePath expired
+		assertEquals(Arrays.asList("drivePath 0.0", "driveSlow 0.1"), sm.executed);
+		
+		assertEquals(Arrays.asList("null>pickup ENGAGE",
+								   "pickup>drivePath FORK",
+								   "pickup>runIntake FORK",
+								   "runIntake>holdIntake NEXT_STATE",
+								   "drivePath>driveSlow EXPIRED",
+								   "pickup>score JOIN"), events);
+		
+		// leaving the state stops the regions
+		sm.engage("pickup", true);
+		sm.execute();
+		assertEquals("drivePath", sm.getCurrentState(0));
+		sm.done();
+		assertEquals("", sm.getCurrentState(0));
+	}
+	
+	class BadParallel extends StateMachine {
+		@ParallelState(first=true, regions={"nested"})
+		void outer() {
+		}
+		
+		@ParallelState(regions={"a"})
+		void nested() {
+		}
+		
+		@State
+		void a() {
+		}
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void testInvalidParallelStates() {
+		new BadParallel();
+	}
+	
+	static class IntakeFull {}
+	static class IntakeJammed extends IntakeFull {}
+	static class Cancel {}
+	
+	class Intake extends StateMachine {
+		List<String> executed = new ArrayList<>();
+		
+		@State(first=true)
+		@OnEvent(type=IntakeJammed.class, nextState="unjam")
+		@OnEvent(type=IntakeFull.class, nextState="hold")
+		void runIntake() {
+			executed.add("runIntake");
+		}
+		
+		@State
+		@OnEvent(type=Cancel.class, nextState="runIntake")
+		void hold() {
+			executed.add("hold");
+		}
+		
+		@State
+		void unjam() {
+			executed.add("unjam");
+		}
+	}
+	
+	@Test
+	public void testEvents() throws InterruptedException {
+		Intake sm = new Intake();
+		
+		List<String> events = new ArrayList<>();
+		sm.addTransitionListener((machine, from, to, cause, timestamp, machineTime) -> {
+			events.add(to + " " + cause);
+		});
+		
+		sm.engage();
+		sm.execute();
+		
+		// events that the current state doesn't handle are dropped
+		assertTrue(sm.post(new Cancel()));
+		sm.engage();
+		sm.execute();
+		assertEquals("runIntake", sm.getCurrentState());
+		
+		// events may be posted from other threads, and are handled by the
+		// next call to execute
+		Thread poster = new Thread(() -> sm.post(new IntakeFull()));
+		poster.start();
+		poster.join();
+		
+		assertEquals("runIntake", sm.getCurrentState());
+		sm.engage();
+		sm.execute();
+		assertEquals("hold", sm.getCurrentState());
+		
+		// events are handled in order, and subclasses match
+		sm.post(new Cancel());
+		sm.post(new IntakeJammed());
+		sm.engage();
+		sm.execute();
+		assertEquals("unjam", sm.getCurrentState());
+		
+		assertEquals(Arrays.asList("runIntake", "runIntake", "hold", "unjam"), sm.executed);
+		assertEquals(Arrays.asList("runIntake ENGAGE", "hold EVENT", "unjam EVENT"), events);
+		
+		// the queue is bounded
+		int posted = 0;
+		while (sm.post(new Cancel())) {
+			posted++;
+		}
+		assertEquals(StateMachine.EVENT_CAPACITY, posted);
+		sm.engage();
+		sm.execute();
+		assertTrue(sm.post(new Cancel()));
+		
+		// state machines without @OnEvent don't accept events
+		assertFalse(new Pickup().post(new Cancel()));
+	}
+	
+	@Test
+	public void testEventsSurviveWarmUp() {
+		Intake sm = new Intake();
+		
+		// an event posted before the robot is enabled waits for the first
+		// real execute, instead of being handled by the warm up
+		assertTrue(sm.post(new IntakeFull()));
+		sm.warmUp();
+		assertTrue(sm.executed.isEmpty());
+		
+		sm.engage();
+		sm.execute();
+		assertEquals("hold", sm.getCurrentState());
+		assertEquals(Arrays.asList("hold"), sm.executed);
+	}
+	
+	class Loader extends StateMachine {
+		Intake intake = new Intake();
+		
+		@CompositeState(first=true)
+		@OnEvent(type=IntakeJammed.class, nextState="stopped")
+		Intake loading() {
+			return intake;
+		}
+		
+		@State
+		void stopped() {
+		}
+	}
+	
+	@Test
+	public void testCompositeEvents() {
+		Loader sm = new Loader();
+		
+		sm.engage();
+		sm.execute();
+		assertEquals("runIntake", sm.intake.getCurrentState());
+		
+		// events the parent doesn't handle go to the child
+		assertTrue(sm.post(new IntakeFull()));
+		sm.engage();
+		sm.execute();
+		assertEquals("loading", sm.getCurrentState());
+		assertEquals("hold", sm.intake.getCurrentState());
+		
+		sm.post(new Cancel());
+		sm.engage();
+		sm.execute();
+		assertEquals("runIntake", sm.intake.getCurrentState());
+		
+		// the parent's own transitions come first, and stop the child
+		sm.post(new IntakeJammed());
+		sm.engage();
+		sm.execute();
+		assertEquals("stopped", sm.getCurrentState());
+		assertFalse(sm.intake.isExecuting());
+		assertFalse(sm.intake.executed.contains("unjam"));
+	}
+	
+	class ParallelEvents extends StateMachine {
+		@ParallelState(first=true, regions={"driving", "intaking"})
+		void collect() {
+		}
+		
+		@State
+		@OnEvent(type=Cancel.class, nextState="braking")
+		void driving() {
+		}
+		
+		@State
+		void braking() {
+		}
+		
+		@State
+		@OnEvent(type=IntakeFull.class, nextState="holding")
+		@OnEvent(type=Cancel.class, nextState="holding")
+		void intaking() {
+		}
+		
+		@State
+		void holding() {
+		}
+	}
+	
+	@Test
+	public void testParallelEvents() {
+		ParallelEvents sm = new ParallelEvents();
+		
+		sm.engage();
+		sm.execute();
+		assertEquals("driving", sm.getCurrentState(0));
+		assertEquals("intaking", sm.getCurrentState(1));
+		
+		// only the region that handles the event moves
+		sm.post(new IntakeFull());
+		sm.engage();
+		sm.execute();
+		assertEquals("collect", sm.getCurrentState());
+		assertEquals("driving", sm.getCurrentState(0));
+		assertEquals("holding", sm.getCurrentState(1));
+		
+		sm.post(new Cancel());
+		sm.engage();
+		sm.execute();
+		assertEquals("braking", sm.getCurrentState(0));
+		assertEquals("holding", sm.getCurrentState(1));
+		
+		// every region that handles the event moves
+		ParallelEvents other = new ParallelEvents();
+		other.engage();
+		other.execute();
+		other.post(new Cancel());
+		other.engage();
+		other.execute();
+		assertEquals("braking", other.getCurrentState(0));
+		assertEquals("holding", other.getCurrentState(1));
+	}
+	
+	class BadEvent extends StateMachine {
+		@State(first=true)
+		@OnEvent(type=Cancel.class, nextState="nope")
+		void a() {
+		}
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void testInvalidEvents() {
+		new BadEvent();
+	}
 }